@@ -0,0 +1,227 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import unlekker.mb2.geo.UEdgeList;
+import unlekker.mb2.geo.UGeo;
+import unlekker.mb2.geo.UGeoIO;
+import unlekker.mb2.geo.UGeoPacked;
+import unlekker.mb2.geo.UHeading;
+import unlekker.mb2.geo.USubdivision;
+import unlekker.mb2.geo.UTriangulate;
+import unlekker.mb2.geo.UVertex;
+import unlekker.mb2.geo.UVertexList;
+import unlekker.mb2.util.UMB;
+
+/**
+ * <p>JMH benchmarks for the hot paths in <code>unlekker.mb2.geo</code>, using
+ * fixtures from {@link UBenchFixtures}. Each benchmark runs in forked JVMs, so
+ * results don't depend on run order or on JIT profiles from other benchmarks.
+ * The mesh size parameter <code>n</code> gives a tube of <code>n</code> rings
+ * with <code>n</code> vertices each.</p>
+ *
+ * <pre>
+ * mvn -f bench/pom.xml package
+ * java -jar bench/target/benchmarks.jar UBenchGeo -p n=100,300,600
+ * java -jar bench/target/benchmarks.jar "UBenchGeo.read.*"
+ * </pre>
+ *
+ * <p>There is no ASCII STL writer in the library, ASCII fixtures are written
+ * by {@link UBenchFixtures#writeASCII(File, UGeo)} during setup.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(2)
+public class UBenchGeo {
+
+  /**
+   * Vertex lists and meshes built from {@link UBenchFixtures#rings(int)}.
+   */
+  @State(Scope.Benchmark)
+  public static class Mesh {
+    @Param({"100","300"})
+    public int n;
+
+    ArrayList<UVertexList> rings;
+    UVertexList vertices;
+    UGeo tube;
+    UGeoPacked packed;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      rings=UBenchFixtures.rings(n);
+      vertices=new UVertexList();
+      for(UVertexList vl:rings) vertices.add(vl);
+      // every vertex twice, half the adds are duplicates
+      vertices.add(vertices.copy());
+
+      tube=UBenchFixtures.tube(n);
+      packed=new UGeoPacked(UBenchFixtures.tube(n/2));
+    }
+  }
+
+  /**
+   * Fresh copy of a tube mesh for every call, for operations that modify 
+   * the mesh in place. Copying is not part of the measured time.
+   */
+  @State(Scope.Thread)
+  public static class Work {
+    @Param({"100","300"})
+    public int n;
+
+    UGeo tube,geo;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      tube=UBenchFixtures.tube(n/2);
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+      geo=tube.copy();
+    }
+  }
+
+  /**
+   * Binary and ASCII STL files of {@link UBenchFixtures#tube(int)}.
+   */
+  @State(Scope.Benchmark)
+  public static class Files {
+    @Param({"100","300"})
+    public int n;
+
+    UGeo tube;
+    File dir,binary,ascii,out;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      dir=new File(System.getProperty("java.io.tmpdir"), "UBenchGeo");
+      dir.mkdirs();
+
+      tube=UBenchFixtures.tube(n);
+      binary=new File(dir, "bench"+n+".stl");
+      ascii=new File(dir, "bench"+n+"ascii.stl");
+      out=new File(dir, "bench"+n+"out.stl");
+      UGeoIO.writeSTL(binary.getAbsolutePath(), tube);
+      UBenchFixtures.writeASCII(ascii, tube);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      binary.delete();
+      ascii.delete();
+      out.delete();
+    }
+  }
+
+  /**
+   * Point sets, polygons and sweep paths.
+   */
+  @State(Scope.Benchmark)
+  public static class Shapes {
+    @Param({"100","300"})
+    public int n;
+
+    UVertexList points,outline,path,prof;
+    ArrayList<UVertexList> holes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      points=UBenchFixtures.points(n*n);
+      outline=UBenchFixtures.outline(n*4);
+      holes=new ArrayList<UVertexList>();
+      holes.add(UVertexList.circle(100, n));
+      path=UBenchFixtures.helix(n*4);
+      prof=UVertexList.circle(20, n/4+3);
+    }
+  }
+
+  @Benchmark
+  public int vertexListAddNoDupl(Mesh m) {
+    UVertexList vl=new UVertexList();
+    vl.enable(UMB.NODUPL);
+    for(UVertex vv:m.vertices) vl.add(vv);
+    return vl.size();
+  }
+
+  @Benchmark
+  public int geoAddFace(Mesh m) {
+    UGeo geo=new UGeo();
+    for(int i=0; i<m.tube.sizeF(); i++) geo.addFace(m.tube.getF(i).getV());
+    return geo.sizeF();
+  }
+
+  @Benchmark
+  public UGeo geoQuadstrip(Mesh m) {
+    return new UGeo().quadstrip(m.rings);
+  }
+
+  @Benchmark
+  public UEdgeList edgeList(Mesh m) {
+    return new UEdgeList(m.tube);
+  }
+
+  @Benchmark
+  public UGeoPacked subdivideLoop(Mesh m) {
+    return USubdivision.subdivide(m.packed, UMB.SUBDIVLOOP, 2);
+  }
+
+  @Benchmark
+  public UGeo subdivideMidEdges(Work w) {
+    return USubdivision.subdivide(w.geo, UMB.SUBDIVMIDEDGES);
+  }
+
+  @Benchmark
+  public long writeSTLBinary(Files f) {
+    UGeoIO.writeSTL(f.out.getAbsolutePath(), f.tube);
+    return f.out.length();
+  }
+
+  @Benchmark
+  public UGeo readSTLBinary(Files f) {
+    return UGeoIO.readSTL(null, f.binary.getAbsolutePath());
+  }
+
+  @Benchmark
+  public UGeo readSTLASCII(Files f) {
+    return UGeoIO.readSTL(null, f.ascii.getAbsolutePath());
+  }
+
+  @Benchmark
+  public int triangulatePoints(Shapes s) {
+    return new UTriangulate(s.points).triangles.length;
+  }
+
+  @Benchmark
+  public int triangulatePolygon(Shapes s) {
+    return new UTriangulate(s.outline, s.holes).triangles.length;
+  }
+
+  @Benchmark
+  public void headingSweep(Shapes s,Blackhole bh) {
+    for(UVertexList vl:UHeading.sweep(s.path, s.prof)) bh.consume(vl);
+  }
+}
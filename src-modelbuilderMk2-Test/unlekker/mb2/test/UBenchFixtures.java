@@ -0,0 +1,114 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import unlekker.mb2.geo.UFace;
+import unlekker.mb2.geo.UGeo;
+import unlekker.mb2.geo.UGeoIO;
+import unlekker.mb2.geo.UVertex;
+import unlekker.mb2.geo.UVertexList;
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.URnd;
+
+/**
+ * Headless generator for the meshes, vertex lists and STL files used by
+ * the JMH benchmarks in <code>bench/</code> (see <code>bench/pom.xml</code>).
+ * All fixtures are deterministic for a given size, so results from different 
+ * runs can be compared. Run with a size and output folder as optional 
+ * arguments to write the STL fixtures to disk.
+ */
+public class UBenchFixtures {
+
+  static public void main(String args[]) throws IOException {
+    int n=args.length>0 ? Integer.parseInt(args[0]) : 300;
+    File dir=new File(args.length>1 ? args[1] : System.getProperty("java.io.tmpdir"));
+    dir.mkdirs();
+
+    UGeo geo=tube(n);
+    File bin=new File(dir, "bench"+n+".stl"),ascii=new File(dir, "bench"+n+"ascii.stl");
+    UGeoIO.writeSTL(bin.getAbsolutePath(), geo);
+    writeASCII(ascii, geo);
+    UMB.log("Fixtures: "+geo.sizeF()+" faces, "+
+        bin.getName()+" ("+UMB.fileSizeStr(bin)+"), "+
+        ascii.getName()+" ("+UMB.fileSizeStr(ascii)+")");
+  }
+
+  /**
+   * @return <code>n</code> rings of <code>n</code> vertices each, forming
+   * a slightly tapered tube.
+   */
+  static ArrayList<UVertexList> rings(int n) {
+    ArrayList<UVertexList> stack=new ArrayList<UVertexList>();
+    for(int i=0; i<n; i++) {
+      stack.add(UVertexList.circle(100+i*0.01f, n).translate(0, 0, i*0.5f));
+    }
+    return stack;
+  }
+
+  /**
+   * @return Tube mesh with <code>2*n*(n-1)</code> faces.
+   */
+  static UGeo tube(int n) {
+    return new UGeo().quadstrip(rings(n));
+  }
+
+  /**
+   * @return <code>num</code> random points in a 1000x1000 square,
+   * with a fixed seed.
+   */
+  static UVertexList points(int num) {
+    URnd rnd=new URnd(num);
+    UVertexList vl=new UVertexList();
+    for(int i=0; i<num; i++) vl.add(rnd.random(1000),rnd.random(1000),0);
+    return vl;
+  }
+
+  /**
+   * @return Star-shaped polygon with <code>num</code> vertices.
+   */
+  static UVertexList outline(int num) {
+    UVertexList vl=new UVertexList();
+    for(int i=0; i<num; i++) {
+      float a=UMB.TWO_PI*(float)i/(float)num,r=(i%2==0 ? 500 : 350);
+      vl.add(r*(float)Math.cos(a),r*(float)Math.sin(a),0);
+    }
+    return vl;
+  }
+
+  /**
+   * @return 3D helix with <code>num</code> vertices, used as sweep path.
+   */
+  static UVertexList helix(int num) {
+    UVertexList vl=new UVertexList();
+    for(int i=0; i<num; i++) {
+      float a=i*0.1f;
+      vl.add(300*(float)Math.cos(a),300*(float)Math.sin(a),i*2);
+    }
+    return vl;
+  }
+
+  static void writeASCII(File file,UGeo geo) throws IOException {
+    BufferedWriter out=new BufferedWriter(new FileWriter(file),1<<16);
+    out.write("solid bench\n");
+
+    for(UFace f:geo.getF()) {
+      UVertex fn=f.normal();
+      out.write("  facet normal "+fn.x+" "+fn.y+" "+fn.z+"\n");
+      out.write("    outer loop\n");
+      for(UVertex v:f.getV()) {
+        out.write("      vertex "+v.x+" "+v.y+" "+v.z+"\n");
+      }
+      out.write("    endloop\n");
+      out.write("  endfacet\n");
+    }
+    out.write("endsolid bench\n");
+    out.close();
+  }
+}
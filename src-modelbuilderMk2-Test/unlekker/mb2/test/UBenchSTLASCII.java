@@ -0,0 +1,130 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import unlekker.mb2.geo.UFace;
+import unlekker.mb2.geo.UGeo;
+import unlekker.mb2.geo.USTLReader;
+import unlekker.mb2.geo.UVertex;
+import unlekker.mb2.geo.UVertexList;
+import unlekker.mb2.util.UMB;
+
+/**
+ * Headless benchmark comparing {@link USTLReader#readASCII(File)} to the
+ * previous <code>readLine()</code> / <code>split()</code> parser of
+ * <code>UGeoIO.readSTL</code>. Run with the number of rings in the test
+ * mesh as optional argument (default 600, ~720k faces).
+ */
+public class UBenchSTLASCII {
+
+  static public void main(String args[]) throws IOException {
+    int n=args.length>0 ? Integer.parseInt(args[0]) : 600;
+
+    UGeo geo=mesh(n);
+    File file=File.createTempFile("UBenchSTLASCII", ".stl");
+    file.deleteOnExit();
+    writeASCII(file, geo);
+    UMB.log("Test file: "+geo.sizeF()+" faces, "+UMB.fileSizeStr(file));
+
+    UGeo a=null,b=null;
+    for(int i=0; i<3; i++) {
+      long t=System.currentTimeMillis();
+      a=readLegacy(file);
+      long tLegacy=System.currentTimeMillis()-t;
+
+      t=System.currentTimeMillis();
+      b=USTLReader.readASCII(file);
+      long tNew=System.currentTimeMillis()-t;
+
+      UMB.log("Run "+i+": readLine/split "+tLegacy+" msec, USTLReader "+tNew+" msec");
+    }
+
+    UMB.log("readLine/split: "+a.sizeF()+" faces, "+a.sizeV()+" vertices");
+    UMB.log("USTLReader:     "+b.sizeF()+" faces, "+b.sizeV()+" vertices");
+
+    float maxD=0;
+    for(int i=0; i<Math.min(a.sizeV(), b.sizeV()); i++) {
+      maxD=Math.max(maxD, a.getV().get(i).dist(b.getV().get(i)));
+    }
+    UMB.log("Max vertex difference: "+maxD);
+  }
+
+  static UGeo mesh(int n) {
+    ArrayList<UVertexList> stack=new ArrayList<UVertexList>();
+    for(int i=0; i<n; i++) {
+      stack.add(UVertexList.circle(100+i*0.01f, n).translate(0, 0, i*0.5f));
+    }
+    return new UGeo().quadstrip(stack);
+  }
+
+  /**
+   * Writes ASCII STL with mixed whitespace and number formats, as
+   * found in files from different exporters.
+   */
+  static void writeASCII(File file,UGeo geo) throws IOException {
+    BufferedWriter out=new BufferedWriter(new FileWriter(file));
+    out.write("solid bench\n");
+
+    int id=0;
+    for(UFace f:geo.getF()) {
+      UVertex fn=f.normal();
+      out.write("  facet normal "+fn.x+" "+fn.y+" "+fn.z+"\n");
+      out.write("    outer loop\n");
+      for(UVertex v:f.getV()) {
+        if(id++%2==0) out.write("      vertex "+v.x+" "+v.y+" "+v.z+"\n");
+        else out.write(String.format(Locale.ROOT, "\tvertex  %e\t%e  %e\r\n", v.x,v.y,v.z));
+      }
+      out.write("    endloop\n");
+      out.write("  endfacet\n");
+    }
+    out.write("endsolid bench\n");
+    out.close();
+  }
+
+  /**
+   * Previous ASCII parser from <code>UGeoIO.readSTL</code>, adjusted
+   * to tolerate repeated whitespace.
+   */
+  static UGeo readLegacy(File file) throws IOException {
+    UGeo geo=new UGeo();
+    BufferedReader read=new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    String dat=read.readLine();
+
+    UVertex v[]=new UVertex[] {new UVertex(),new UVertex(),new UVertex()};
+    while(dat!=null) {
+      dat=read.readLine(); // should be "facet"
+      if(dat==null || !dat.contains("facet")) {
+        dat=null;
+      }
+      else {
+        dat=read.readLine(); // "outer loop"
+
+        for(int i=0; i<3; i++) {
+          String tok[]=read.readLine().trim().split("\\s+");  // "vertex x y z"
+          v[i].set(
+              UMB.parseFloat(tok[1]),
+              UMB.parseFloat(tok[2]),
+              UMB.parseFloat(tok[3]));
+        }
+        geo.addFace(v);
+
+        dat=read.readLine(); // "end loop"
+        dat=read.readLine(); // "end facet"
+      }
+    }
+    read.close();
+
+    return geo;
+  }
+}
@@ -0,0 +1,903 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Bounding volume hierarchy over the faces of a {@link UGeo} (or
+ * {@link UGeoPacked}), for ray casting, closest point and overlap queries
+ * without testing every face. The tree is built with binned SAH (surface
+ * area heuristic) splits and stored in flat arrays. Large subtrees are built
+ * in parallel using the {@link UParallel} pool.</p>
+ *
+ * <p>The tree stores a snapshot of the face coordinates. If vertices move
+ * but faces are not added or removed, call {@link #refit()} to update it,
+ * otherwise build a new UBVH.</p>
+ *
+ * <p>Queries only read the tree and can be called from multiple threads
+ * at once, as long as each thread uses its own {@link Hit} instance.</p>
+ *
+ * <pre>
+ * UBVH bvh=new UBVH(geo);
+ * UBVH.Hit hit=new UBVH.Hit();
+ * if(bvh.ray(origin, dir, hit)) UFace f=bvh.getF(hit.faceID);
+ * </pre>
+ *
+ * @author marius
+ *
+ */
+public class UBVH extends UMB {
+  /**
+   * Maximum number of faces in a leaf node.
+   */
+  public static int MAXLEAF=4;
+
+  private static final int BINS=16;
+  private static final int PARALLELMIN=8192;
+
+  public UGeo parent;
+
+  /**
+   * Face coordinates (9 floats per face), stored in leaf order.
+   */
+  private float tri[];
+
+  /**
+   * Face IDs in leaf order, <code>faceID[i]</code> is the ID of
+   * the face stored at <code>tri[i*9]</code>.
+   */
+  private int faceID[];
+  private int fn;
+
+  /**
+   * Node bounds (min xyz, max xyz). For interior nodes <code>node[n*2]</code> is
+   * the index of the first of two consecutive child nodes and <code>node[n*2+1]</code>
+   * is 0. For leaves they are the first face and the number of faces.
+   */
+  private float nodeBB[];
+  private int node[];
+  private int nodeNum;
+
+  /**
+   * Result of a ray, segment or closest point query.
+   */
+  public static class Hit {
+    /**
+     * ID of the face found, or -1.
+     */
+    public int faceID=-1;
+
+    /**
+     * Distance from the query origin to {@link #pt}.
+     */
+    public float dist;
+
+    /**
+     * Barycentric coordinates of {@link #pt} relative to face vertices
+     * 1 and 2, so that <code>pt=v0+u*(v1-v0)+v*(v2-v0)</code>.
+     */
+    public float u,v;
+    public UVertex pt=new UVertex();
+
+    public Hit reset() {
+      faceID=-1;
+      dist=Float.MAX_VALUE;
+      return this;
+    }
+
+    public String str() {
+      return "[Hit face="+faceID+" dist="+nf(dist)+" "+pt.str()+"]";
+    }
+  }
+
+  public UBVH(UGeo geo) {
+    parent=geo;
+    ArrayList<UFace> faces=geo.getF();
+    fn=faces.size();
+    tri=new float[fn*9];
+    readFaces(faces,tri);
+    build();
+  }
+
+  public UBVH(UGeoPacked geo) {
+    fn=geo.sizeF();
+    tri=new float[fn*9];
+    for(int i=0; i<fn*3; i++) {
+      System.arraycopy(geo.xyz, geo.tri[i]*3, tri, i*3, 3);
+    }
+    build();
+  }
+
+  public int sizeF() {
+    return fn;
+  }
+
+  public int sizeNodes() {
+    return nodeNum;
+  }
+
+  /**
+   * @return Face from the parent UGeo, or null if the tree was built from
+   * a {@link UGeoPacked}.
+   */
+  public UFace getF(int id) {
+    if(parent==null || id<0) return null;
+    return parent.getF(id);
+  }
+
+  public UBB bb() {
+    UBB bb=new UBB();
+    if(nodeNum>0) {
+      bb.min.set(nodeBB[0],nodeBB[1],nodeBB[2]);
+      bb.max.set(nodeBB[3],nodeBB[4],nodeBB[5]);
+    }
+    return bb.calc();
+  }
+
+  private static void readFaces(ArrayList<UFace> faces,float t[]) {
+    int id=0;
+    for(UFace ff:faces) {
+      for(UVertex vv:ff.getV()) {
+        t[id++]=vv.x;
+        t[id++]=vv.y;
+        t[id++]=vv.z;
+      }
+    }
+  }
+
+  ///////////////////////////////////////
+  // BUILD
+
+  private void build() {
+    faceID=new int[fn];
+    if(fn==0) {
+      nodeBB=new float[0];
+      node=new int[0];
+      return;
+    }
+
+    // per-face bounds and centroids
+    final float fbb[]=new float[fn*6],cent[]=new float[fn*3];
+    final float t[]=tri;
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) {
+          int id=i*9;
+          for(int j=0; j<3; j++) {
+            float a=t[id+j],b=t[id+3+j],c=t[id+6+j];
+            float mn=min(a,min(b,c)),mx=max(a,max(b,c));
+            fbb[i*6+j]=mn;
+            fbb[i*6+3+j]=mx;
+            cent[i*3+j]=(mn+mx)*0.5f;
+          }
+          faceID[i]=i;
+        }
+      }
+    });
+
+    nodeBB=new float[(fn*2)*6];
+    node=new int[(fn*2)*2];
+    AtomicInteger counter=new AtomicInteger(1);
+
+    BuildTask task=new BuildTask(0, 0, fn, fbb, cent, counter);
+    if(fn<PARALLELMIN || UParallel.getThreads()<2) task.compute();
+    else if(ForkJoinTask.inForkJoinPool()) task.invoke();
+    else UParallel.getPool().invoke(task);
+
+    nodeNum=counter.get();
+    nodeBB=Arrays.copyOf(nodeBB, nodeNum*6);
+    node=Arrays.copyOf(node, nodeNum*2);
+
+    // store coordinates in leaf order
+    float sorted[]=new float[fn*9];
+    for(int i=0; i<fn; i++) System.arraycopy(tri, faceID[i]*9, sorted, i*9, 9);
+    tri=sorted;
+  }
+
+  private class BuildTask extends RecursiveAction {
+    private static final long serialVersionUID=1L;
+
+    int n,from,to;
+    float fbb[],cent[];
+    AtomicInteger counter;
+
+    BuildTask(int n,int from,int to,float fbb[],float cent[],AtomicInteger counter) {
+      this.n=n;
+      this.from=from;
+      this.to=to;
+      this.fbb=fbb;
+      this.cent=cent;
+      this.counter=counter;
+    }
+
+    protected void compute() {
+      build(n, from, to);
+    }
+
+    private void build(int n,int from,int to) {
+      int mid=split(n, from, to, fbb, cent);
+      if(mid<0) return;
+
+      int c=counter.getAndAdd(2);
+      node[n*2]=c;
+      node[n*2+1]=0;
+
+      if(to-from>=PARALLELMIN) {
+        invokeAll(
+            new BuildTask(c, from, mid, fbb, cent, counter),
+            new BuildTask(c+1, mid, to, fbb, cent, counter));
+      }
+      else {
+        build(c, from, mid);
+        build(c+1, mid, to);
+      }
+    }
+  }
+
+  /**
+   * Calculates the bounds of node <code>n</code> and finds the best SAH split,
+   * partitioning <code>faceID[from..to)</code> in place.
+   * @return Split position, or -1 if the node was made a leaf.
+   */
+  private int split(int n,int from,int to,float fbb[],float cent[]) {
+    float b[]={Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE,
+        -Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+    float c[]={Float.MAX_VALUE,Float.MAX_VALUE,Float.MAX_VALUE,
+        -Float.MAX_VALUE,-Float.MAX_VALUE,-Float.MAX_VALUE};
+
+    for(int i=from; i<to; i++) {
+      int f=faceID[i];
+      for(int j=0; j<3; j++) {
+        b[j]=min(b[j],fbb[f*6+j]);
+        b[j+3]=max(b[j+3],fbb[f*6+3+j]);
+        c[j]=min(c[j],cent[f*3+j]);
+        c[j+3]=max(c[j+3],cent[f*3+j]);
+      }
+    }
+    System.arraycopy(b, 0, nodeBB, n*6, 6);
+
+    int cnt=to-from;
+    if(cnt<2) return leaf(n,from,cnt);
+
+    // binned SAH, all three axes are binned in a single pass
+    float bestCost=Float.MAX_VALUE;
+    int bestAxis=-1,bestBin=0;
+    int binCnt[]=new int[BINS*3];
+    float binBB[]=new float[BINS*3*6];
+    float scale[]=new float[3];
+
+    for(int i=0; i<BINS*3; i++) {
+      binBB[i*6]=binBB[i*6+1]=binBB[i*6+2]=Float.MAX_VALUE;
+      binBB[i*6+3]=binBB[i*6+4]=binBB[i*6+5]=-Float.MAX_VALUE;
+    }
+    for(int axis=0; axis<3; axis++) {
+      float ext=c[axis+3]-c[axis];
+      scale[axis]=(ext>0 ? BINS/ext : 0);
+    }
+
+    for(int i=from; i<to; i++) {
+      int f=faceID[i];
+      for(int axis=0; axis<3; axis++) {
+        int bin=axis*BINS+bin(cent[f*3+axis],c[axis],scale[axis]);
+        binCnt[bin]++;
+        int id=bin*6;
+        for(int j=0; j<3; j++) {
+          if(fbb[f*6+j]<binBB[id+j]) binBB[id+j]=fbb[f*6+j];
+          if(fbb[f*6+3+j]>binBB[id+3+j]) binBB[id+3+j]=fbb[f*6+3+j];
+        }
+      }
+    }
+
+    float rightArea[]=new float[BINS];
+    int rightCnt[]=new int[BINS];
+    float acc[]=new float[6];
+
+    for(int axis=0; axis<3; axis++) {
+      if(scale[axis]==0) continue;
+      int off=axis*BINS;
+
+      // sweep from the right, then from the left
+      resetBounds(acc);
+      int sum=0;
+      for(int i=BINS-1; i>0; i--) {
+        sum+=binCnt[off+i];
+        grow(acc, binBB, off+i);
+        rightCnt[i]=sum;
+        rightArea[i]=area(acc);
+      }
+
+      resetBounds(acc);
+      sum=0;
+      for(int i=0; i<BINS-1; i++) {
+        sum+=binCnt[off+i];
+        grow(acc, binBB, off+i);
+        if(sum==0 || rightCnt[i+1]==0) continue;
+        float cost=sum*area(acc)+rightCnt[i+1]*rightArea[i+1];
+        if(cost<bestCost) {
+          bestCost=cost;
+          bestAxis=axis;
+          bestBin=i;
+        }
+      }
+    }
+
+    // a split also costs one extra node traversal
+    float nodeArea=area(b);
+    if(cnt<=MAXLEAF && (bestAxis<0 || cnt*nodeArea<=bestCost+nodeArea)) {
+      return leaf(n,from,cnt);
+    }
+
+    int mid;
+    if(bestAxis<0) {
+      // identical centroids, split in the middle
+      mid=(from+to)/2;
+    }
+    else {
+      float cmin=c[bestAxis],sc=scale[bestAxis];
+      int i=from,j=to-1;
+      while(i<=j) {
+        int f=faceID[i];
+        if(bin(cent[f*3+bestAxis],cmin,sc)<=bestBin) i++;
+        else {
+          faceID[i]=faceID[j];
+          faceID[j--]=f;
+        }
+      }
+      mid=i;
+      if(mid==from || mid==to) mid=(from+to)/2;
+    }
+
+    return mid;
+  }
+
+  private int leaf(int n,int from,int cnt) {
+    node[n*2]=from;
+    node[n*2+1]=cnt;
+    return -1;
+  }
+
+  private static int bin(float c,float cmin,float scale) {
+    int bin=(int)((c-cmin)*scale);
+    return bin<BINS ? bin : BINS-1;
+  }
+
+  private static void resetBounds(float b[]) {
+    b[0]=b[1]=b[2]=Float.MAX_VALUE;
+    b[3]=b[4]=b[5]=-Float.MAX_VALUE;
+  }
+
+  private static void grow(float acc[],float bb[],int i) {
+    for(int j=0; j<3; j++) {
+      acc[j]=min(acc[j],bb[i*6+j]);
+      acc[j+3]=max(acc[j+3],bb[i*6+3+j]);
+    }
+  }
+
+  private static float area(float b[]) {
+    float dx=b[3]-b[0],dy=b[4]-b[1],dz=b[5]-b[2];
+    if(dx<0) return 0;
+    return dx*dy+dy*dz+dz*dx;
+  }
+
+  /**
+   * Updates face coordinates from the parent UGeo and recalculates node
+   * bounds, without changing the tree structure. Use after vertices have
+   * been moved. The tree may become less efficient if they moved far.
+   * @return
+   */
+  public UBVH refit() {
+    if(parent==null || fn==0) return this;
+    ArrayList<UFace> faces=parent.getF();
+    if(faces.size()!=fn) {
+      logErr("UBVH.refit: face count changed, rebuild needed");
+      return this;
+    }
+
+    float t[]=new float[fn*9];
+    readFaces(faces, t);
+    for(int i=0; i<fn; i++) System.arraycopy(t, faceID[i]*9, tri, i*9, 9);
+
+    // children are always allocated after their parent
+    for(int n=nodeNum-1; n>-1; n--) {
+      int id=n*6;
+      if(node[n*2+1]>0) {
+        for(int j=0; j<3; j++) {
+          nodeBB[id+j]=Float.MAX_VALUE;
+          nodeBB[id+3+j]=-Float.MAX_VALUE;
+        }
+        int first=node[n*2],last=first+node[n*2+1];
+        for(int i=first*3; i<last*3; i++) {
+          for(int j=0; j<3; j++) {
+            nodeBB[id+j]=min(nodeBB[id+j],tri[i*3+j]);
+            nodeBB[id+3+j]=max(nodeBB[id+3+j],tri[i*3+j]);
+          }
+        }
+      }
+      else {
+        int c1=node[n*2]*6,c2=c1+6;
+        for(int j=0; j<3; j++) {
+          nodeBB[id+j]=min(nodeBB[c1+j],nodeBB[c2+j]);
+          nodeBB[id+3+j]=max(nodeBB[c1+3+j],nodeBB[c2+3+j]);
+        }
+      }
+    }
+    return this;
+  }
+
+  ///////////////////////////////////////
+  // RAY QUERIES
+
+  /**
+   * Finds the nearest face hit by a ray. Faces are hit from both sides.
+   * @param origin
+   * @param dir Ray direction, need not be normalized
+   * @param hit Result, <code>hit.dist</code> is the distance to the hit point
+   * @return <code>true</code> if a face was hit
+   */
+  public boolean ray(UVertex origin,UVertex dir,Hit hit) {
+    return ray(origin, dir, Float.MAX_VALUE, hit);
+  }
+
+  /**
+   * Finds the nearest face hit by a ray within a distance of <code>maxDist</code>.
+   */
+  public boolean ray(UVertex origin,UVertex dir,float maxDist,Hit hit) {
+    float l=dir.mag();
+    if(l<EPSILON) return false;
+    return intersect(origin.x,origin.y,origin.z,
+        dir.x/l,dir.y/l,dir.z/l, maxDist, hit, false);
+  }
+
+  /**
+   * Finds the face hit by the line segment from <code>a</code> to <code>b</code>
+   * that is nearest to <code>a</code>.
+   */
+  public boolean segment(UVertex a,UVertex b,Hit hit) {
+    float dx=b.x-a.x,dy=b.y-a.y,dz=b.z-a.z;
+    float l=(float)Math.sqrt(dx*dx+dy*dy+dz*dz);
+    if(l<EPSILON) return false;
+    return intersect(a.x,a.y,a.z, dx/l,dy/l,dz/l, l, hit, false);
+  }
+
+  /**
+   * Tests whether the line segment from <code>a</code> to <code>b</code>
+   * intersects any face, returning on the first hit found.
+   */
+  public boolean intersects(UVertex a,UVertex b) {
+    float dx=b.x-a.x,dy=b.y-a.y,dz=b.z-a.z;
+    float l=(float)Math.sqrt(dx*dx+dy*dy+dz*dz);
+    if(l<EPSILON) return false;
+    return intersect(a.x,a.y,a.z, dx/l,dy/l,dz/l, l, new Hit(), true);
+  }
+
+  private boolean intersect(float ox,float oy,float oz,
+      float dx,float dy,float dz,float maxDist,Hit hit,boolean any) {
+    hit.reset();
+    if(fn==0) return false;
+
+    float ix=1/dx,iy=1/dy,iz=1/dz;
+    float best=maxDist;
+    int stack[]=new int[64],sp=0;
+    stack[sp++]=0;
+
+    while(sp>0) {
+      int n=stack[--sp];
+      if(slab(n, ox,oy,oz, ix,iy,iz, best)==Float.MAX_VALUE) continue;
+
+      int cnt=node[n*2+1];
+      if(cnt>0) {
+        int first=node[n*2];
+        for(int i=first; i<first+cnt; i++) {
+          float t=rayTriangle(i, ox,oy,oz, dx,dy,dz, best, hit);
+          if(t<best) {
+            best=t;
+            hit.faceID=faceID[i];
+            if(any) return true;
+          }
+        }
+        continue;
+      }
+
+      // push the farther child first, so the nearer one is visited first
+      int c=node[n*2];
+      float t1=slab(c, ox,oy,oz, ix,iy,iz, best);
+      float t2=slab(c+1, ox,oy,oz, ix,iy,iz, best);
+      if(sp+2>stack.length) stack=Arrays.copyOf(stack, stack.length*2);
+      if(t1<=t2) {
+        if(t2<Float.MAX_VALUE) stack[sp++]=c+1;
+        if(t1<Float.MAX_VALUE) stack[sp++]=c;
+      }
+      else {
+        if(t1<Float.MAX_VALUE) stack[sp++]=c;
+        stack[sp++]=c+1;
+      }
+    }
+
+    if(hit.faceID<0) return false;
+    hit.dist=best;
+    hit.pt.set(ox+dx*best, oy+dy*best, oz+dz*best);
+    return true;
+  }
+
+  /**
+   * Ray-box slab test.
+   * @return Entry distance, or <code>Float.MAX_VALUE</code> if the box is missed
+   * or further away than <code>maxDist</code>.
+   */
+  private float slab(int n,float ox,float oy,float oz,
+      float ix,float iy,float iz,float maxDist) {
+    int id=n*6;
+    float tmin=0,tmax=maxDist;
+    tmin=slabMin(tmin, (nodeBB[id]-ox)*ix, (nodeBB[id+3]-ox)*ix);
+    tmax=slabMax(tmax, (nodeBB[id]-ox)*ix, (nodeBB[id+3]-ox)*ix);
+    tmin=slabMin(tmin, (nodeBB[id+1]-oy)*iy, (nodeBB[id+4]-oy)*iy);
+    tmax=slabMax(tmax, (nodeBB[id+1]-oy)*iy, (nodeBB[id+4]-oy)*iy);
+    tmin=slabMin(tmin, (nodeBB[id+2]-oz)*iz, (nodeBB[id+5]-oz)*iz);
+    tmax=slabMax(tmax, (nodeBB[id+2]-oz)*iz, (nodeBB[id+5]-oz)*iz);
+
+    if(tmax<tmin) return Float.MAX_VALUE;
+    return tmin;
+  }
+
+  // NaN (from 0*infinity, for rays parallel to and exactly on a box
+  // plane) is treated as an unbounded slab
+
+  private static float slabMin(float tmin,float t1,float t2) {
+    if(t1!=t1) t1=Float.NEGATIVE_INFINITY;
+    if(t2!=t2) t2=Float.NEGATIVE_INFINITY;
+    float t=(t1<t2 ? t1 : t2);
+    return t>tmin ? t : tmin;
+  }
+
+  private static float slabMax(float tmax,float t1,float t2) {
+    if(t1!=t1) t1=Float.POSITIVE_INFINITY;
+    if(t2!=t2) t2=Float.POSITIVE_INFINITY;
+    float t=(t1>t2 ? t1 : t2);
+    return t<tmax ? t : tmax;
+  }
+
+  /**
+   * Moller-Trumbore ray-triangle test for the face stored at position
+   * <code>i</code>, writing barycentric coordinates to <code>hit</code>
+   * if a hit closer than <code>maxDist</code> is found.
+   * @return Distance to hit, or <code>Float.MAX_VALUE</code>
+   */
+  private float rayTriangle(int i,float ox,float oy,float oz,
+      float dx,float dy,float dz,float maxDist,Hit hit) {
+    int id=i*9;
+    float x0=tri[id],y0=tri[id+1],z0=tri[id+2];
+    float e1x=tri[id+3]-x0,e1y=tri[id+4]-y0,e1z=tri[id+5]-z0;
+    float e2x=tri[id+6]-x0,e2y=tri[id+7]-y0,e2z=tri[id+8]-z0;
+
+    float px=dy*e2z-dz*e2y,py=dz*e2x-dx*e2z,pz=dx*e2y-dy*e2x;
+    float det=e1x*px+e1y*py+e1z*pz;
+    if(det>-1e-12f && det<1e-12f) return Float.MAX_VALUE;
+    float inv=1/det;
+
+    float sx=ox-x0,sy=oy-y0,sz=oz-z0;
+    float u=(sx*px+sy*py+sz*pz)*inv;
+    if(u<0 || u>1) return Float.MAX_VALUE;
+
+    float qx=sy*e1z-sz*e1y,qy=sz*e1x-sx*e1z,qz=sx*e1y-sy*e1x;
+    float v=(dx*qx+dy*qy+dz*qz)*inv;
+    if(v<0 || u+v>1) return Float.MAX_VALUE;
+
+    float t=(e2x*qx+e2y*qy+e2z*qz)*inv;
+    if(t<0 || t>=maxDist) return Float.MAX_VALUE;
+
+    hit.u=u;
+    hit.v=v;
+    return t;
+  }
+
+  ///////////////////////////////////////
+  // CLOSEST POINT
+
+  /**
+   * Finds the point on the mesh surface closest to <code>p</code>.
+   * @param p
+   * @param hit Result, <code>hit.pt</code> is the closest point
+   * @return <code>true</code> unless the tree is empty
+   */
+  public boolean closest(UVertex p,Hit hit) {
+    return closest(p, Float.MAX_VALUE, hit);
+  }
+
+  /**
+   * Finds the point on the mesh surface closest to <code>p</code>,
+   * ignoring faces further away than <code>maxDist</code>.
+   */
+  public boolean closest(UVertex p,float maxDist,Hit hit) {
+    hit.reset();
+    if(fn==0) return false;
+
+    float px=p.x,py=p.y,pz=p.z;
+    float best=(maxDist<Float.MAX_VALUE ? maxDist*maxDist : Float.MAX_VALUE);
+    float res[]=new float[5];
+    int stack[]=new int[64],sp=0;
+    stack[sp++]=0;
+
+    while(sp>0) {
+      int n=stack[--sp];
+      if(boxDist(n,px,py,pz)>best) continue;
+
+      int cnt=node[n*2+1];
+      if(cnt>0) {
+        int first=node[n*2];
+        for(int i=first; i<first+cnt; i++) {
+          float d=closestTriangle(i, px,py,pz, res);
+          if(d<best) {
+            best=d;
+            hit.faceID=faceID[i];
+            hit.pt.set(res[0],res[1],res[2]);
+            hit.u=res[3];
+            hit.v=res[4];
+          }
+        }
+        continue;
+      }
+
+      int c=node[n*2];
+      float d1=boxDist(c,px,py,pz),d2=boxDist(c+1,px,py,pz);
+      if(sp+2>stack.length) stack=Arrays.copyOf(stack, stack.length*2);
+      if(d1<=d2) {
+        if(d2<=best) stack[sp++]=c+1;
+        if(d1<=best) stack[sp++]=c;
+      }
+      else {
+        if(d1<=best) stack[sp++]=c;
+        if(d2<=best) stack[sp++]=c+1;
+      }
+    }
+
+    if(hit.faceID<0) return false;
+    hit.dist=(float)Math.sqrt(best);
+    return true;
+  }
+
+  /**
+   * @return Squared distance from point to the bounds of node <code>n</code>.
+   */
+  private float boxDist(int n,float px,float py,float pz) {
+    int id=n*6;
+    float dx=max(0,max(nodeBB[id]-px,px-nodeBB[id+3]));
+    float dy=max(0,max(nodeBB[id+1]-py,py-nodeBB[id+4]));
+    float dz=max(0,max(nodeBB[id+2]-pz,pz-nodeBB[id+5]));
+    return dx*dx+dy*dy+dz*dz;
+  }
+
+  /**
+   * Closest point on the face stored at position <code>i</code>, from
+   * Ericson, "Real-Time Collision Detection". Writes the point and its
+   * barycentric coordinates to <code>res</code>.
+   * @return Squared distance
+   */
+  private float closestTriangle(int i,float px,float py,float pz,float res[]) {
+    int id=i*9;
+    float ax=tri[id],ay=tri[id+1],az=tri[id+2];
+    float abx=tri[id+3]-ax,aby=tri[id+4]-ay,abz=tri[id+5]-az;
+    float acx=tri[id+6]-ax,acy=tri[id+7]-ay,acz=tri[id+8]-az;
+    float apx=px-ax,apy=py-ay,apz=pz-az;
+
+    float u,v;
+    float d1=abx*apx+aby*apy+abz*apz;
+    float d2=acx*apx+acy*apy+acz*apz;
+    if(d1<=0 && d2<=0) {
+      u=0; v=0;
+    }
+    else {
+      float bpx=apx-abx,bpy=apy-aby,bpz=apz-abz;
+      float d3=abx*bpx+aby*bpy+abz*bpz;
+      float d4=acx*bpx+acy*bpy+acz*bpz;
+      float cpx=apx-acx,cpy=apy-acy,cpz=apz-acz;
+      float d5=abx*cpx+aby*cpy+abz*cpz;
+      float d6=acx*cpx+acy*cpy+acz*cpz;
+
+      float vc=d1*d4-d3*d2;
+      float vb=d5*d2-d1*d6;
+      float va=d3*d6-d5*d4;
+
+      if(d3>=0 && d4<=d3) {
+        u=1; v=0;
+      }
+      else if(d6>=0 && d5<=d6) {
+        u=0; v=1;
+      }
+      else if(vc<=0 && d1>=0 && d3<=0) {
+        u=d1/(d1-d3); v=0;
+      }
+      else if(vb<=0 && d2>=0 && d6<=0) {
+        u=0; v=d2/(d2-d6);
+      }
+      else if(va<=0 && (d4-d3)>=0 && (d5-d6)>=0) {
+        v=(d4-d3)/((d4-d3)+(d5-d6));
+        u=1-v;
+      }
+      else {
+        float denom=1/(va+vb+vc);
+        u=vb*denom;
+        v=vc*denom;
+      }
+    }
+
+    float x=ax+abx*u+acx*v,y=ay+aby*u+acy*v,z=az+abz*u+acz*v;
+    res[0]=x;
+    res[1]=y;
+    res[2]=z;
+    res[3]=u;
+    res[4]=v;
+    x-=px;
+    y-=py;
+    z-=pz;
+    return x*x+y*y+z*z;
+  }
+
+  ///////////////////////////////////////
+  // OVERLAP QUERIES
+
+  /**
+   * Finds all faces intersecting or inside the sphere given by
+   * <code>center</code> and <code>r</code>.
+   * @param res Array for face IDs, must have room for all results
+   * (at most <code>sizeF()</code>)
+   * @return Number of faces found
+   */
+  public int sphere(UVertex center,float r,int res[]) {
+    if(fn==0) return 0;
+
+    float px=center.x,py=center.y,pz=center.z,r2=r*r;
+    float tmp[]=new float[5];
+    int stack[]=new int[64],sp=0,num=0;
+    stack[sp++]=0;
+
+    while(sp>0) {
+      int n=stack[--sp];
+      if(boxDist(n,px,py,pz)>r2) continue;
+
+      int cnt=node[n*2+1];
+      if(cnt>0) {
+        int first=node[n*2];
+        for(int i=first; i<first+cnt; i++) {
+          if(closestTriangle(i, px,py,pz, tmp)<=r2) res[num++]=faceID[i];
+        }
+        continue;
+      }
+
+      if(sp+2>stack.length) stack=Arrays.copyOf(stack, stack.length*2);
+      stack[sp++]=node[n*2];
+      stack[sp++]=node[n*2]+1;
+    }
+
+    return num;
+  }
+
+  /**
+   * Finds all faces intersecting or inside the box <code>bb</code>.
+   * @param res Array for face IDs, must have room for all results
+   * (at most <code>sizeF()</code>)
+   * @return Number of faces found
+   */
+  public int box(UBB bb,int res[]) {
+    if(fn==0) return 0;
+
+    float b[]={bb.min.x,bb.min.y,bb.min.z,bb.max.x,bb.max.y,bb.max.z};
+    int stack[]=new int[64],sp=0,num=0;
+    stack[sp++]=0;
+
+    while(sp>0) {
+      int n=stack[--sp],id=n*6;
+      if(nodeBB[id]>b[3] || nodeBB[id+3]<b[0] ||
+          nodeBB[id+1]>b[4] || nodeBB[id+4]<b[1] ||
+          nodeBB[id+2]>b[5] || nodeBB[id+5]<b[2]) continue;
+
+      int cnt=node[n*2+1];
+      if(cnt>0) {
+        int first=node[n*2];
+        for(int i=first; i<first+cnt; i++) {
+          if(boxTriangle(i, b)) res[num++]=faceID[i];
+        }
+        continue;
+      }
+
+      if(sp+2>stack.length) stack=Arrays.copyOf(stack, stack.length*2);
+      stack[sp++]=node[n*2];
+      stack[sp++]=node[n*2]+1;
+    }
+
+    return num;
+  }
+
+  /**
+   * Convenience version of {@link #box(UBB, int[])} returning faces
+   * from the parent UGeo.
+   */
+  public ArrayList<UFace> box(UBB bb) {
+    int res[]=new int[fn];
+    int n=box(bb, res);
+    return getF(res, n);
+  }
+
+  /**
+   * Convenience version of {@link #sphere(UVertex, float, int[])} returning
+   * faces from the parent UGeo.
+   */
+  public ArrayList<UFace> sphere(UVertex center,float r) {
+    int res[]=new int[fn];
+    int n=sphere(center, r, res);
+    return getF(res, n);
+  }
+
+  private ArrayList<UFace> getF(int id[],int n) {
+    ArrayList<UFace> l=new ArrayList<UFace>(n);
+    if(parent==null) return l;
+    for(int i=0; i<n; i++) l.add(parent.getF(id[i]));
+    return l;
+  }
+
+  /**
+   * Triangle-box overlap test using separating axes, after Akenine-Moller.
+   */
+  private boolean boxTriangle(int i,float b[]) {
+    float cx=(b[0]+b[3])*0.5f,cy=(b[1]+b[4])*0.5f,cz=(b[2]+b[5])*0.5f;
+    float hx=(b[3]-b[0])*0.5f,hy=(b[4]-b[1])*0.5f,hz=(b[5]-b[2])*0.5f;
+
+    int id=i*9;
+    float v[]=new float[9];
+    for(int j=0; j<9; j+=3) {
+      v[j]=tri[id+j]-cx;
+      v[j+1]=tri[id+j+1]-cy;
+      v[j+2]=tri[id+j+2]-cz;
+    }
+
+    // box axes
+    for(int j=0; j<3; j++) {
+      float h=(j==0 ? hx : (j==1 ? hy : hz));
+      if(min(v[j],min(v[3+j],v[6+j]))>h ||
+          max(v[j],max(v[3+j],v[6+j]))<-h) return false;
+    }
+
+    // cross products of edges and box axes
+    float e[]=new float[9];
+    for(int j=0; j<3; j++) {
+      int a=j*3,c=((j+1)%3)*3;
+      e[a]=v[c]-v[a];
+      e[a+1]=v[c+1]-v[a+1];
+      e[a+2]=v[c+2]-v[a+2];
+    }
+
+    for(int j=0; j<3; j++) {
+      float ex=e[j*3],ey=e[j*3+1],ez=e[j*3+2];
+      if(!axisTest(v, 0,-ez,ey, hx,hy,hz)) return false;
+      if(!axisTest(v, ez,0,-ex, hx,hy,hz)) return false;
+      if(!axisTest(v, -ey,ex,0, hx,hy,hz)) return false;
+    }
+
+    // face normal
+    float nx=e[1]*e[5]-e[2]*e[4];
+    float ny=e[2]*e[3]-e[0]*e[5];
+    float nz=e[0]*e[4]-e[1]*e[3];
+    return axisTest(v, nx,ny,nz, hx,hy,hz);
+  }
+
+  private static boolean axisTest(float v[],float ax,float ay,float az,
+      float hx,float hy,float hz) {
+    float p0=v[0]*ax+v[1]*ay+v[2]*az;
+    float p1=v[3]*ax+v[4]*ay+v[5]*az;
+    float p2=v[6]*ax+v[7]*ay+v[8]*az;
+    float r=hx*abs(ax)+hy*abs(ay)+hz*abs(az);
+    return !(min(p0,min(p1,p2))>r || max(p0,max(p1,p2))<-r);
+  }
+
+  public String str() {
+    return "[UBVH f="+fn+" nodes="+nodeNum+"]";
+  }
+}
@@ -1,6 +1,9 @@
 package unlekker.mb2.geo;
 
+import java.util.Arrays;
+
 import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
 
 public class UCurve extends UMB {
   public UVertexList input,output;
@@ -44,42 +47,324 @@ public class UCurve extends UMB {
   }
 
   
+  /**
+   * Piecewise cubic Bezier curve through control points <code>cp</code>, where
+   * consecutive segments share their end points (4 points for the first segment, 
+   * 3 for each following one). Each segment is sampled with <code>n</code> points.
+   * @param cp
+   * @param n
+   * @return
+   */
   public static UVertexList bezier(UVertexList cp,int n) {
-    UVertexList res=new UVertexList();
-    int nseg=(cp.size()-1)/3;
-    
-    for(int i=0; i<nseg; i++) {
-      UVertexList tmp=bezier(cp.extractArray(i*3,i*3+3),n);
-      if(i<nseg-1) tmp.remove(tmp.size()-1);
-      res.add(tmp);
-    }
-    
-    return res;
+    return eval(CURVEBEZIER, cp, n);
   }
 
+  /**
+   * Cubic Bezier curve using the first 4 vertices of <code>v</code>,
+   * sampled with <code>n</code> points. 
+   */
   public static UVertexList bezier(UVertex v[],int n) {
-    UVertexList l=new UVertexList();
-    
+    UVertexList cp=new UVertexList();
+    for(int i=0; i<4; i++) cp.add(v[i]);
+    return eval(CURVEBEZIER, cp, n);
+  }
+
+  /**
+   * Catmull-Rom spline passing through all vertices in <code>cp</code>, 
+   * with <code>n</code> points per segment. Closed if <code>cp</code> is closed.
+   */
+  public static UVertexList catmullRom(UVertexList cp,int n) {
+    return eval(CURVECATMULLROM, cp, n);
+  }
+
+  /**
+   * Uniform cubic B-spline approximating the vertices in <code>cp</code>, 
+   * with <code>n</code> points per segment. Closed if <code>cp</code> is closed.
+   */
+  public static UVertexList bspline(UVertexList cp,int n) {
+    return eval(CURVEBSPLINE, cp, n);
+  }
+
+  /**
+   * Evaluates a curve of the given type with <code>n</code> points per segment,
+   * see {@link #eval(int, float[], int, boolean, int, float[])}. 
+   * @param type {@link #CURVEBEZIER}, {@link #CURVECATMULLROM} or {@link #CURVEBSPLINE}
+   * @param cp Control points. For Catmull-Rom and B-spline curves a closed list
+   * (last vertex equal to the first) gives a closed curve.
+   * @param n
+   * @return
+   */
+  public static UVertexList eval(int type,UVertexList cp,int n) {
+    boolean closed=isClosed(type, cp);
+    int cpn=cp.size()-(closed ? 1 : 0);
+    float xyz[]=eval(type, toArray(cp,cpn), cpn, closed, n, null);
+    return toList(xyz, size(type, cpn, closed, n));
+  }
+
+  /**
+   * Adaptive version of {@link #eval(int, UVertexList, int)}, see 
+   * {@link #flatten(int, float[], int, boolean, float)}.
+   */
+  public static UVertexList flatten(int type,UVertexList cp,float tolerance) {
+    boolean closed=isClosed(type, cp);
+    int cpn=cp.size()-(closed ? 1 : 0);
+    float xyz[]=flatten(type, toArray(cp,cpn), cpn, closed, tolerance);
+    return toList(xyz, xyz.length/3);
+  }
+
+  private static boolean isClosed(int type,UVertexList cp) {
+    return type!=CURVEBEZIER && cp.size()>3 && cp.isClosed();
+  }
+
+  private static float[] toArray(UVertexList vl,int n) {
+    float xyz[]=new float[n*3];
     for(int i=0; i<n; i++) {
-      float t=map(i,0,n-1,0,1);
-      float t1 = 1.0f - t;      
-      float t1sq=t1*t1,tsq=t*t;
-      float c1=t1sq*t1;
-      float c2=3*t*t1sq;
-      float c3=3*tsq*t1;
-      float c4=t*tsq;
-      
-      UVertex vv=new UVertex(
-          v[0].x*c1+v[1].x*c2+v[2].x*c3+v[3].x*c4,
-          v[0].y*c1+v[1].y*c2+v[2].y*c3+v[3].y*c4,
-          v[0].z*c1+v[1].z*c2+v[2].z*c3+v[3].z*c4
-      );
-      l.add(vv);
+      UVertex vv=vl.get(i);
+      xyz[i*3]=vv.x;
+      xyz[i*3+1]=vv.y;
+      xyz[i*3+2]=vv.z;
     }
-    
-    return l; 
+    return xyz;
+  }
+
+  private static UVertexList toList(float xyz[],int n) {
+    UVertexList vl=new UVertexList();
+    vl.ensureCapacity(n);
+    vl.enable(NOCOPY);
+    for(int i=0; i<n; i++) vl.add(new UVertex(xyz[i*3],xyz[i*3+1],xyz[i*3+2]));
+    vl.disable(NOCOPY);
+    return vl;
+  }
+
+  ////////////////////////////////////////////
+  // BATCH EVALUATION
+
+  /**
+   * Maximum recursion depth for {@link #flatten(int, float[], int, boolean, float)}.
+   */
+  public static int FLATTENMAXDEPTH=16;
+
+  /**
+   * @return Number of segments in a curve with <code>cpn</code> control points. 
+   */
+  public static int segments(int type,int cpn,boolean closed) {
+    if(type==CURVEBEZIER) return Math.max(0, (cpn-1)/3);
+    if(closed) return (cpn>2 ? cpn : 0);
+    if(type==CURVECATMULLROM) return Math.max(0, cpn-1);
+    return Math.max(0, cpn-3);
+  }
+
+  /**
+   * @return Number of points produced by {@link #eval(int, float[], int, boolean, int, float[])}.
+   * Segments share end points, and the last point of a closed curve equals the first.
+   */
+  public static int size(int type,int cpn,boolean closed,int n) {
+    int nseg=segments(type, cpn, closed);
+    return (nseg<1 ? 0 : nseg*(Math.max(n,2)-1)+1);
+  }
+
+  /**
+   * Index of control point <code>k</code> (0..3) of segment <code>s</code>.
+   */
+  private static int cpIndex(int type,int s,int k,int cpn,boolean closed) {
+    if(type==CURVEBEZIER) return s*3+k;
+    int id=(type==CURVECATMULLROM ? s-1+k : s+k);
+    if(closed) return ((id%cpn)+cpn)%cpn;
+    return (id<0 ? 0 : (id>=cpn ? cpn-1 : id));
+  }
+
+  /**
+   * Returns a table of basis weights for <code>n</code> evenly spaced values of 
+   * <code>t</code> in [0..1], 4 weights per value.  
+   */
+  public static float[] basis(int type,int n) {
+    float w[]=new float[n*4];
+    for(int i=0; i<n; i++) weights(type, (float)i/(float)(n-1), w, i*4);
+    return w;
   }
 
+  private static void weights(int type,float t,float w[],int off) {
+    float t2=t*t,t3=t2*t,t1=1-t;
+    if(type==CURVEBEZIER) {
+      w[off]=t1*t1*t1;
+      w[off+1]=3*t*t1*t1;
+      w[off+2]=3*t2*t1;
+      w[off+3]=t3;
+    }
+    else if(type==CURVECATMULLROM) {
+      w[off]=0.5f*(-t3+2*t2-t);
+      w[off+1]=0.5f*(3*t3-5*t2+2);
+      w[off+2]=0.5f*(-3*t3+4*t2+t);
+      w[off+3]=0.5f*(t3-t2);
+    }
+    else {
+      w[off]=t1*t1*t1/6f;
+      w[off+1]=(3*t3-6*t2+4)/6f;
+      w[off+2]=(-3*t3+3*t2+3*t+1)/6f;
+      w[off+3]=t3/6f;
+    }
+  }
+
+  /**
+   * <p>Evaluates a piecewise cubic curve into a float array (3 floats per point),
+   * with <code>n</code> evenly spaced values of t per segment. Points are
+   * calculated from a precomputed table of basis weights (see {@link #basis(int, int)}),
+   * with segments evaluated in parallel.</p>
+   * 
+   * <ul>
+   * <li>{@link #CURVEBEZIER} - Segments use control points [0..3], [3..6] etc.</li>
+   * <li>{@link #CURVECATMULLROM} - Interpolates all control points. Open curves
+   * repeat their end points.</li>
+   * <li>{@link #CURVEBSPLINE} - Uniform B-spline, approximating the control points.</li>
+   * </ul>
+   * 
+   * @param type
+   * @param cp Control points, 3 floats per point
+   * @param cpn Number of control points
+   * @param closed Wrap around for Catmull-Rom and B-spline curves
+   * @param n Points per segment
+   * @param res Array to store result in, or null. A new array is created if 
+   * <code>res</code> is too small.
+   * @return Array containing {@link #size(int, int, boolean, int)} points
+   */
+  public static float[] eval(final int type,final float cp[],final int cpn,
+      final boolean closed,int n,float res[]) {
+    final int nseg=segments(type, cpn, closed);
+    final int ns=Math.max(n,2);
+    int num=size(type, cpn, closed, ns);
+    if(res==null || res.length<num*3) res=new float[num*3];
+    if(nseg<1) return res;
+
+    final float w[]=basis(type, ns),out[]=res;
+    UParallel.run(nseg, Math.max(1, UParallel.MINCHUNK/ns), new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int s=from; s<to; s++) {
+          int a=cpIndex(type,s,0,cpn,closed)*3,b=cpIndex(type,s,1,cpn,closed)*3;
+          int c=cpIndex(type,s,2,cpn,closed)*3,d=cpIndex(type,s,3,cpn,closed)*3;
+
+          // shared end points are written by the following segment
+          int cnt=(s==nseg-1 ? ns : ns-1),id=s*(ns-1)*3;
+          for(int j=0; j<cnt*4; j+=4) {
+            float w0=w[j],w1=w[j+1],w2=w[j+2],w3=w[j+3];
+            out[id++]=cp[a]*w0+cp[b]*w1+cp[c]*w2+cp[d]*w3;
+            out[id++]=cp[a+1]*w0+cp[b+1]*w1+cp[c+1]*w2+cp[d+1]*w3;
+            out[id++]=cp[a+2]*w0+cp[b+2]*w1+cp[c+2]*w2+cp[d+2]*w3;
+          }
+        }
+      }
+    });
+
+    return res;
+  }
+
+  /**
+   * Adaptive version of {@link #eval(int, float[], int, boolean, int, float[])}.
+   * Each segment is split recursively until the curve deviates less than 
+   * <code>tolerance</code> from a straight line, so that flat parts of the 
+   * curve use few points and tight bends use many. 
+   * @return Array of points, 3 floats per point
+   */
+  public static float[] flatten(final int type,final float cp[],final int cpn,
+      final boolean closed,final float tolerance) {
+    final int nseg=segments(type, cpn, closed);
+    if(nseg<1) return new float[0];
+
+    final float seg[][]=new float[nseg][];
+    final int segN[]=new int[nseg];
+    UParallel.run(nseg, 16, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        float p[]=new float[12],buf[]=new float[64*3];
+        float p0[]=new float[3],p1[]=new float[3],w[]=new float[4];
+        float tmp[][]=new float[FLATTENMAXDEPTH+2][3];
+        int cnt[]=new int[1];
+        for(int s=from; s<to; s++) {
+          for(int k=0; k<4; k++) {
+            System.arraycopy(cp, cpIndex(type,s,k,cpn,closed)*3, p, k*3, 3);
+          }
+
+          point(type, p, 0, w, p0);
+          point(type, p, 1, w, p1);
+          cnt[0]=0;
+          buf=flatten(type, p, 0,p0, 1,p1, tolerance*tolerance, 0, tmp, w, buf, cnt);
+          seg[s]=Arrays.copyOf(buf, cnt[0]*3);
+          segN[s]=cnt[0];
+        }
+      }
+    });
+
+    int num=1;
+    for(int s=0; s<nseg; s++) num+=segN[s];
+    float res[]=new float[num*3];
+
+    float first[]=new float[12];
+    for(int k=0; k<4; k++) System.arraycopy(cp, cpIndex(type,0,k,cpn,closed)*3, first, k*3, 3);
+    point(type, first, 0, new float[4], res);
+
+    int id=3;
+    for(int s=0; s<nseg; s++) {
+      System.arraycopy(seg[s], 0, res, id, segN[s]*3);
+      id+=segN[s]*3;
+    }
+    return res;
+  }
+
+  /**
+   * Adds points on (t0..t1] to <code>buf</code>, not including the point at t0.
+   * <code>tmp</code> holds a midpoint per recursion level plus two quarter
+   * points, <code>w</code> is scratch space for basis weights.
+   */
+  private static float[] flatten(int type,float p[],
+      float t0,float p0[],float t1,float p1[],float tolSq,int depth,
+      float tmp[][],float w[],float buf[],int cnt[]) {
+    float tm=(t0+t1)*0.5f;
+    float pm[]=null;
+
+    // distance of the midpoint (and quarter points while the
+    // segment is still coarse) from the chord
+    boolean flat=(depth>=FLATTENMAXDEPTH);
+    if(!flat) {
+      pm=point(type, p, tm, w, tmp[depth]);
+      flat=distSq(pm,p0,p1)<tolSq;
+      if(flat && depth<2) {
+        float q[]=tmp[FLATTENMAXDEPTH+1];
+        flat=distSq(point(type, p, (t0+tm)*0.5f, w, q),p0,p1)<tolSq &&
+            distSq(point(type, p, (tm+t1)*0.5f, w, q),p0,p1)<tolSq;
+      }
+    }
+    if(flat) {
+      if((cnt[0]+1)*3>buf.length) buf=Arrays.copyOf(buf, buf.length*2);
+      System.arraycopy(p1, 0, buf, cnt[0]*3, 3);
+      cnt[0]++;
+      return buf;
+    }
+
+    buf=flatten(type, p, t0,p0, tm,pm, tolSq, depth+1, tmp, w, buf, cnt);
+    return flatten(type, p, tm,pm, t1,p1, tolSq, depth+1, tmp, w, buf, cnt);
+  }
+
+  /**
+   * Evaluates a single segment with control points <code>p</code> (4 points, 3 
+   * floats each) at <code>t</code>, using <code>w</code> for the basis weights.
+   */
+  private static float[] point(int type,float p[],float t,float w[],float res[]) {
+    weights(type, t, w, 0);
+    for(int j=0; j<3; j++) res[j]=p[j]*w[0]+p[3+j]*w[1]+p[6+j]*w[2]+p[9+j]*w[3];
+    return res;
+  }
+
+  /**
+   * Squared distance from <code>v</code> to the line segment <code>a-b</code>.
+   */
+  private static float distSq(float v[],float a[],float b[]) {
+    float dx=b[0]-a[0],dy=b[1]-a[1],dz=b[2]-a[2];
+    float l=dx*dx+dy*dy+dz*dz,t=0;
+    if(l>0) {
+      t=((v[0]-a[0])*dx+(v[1]-a[1])*dy+(v[2]-a[2])*dz)/l;
+      t=(t<0 ? 0 : (t>1 ? 1 : t));
+    }
+    float x=a[0]+dx*t-v[0],y=a[1]+dy*t-v[1],z=a[2]+dz*t-v[2];
+    return x*x+y*y+z*z;
+  }
 
   public static UVertex catmullRom(float t, UVertex p0, UVertex p1, UVertex p2, UVertex p3)  {
     UVertex vv=new UVertex(
@@ -0,0 +1,615 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UMetrics;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Mesh decimation by edge collapse, using the quadric error metric of
+ * Garland and Heckbert. Each vertex accumulates the planes of its faces as a
+ * quadric, collapsing an edge moves its vertices to the point minimizing the
+ * combined quadric. Edges are collapsed in order of increasing error using a
+ * binary heap with lazy deletion, until a target face count or error bound is
+ * reached.</p>
+ *
+ * <p>All mesh data is kept in primitive arrays (see {@link UGeoPacked}), and
+ * quadrics and initial edge costs are calculated in parallel. Collapses that
+ * would flip faces or create non-manifold edges are rejected. Open boundaries
+ * are preserved by adding heavily weighted planes perpendicular to boundary
+ * faces, see {@link #setBoundaryWeight(float)}.</p>
+ *
+ * <p>Decimation is progressive: each call to {@link #reduce(int)} continues
+ * from the result of the previous call, which makes building a chain of
+ * levels of detail cheap:</p>
+ *
+ * <pre>
+ * ArrayList&lt;UGeo&gt; lod=new UDecimate(geo).lod(4, 0.5f);
+ * </pre>
+ *
+ * <p>Vertices keep their U/V coordinates and faces their colors, the
+ * surviving vertex of a collapse keeps its own U/V.</p>
+ *
+ * @author marius
+ *
+ */
+public class UDecimate extends UMB {
+  private static final double MINCOS=0.2;
+
+  private static final UMetrics.Timer REDUCE=UMetrics.timer("geo.decimate");
+
+  private float xyz[],uv[];
+  private int tri[],color[];
+  private int vn,fn,faceNum;
+
+  private float boundaryWeight=1000;
+  private double maxCost=Double.POSITIVE_INFINITY,error;
+
+  // quadrics, 10 doubles per vertex (upper triangle of symmetric 4x4)
+  private double q[];
+  private boolean vDead[],vBorder[],fDead[];
+  private int stamp[];
+
+  // faces around each vertex as linked lists of corners (face*3+i)
+  private int vHead[],cNext[];
+  private int mark[],tag;
+
+  // heap of edge collapses, each key holds a float cost in the upper and
+  // an entry index in the lower 32 bits. Entries are stale if a vertex
+  // stamp has changed, freed entries are reused.
+  private long heap[];
+  private int hn;
+  private int eU[],eV[],eSU[],eSV[],eFree[];
+  private int en,freeNum;
+
+  // scratch space for the sequential collapse loop
+  private double pos[]=new double[3],qa[]=new double[10],c0[]=new double[4],c1[]=new double[4];
+
+  public UDecimate(UGeo geo) {
+    this(new UGeoPacked(geo));
+  }
+
+  /**
+   * Decimates a copy of <code>geo</code>, which is left unchanged.
+   */
+  public UDecimate(UGeoPacked geo) {
+    vn=geo.sizeV();
+    fn=geo.sizeF();
+    faceNum=fn;
+    xyz=Arrays.copyOf(geo.xyz, vn*3);
+    tri=Arrays.copyOf(geo.tri, fn*3);
+    if(geo.uv!=null) uv=Arrays.copyOf(geo.uv, vn*2);
+    if(geo.color!=null) color=Arrays.copyOf(geo.color, fn);
+  }
+
+  /**
+   * Sets the maximum error allowed for a collapse, as an approximate
+   * distance from the original surface. Decimation stops when no edge can be
+   * collapsed within this bound, even if the target face count has not been
+   * reached. The default is unbounded.
+   */
+  public UDecimate setMaxError(float err) {
+    maxCost=(err>0 ? (double)err*err : Double.POSITIVE_INFINITY);
+    return this;
+  }
+
+  /**
+   * Sets the weight of the planes used to preserve open boundaries
+   * (default 1000). Only has effect before the first call to {@link #reduce(int)}.
+   */
+  public UDecimate setBoundaryWeight(float w) {
+    boundaryWeight=w;
+    return this;
+  }
+
+  public int sizeF() {
+    return faceNum;
+  }
+
+  /**
+   * @return Largest error of the collapses performed so far, as a distance.
+   */
+  public float getError() {
+    return (float)Math.sqrt(error);
+  }
+
+  /**
+   * Collapses edges until the mesh has at most <code>target</code> faces or
+   * the error bound given by {@link #setMaxError(float)} is reached.
+   * @param target Face count
+   * @return Decimated mesh
+   */
+  public UGeoPacked reduce(int target) {
+    long t=REDUCE.start();
+    if(q==null) init();
+
+    while(faceNum>target && hn>0) {
+      int e=(int)heap[0];
+      double cost=Float.intBitsToFloat((int)(heap[0]>>>32));
+      int u=eU[e],v=eV[e];
+      if(vDead[u] || vDead[v] || stamp[u]!=eSU[e] || stamp[v]!=eSV[e]) {
+        pop();
+        continue;
+      }
+      if(cost>maxCost) break;
+      pop();
+
+      optimize(u,v,pos,qa);
+      if(!canCollapse(u,v,pos)) continue;
+      collapse(u,v,pos);
+      if(cost>error) error=cost;
+    }
+
+    REDUCE.stop(t);
+    return getResult();
+  }
+
+  /**
+   * Builds a chain of levels of detail, where each level has <code>ratio</code>
+   * times the faces of the previous one. The first level is the original mesh.
+   * Fewer levels are returned if the error bound is reached.
+   * @param levels Number of levels, including the original
+   * @param ratio Face count ratio between levels, for instance 0.5
+   * @return
+   */
+  public ArrayList<UGeo> lod(int levels,float ratio) {
+    ArrayList<UGeo> res=new ArrayList<UGeo>();
+    res.add(getResult().toUGeo());
+
+    float target=faceNum;
+    for(int i=1; i<levels; i++) {
+      target*=ratio;
+      int last=faceNum;
+      UGeoPacked geo=reduce((int)target);
+      if(faceNum==last) break;
+      res.add(geo.toUGeo());
+    }
+    return res;
+  }
+
+  /**
+   * @return Current state of the decimated mesh, with unused vertices removed.
+   * Remaining vertices keep their relative order.
+   */
+  public UGeoPacked getResult() {
+    int id[]=new int[vn];
+    Arrays.fill(id, -1);
+
+    // mark used vertices, then number them in their original order so
+    // that an unreduced mesh keeps its vertex indices
+    for(int f=0; f<fn; f++) if(fDead==null || !fDead[f]) {
+      for(int i=0; i<3; i++) id[tri[f*3+i]]=0;
+    }
+
+    UGeoPacked res=new UGeoPacked(vn, faceNum);
+    if(color!=null) res.color=new int[Math.max(faceNum,1)];
+    if(uv!=null) res.uv=new float[Math.max(vn,1)*2];
+
+    for(int v=0; v<vn; v++) if(id[v]==0) {
+      id[v]=res.addV(xyz[v*3],xyz[v*3+1],xyz[v*3+2]);
+      if(uv!=null) {
+        res.uv[id[v]*2]=uv[v*2];
+        res.uv[id[v]*2+1]=uv[v*2+1];
+      }
+    }
+
+    for(int f=0; f<fn; f++) if(fDead==null || !fDead[f]) {
+      int newID=res.addF(id[tri[f*3]],id[tri[f*3+1]],id[tri[f*3+2]]);
+      if(color!=null) res.color[newID]=color[f];
+    }
+
+    return res;
+  }
+
+  ///////////////////////////////////////////////////
+  // INITIALIZATION
+
+  private void init() {
+    vDead=new boolean[vn];
+    vBorder=new boolean[vn];
+    fDead=new boolean[fn];
+    stamp=new int[vn];
+    mark=new int[vn];
+
+    vHead=new int[vn];
+    cNext=new int[fn*3];
+    Arrays.fill(vHead, -1);
+    for(int c=fn*3-1; c>=0; c--) {
+      int v=tri[c];
+      cNext[c]=vHead[v];
+      vHead[v]=c;
+    }
+
+    // quadrics and boundary flags
+    q=new double[vn*10];
+    UParallel.run(vn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        int nb[]=new int[64];
+        for(int v=from; v<to; v++) nb=initVertex(v, nb);
+      }
+    });
+
+    // edges are listed by their lower vertex, count them then fill in parallel
+    final int start[]=new int[vn+1];
+    UParallel.run(vn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        int nb[]=new int[64];
+        for(int v=from; v<to; v++) {
+          nb=neighbours(v, nb);
+          int cnt=0;
+          for(int i=1; i<=nb[0]; i++) if(nb[i]>v) cnt++;
+          start[v+1]=cnt;
+        }
+      }
+    });
+    for(int v=0; v<vn; v++) start[v+1]+=start[v];
+
+    en=hn=start[vn];
+    int cap=Math.max(en*2,16);
+    heap=new long[cap];
+    eU=new int[cap];
+    eV=new int[cap];
+    eSU=new int[cap];
+    eSV=new int[cap];
+    eFree=new int[cap];
+
+    UParallel.run(vn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        int nb[]=new int[64];
+        double p[]=new double[3],a[]=new double[10];
+        for(int v=from; v<to; v++) {
+          nb=neighbours(v, nb);
+          int id=start[v];
+          for(int i=1; i<=nb[0]; i++) if(nb[i]>v) {
+            eU[id]=v;
+            eV[id]=nb[i];
+            heap[id]=key(optimize(v,nb[i],p,a), id);
+            id++;
+          }
+        }
+      }
+    });
+
+    for(int i=hn/2-1; i>=0; i--) down(i);
+  }
+
+  /**
+   * Calculates the quadric of vertex <code>v</code> from the planes of its
+   * faces, adding boundary planes for edges used by only one face.
+   */
+  private int[] initVertex(int v,int nb[]) {
+    double qq[]=new double[10];
+    double px=xyz[v*3],py=xyz[v*3+1],pz=xyz[v*3+2];
+
+    for(int c=vHead[v]; c>-1; c=cNext[c]) {
+      int f=c-c%3;
+      double n[]=faceNormal(f);
+      if(n==null) continue;
+      addPlane(qq, n[0],n[1],n[2], -(n[0]*px+n[1]*py+n[2]*pz), 1);
+    }
+
+    // boundary edges: neighbours shared by exactly one face around v
+    nb=neighbours(v, nb);
+    int cnt=nb[0];
+    for(int i=1; i<=cnt; i++) {
+      int w=nb[i],faces=0,face=-1;
+      for(int c=vHead[v]; c>-1; c=cNext[c]) {
+        int f=c-c%3;
+        if(tri[f]==w || tri[f+1]==w || tri[f+2]==w) {
+          faces++;
+          face=f;
+        }
+      }
+      if(faces!=1) continue;
+
+      vBorder[v]=true;
+      double n[]=faceNormal(face);
+      if(n==null) continue;
+
+      // plane through the edge, perpendicular to the face
+      double ex=xyz[w*3]-px,ey=xyz[w*3+1]-py,ez=xyz[w*3+2]-pz;
+      double bx=ey*n[2]-ez*n[1],by=ez*n[0]-ex*n[2],bz=ex*n[1]-ey*n[0];
+      double l=Math.sqrt(bx*bx+by*by+bz*bz);
+      if(l==0) continue;
+      bx/=l;
+      by/=l;
+      bz/=l;
+      addPlane(qq, bx,by,bz, -(bx*px+by*py+bz*pz), boundaryWeight);
+    }
+
+    System.arraycopy(qq, 0, q, v*10, 10);
+    return nb;
+  }
+
+  /**
+   * Collects the unique neighbours of <code>v</code> in <code>nb[1..nb[0]]</code>,
+   * growing <code>nb</code> if needed.
+   */
+  private int[] neighbours(int v,int nb[]) {
+    int cnt=0;
+    for(int c=vHead[v]; c>-1; c=cNext[c]) {
+      int f=c-c%3;
+      if(fDead!=null && fDead[f/3]) continue;
+      if(cnt+3>nb.length) nb=Arrays.copyOf(nb, nb.length*2);
+      for(int i=0; i<3; i++) if(tri[f+i]!=v) nb[++cnt]=tri[f+i];
+    }
+
+    Arrays.sort(nb, 1, cnt+1);
+    int n=0;
+    for(int i=1; i<=cnt; i++) if(n==0 || nb[i]!=nb[n]) nb[++n]=nb[i];
+    nb[0]=n;
+    return nb;
+  }
+
+  private double[] faceNormal(int f) {
+    int a=tri[f]*3,b=tri[f+1]*3,c=tri[f+2]*3;
+    double ex=xyz[c]-xyz[a],ey=xyz[c+1]-xyz[a+1],ez=xyz[c+2]-xyz[a+2];
+    double fx=xyz[b]-xyz[a],fy=xyz[b+1]-xyz[a+1],fz=xyz[b+2]-xyz[a+2];
+    double nx=ey*fz-fy*ez,ny=ez*fx-fz*ex,nz=ex*fy-fx*ey;
+    double l=Math.sqrt(nx*nx+ny*ny+nz*nz);
+    if(l==0) return null;
+    return new double[] {nx/l,ny/l,nz/l};
+  }
+
+  private static void addPlane(double qq[],double a,double b,double c,double d,double w) {
+    qq[0]+=w*a*a;
+    qq[1]+=w*a*b;
+    qq[2]+=w*a*c;
+    qq[3]+=w*a*d;
+    qq[4]+=w*b*b;
+    qq[5]+=w*b*c;
+    qq[6]+=w*b*d;
+    qq[7]+=w*c*c;
+    qq[8]+=w*c*d;
+    qq[9]+=w*d*d;
+  }
+
+  ///////////////////////////////////////////////////
+  // COLLAPSE
+
+  /**
+   * Finds the position minimizing the combined quadric of <code>u</code> and
+   * <code>v</code>, falling back to the best of the end points and midpoint
+   * if the quadric is singular.
+   * @param a Scratch array of 10 doubles
+   * @return Error at the position stored in <code>p</code>
+   */
+  private double optimize(int u,int v,double p[],double a[]) {
+    for(int i=0; i<10; i++) a[i]=q[u*10+i]+q[v*10+i];
+
+    // cofactors of the 3x3 part
+    double c00=a[4]*a[7]-a[5]*a[5],c01=a[2]*a[5]-a[1]*a[7],c02=a[1]*a[5]-a[2]*a[4];
+    double det=a[0]*c00+a[1]*c01+a[2]*c02;
+    double s=Math.abs(a[0])+Math.abs(a[4])+Math.abs(a[7]);
+
+    if(Math.abs(det)>1e-9*s*s*s) {
+      double c11=a[0]*a[7]-a[2]*a[2],c12=a[1]*a[2]-a[0]*a[5],c22=a[0]*a[4]-a[1]*a[1];
+      p[0]=-(c00*a[3]+c01*a[6]+c02*a[8])/det;
+      p[1]=-(c01*a[3]+c11*a[6]+c12*a[8])/det;
+      p[2]=-(c02*a[3]+c12*a[6]+c22*a[8])/det;
+      return Math.max(0, error(a, p[0],p[1],p[2]));
+    }
+
+    double best=Double.POSITIVE_INFINITY;
+    for(int i=0; i<3; i++) {
+      double t=i*0.5;
+      double x=xyz[u*3]+(xyz[v*3]-xyz[u*3])*t;
+      double y=xyz[u*3+1]+(xyz[v*3+1]-xyz[u*3+1])*t;
+      double z=xyz[u*3+2]+(xyz[v*3+2]-xyz[u*3+2])*t;
+      double e=error(a, x,y,z);
+      if(e<best) {
+        best=e;
+        p[0]=x;
+        p[1]=y;
+        p[2]=z;
+      }
+    }
+    return Math.max(0, best);
+  }
+
+  private static double error(double a[],double x,double y,double z) {
+    return a[0]*x*x+2*a[1]*x*y+2*a[2]*x*z+2*a[3]*x+
+        a[4]*y*y+2*a[5]*y*z+2*a[6]*y+
+        a[7]*z*z+2*a[8]*z+a[9];
+  }
+
+  /**
+   * Checks the link condition (so the result stays manifold) and that no
+   * face around <code>u</code> or <code>v</code> is flipped by moving it to
+   * <code>p</code>.
+   */
+  private boolean canCollapse(int u,int v,double p[]) {
+    int tagU=++tag;
+    for(int c=vHead[u]; c>-1; c=cNext[c]) {
+      int f=c-c%3;
+      if(fDead[f/3]) continue;
+      for(int i=0; i<3; i++) mark[tri[f+i]]=tagU;
+    }
+
+    int tagC=++tag,shared=0,common=0;
+    for(int c=vHead[v]; c>-1; c=cNext[c]) {
+      int f=c-c%3;
+      if(fDead[f/3]) continue;
+      boolean hasU=false;
+      for(int i=0; i<3; i++) {
+        int w=tri[f+i];
+        if(w==u) hasU=true;
+        else if(w!=v && mark[w]==tagU) {
+          mark[w]=tagC;
+          common++;
+        }
+      }
+      if(hasU) shared++;
+    }
+
+    if(shared==0 || common!=shared) return false;
+    if(shared>1 && vBorder[u] && vBorder[v]) return false;
+
+    return !flips(u,v,p) && !flips(v,u,p);
+  }
+
+  /**
+   * @return <code>true</code> if moving <code>u</code> to <code>p</code>
+   * flips or degenerates any of its faces not shared with <code>v</code>.
+   */
+  private boolean flips(int u,int v,double p[]) {
+    for(int c=vHead[u]; c>-1; c=cNext[c]) {
+      int f=c-c%3;
+      if(fDead[f/3]) continue;
+      if(tri[f]==v || tri[f+1]==v || tri[f+2]==v) continue;
+
+      // rotate the face so that u comes first, then compare the normals
+      // before and after moving u
+      int b=tri[f+(c+1)%3]*3,d=tri[f+(c+2)%3]*3;
+      double bx=xyz[b],by=xyz[b+1],bz=xyz[b+2];
+      double dx=xyz[d],dy=xyz[d+1],dz=xyz[d+2];
+      double n0[]=normal(dx,dy,dz, bx,by,bz, xyz[u*3],xyz[u*3+1],xyz[u*3+2], c0);
+      double n1[]=normal(dx,dy,dz, bx,by,bz, p[0],p[1],p[2], c1);
+      double l0=n0[3],l1=n1[3];
+      if(l0==0) continue;
+      if(l1==0 || (n0[0]*n1[0]+n0[1]*n1[1]+n0[2]*n1[2])<MINCOS*l0*l1) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Unnormalized normal of the face (p,b,d), with its length stored in
+   * <code>res[3]</code>.
+   */
+  private static double[] normal(double dx,double dy,double dz,
+      double bx,double by,double bz,double px,double py,double pz,double res[]) {
+    double ex=dx-px,ey=dy-py,ez=dz-pz;
+    double fx=bx-px,fy=by-py,fz=bz-pz;
+    res[0]=ey*fz-fy*ez;
+    res[1]=ez*fx-fz*ex;
+    res[2]=ex*fy-fx*ey;
+    res[3]=Math.sqrt(res[0]*res[0]+res[1]*res[1]+res[2]*res[2]);
+    return res;
+  }
+
+  /**
+   * Collapses <code>v</code> into <code>u</code>, moving <code>u</code> to
+   * <code>p</code>.
+   */
+  private void collapse(int u,int v,double p[]) {
+    xyz[u*3]=(float)p[0];
+    xyz[u*3+1]=(float)p[1];
+    xyz[u*3+2]=(float)p[2];
+    for(int i=0; i<10; i++) q[u*10+i]+=q[v*10+i];
+    vBorder[u]|=vBorder[v];
+    vDead[v]=true;
+
+    int last=-1;
+    for(int c=vHead[v]; c>-1; c=cNext[c]) {
+      last=c;
+      int f=c-c%3;
+      if(fDead[f/3]) continue;
+      if(tri[f]==u || tri[f+1]==u || tri[f+2]==u) {
+        fDead[f/3]=true;
+        faceNum--;
+      }
+      else tri[c]=u;
+    }
+    if(last>-1) {
+      cNext[last]=vHead[u];
+      vHead[u]=vHead[v];
+    }
+    vHead[v]=-1;
+    stamp[u]++;
+
+    // drop dead corners from u's list, then queue edges to all neighbours
+    int prev=-1,t=++tag;
+    for(int c=vHead[u]; c>-1; c=cNext[c]) {
+      int f=c-c%3;
+      if(fDead[f/3]) {
+        if(prev<0) vHead[u]=cNext[c];
+        else cNext[prev]=cNext[c];
+        continue;
+      }
+      prev=c;
+
+      for(int i=0; i<3; i++) {
+        int w=tri[f+i];
+        if(w!=u && mark[w]!=t) {
+          mark[w]=t;
+          push(u,w);
+        }
+      }
+    }
+  }
+
+  ///////////////////////////////////////////////////
+  // HEAP
+
+  private static long key(double cost,int e) {
+    return ((long)Float.floatToIntBits((float)cost)<<32) | e;
+  }
+
+  private void push(int u,int v) {
+    if(u>v) {
+      int tmp=u;
+      u=v;
+      v=tmp;
+    }
+
+    int e;
+    if(freeNum>0) e=eFree[--freeNum];
+    else {
+      if(en==eU.length) {
+        int cap=en*2;
+        eU=Arrays.copyOf(eU, cap);
+        eV=Arrays.copyOf(eV, cap);
+        eSU=Arrays.copyOf(eSU, cap);
+        eSV=Arrays.copyOf(eSV, cap);
+        eFree=Arrays.copyOf(eFree, cap);
+      }
+      e=en++;
+    }
+    eU[e]=u;
+    eV[e]=v;
+    eSU[e]=stamp[u];
+    eSV[e]=stamp[v];
+
+    if(hn==heap.length) heap=Arrays.copyOf(heap, hn*2);
+    long k=key(optimize(u,v,pos,qa), e);
+    int i=hn++;
+    while(i>0) {
+      int parent=(i-1)/2;
+      if(heap[parent]<=k) break;
+      heap[i]=heap[parent];
+      i=parent;
+    }
+    heap[i]=k;
+  }
+
+  private void pop() {
+    eFree[freeNum++]=(int)heap[0];
+    hn--;
+    if(hn>0) {
+      heap[0]=heap[hn];
+      down(0);
+    }
+  }
+
+  private void down(int i) {
+    long k=heap[i];
+    for(;;) {
+      int c=i*2+1;
+      if(c>=hn) break;
+      if(c+1<hn && heap[c+1]<heap[c]) c++;
+      if(k<=heap[c]) break;
+      heap[i]=heap[c];
+      i=c;
+    }
+    heap[i]=k;
+  }
+
+  public String str() {
+    return "[UDecimate v="+vn+" f="+faceNum+"/"+fn+" error="+nf(getError())+"]";
+  }
+}
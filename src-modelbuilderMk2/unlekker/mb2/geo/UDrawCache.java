@@ -0,0 +1,181 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import processing.core.PGraphics;
+import processing.core.PShape;
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Flattened vertex and color buffers for drawing a {@link UGeo}, used by
+ * {@link UGeo#draw(int)}. The buffers hold 9 floats per face (the coordinates
+ * of its 3 vertices) and one color per face, so that drawing replays them
+ * without walking UFace instances or calling {@link UFace#getV()}.</p>
+ *
+ * <p>The cache is rebuilt (in parallel) only when the mesh has changed:
+ * transforms or other changes made through {@link UVertexList}, faces being
+ * added or removed and face colors being set are all tracked. Vertices
+ * modified directly through their x,y,z fields are not, in which case
+ * {@link UGeo#resetDrawCache()} must be called.</p>
+ *
+ * <p>With the {@link #DRAWRETAINED} option and an OpenGL renderer the buffers
+ * are further uploaded to a retained PShape, which is then drawn with a single
+ * call. Without {@link #COLORFACE} the shape uses the current fill and stroke,
+ * like immediate mode drawing. Software renderers always use the buffers
+ * directly.</p>
+ *
+ * @author marius
+ *
+ */
+public class UDrawCache extends UMB {
+  /**
+   * Vertex coordinates, 9 floats per face.
+   */
+  public float xyz[];
+
+  /**
+   * Vertex normals, 9 floats per face, or null if not requested.
+   */
+  public float normal[];
+
+  /**
+   * Face colors.
+   */
+  public int color[];
+
+  private int fn;
+
+  // state of the UGeo the buffers were built from
+  private UVertexList geoVL;
+  private int geoVertexMod=-1,geoFaceMod=-1,geoColorMod=-1;
+
+  private PShape shape;
+  private PGraphics shapeG;
+  private int shapeOpt;
+
+  public int sizeF() {
+    return fn;
+  }
+
+  /**
+   * Rebuilds the buffers if <code>geo</code> has changed since the last call.
+   * @param geo
+   * @param faceMod Face modification counter of <code>geo</code>
+   * @param colorMod Color modification counter of <code>geo</code>
+   * @param normals Include vertex normals
+   * @return
+   */
+  UDrawCache update(final UGeo geo,int faceMod,int colorMod,boolean normals) {
+    final UVertexList vl=geo.vl;
+    final ArrayList<UFace> faces=geo.faces;
+    boolean dirty=(vl!=geoVL || vl.getModCount()!=geoVertexMod ||
+        faceMod!=geoFaceMod || faces.size()!=fn || (normals && normal==null));
+
+    if(dirty) {
+      fn=faces.size();
+      if(xyz==null || xyz.length<fn*9) xyz=new float[fn*9];
+      if(!normals) normal=null;
+      else if(normal==null || normal.length<fn*9) normal=new float[fn*9];
+      final float pos[]=xyz,nb[]=(normals ? normal : null);
+      final float vn[]=(normals ? geo.getNormals().vertex : null);
+
+      UParallel.run(fn, new UParallel.Task() {
+        public void run(int chunk,int from,int to) {
+          for(int f=from; f<to; f++) {
+            int vID[]=faces.get(f).vID;
+            for(int i=0; i<3; i++) {
+              UVertex vv=vl.get(vID[i]);
+              int id=f*9+i*3;
+              pos[id]=vv.x;
+              pos[id+1]=vv.y;
+              pos[id+2]=vv.z;
+              if(nb!=null) System.arraycopy(vn, vID[i]*3, nb, id, 3);
+            }
+          }
+        }
+      });
+    }
+
+    if(dirty || colorMod!=geoColorMod) {
+      if(color==null || color.length<fn) color=new int[fn];
+      for(int f=0; f<fn; f++) color[f]=faces.get(f).col;
+      shape=null;
+    }
+
+    geoVL=vl;
+    geoVertexMod=vl.getModCount();
+    geoFaceMod=faceMod;
+    geoColorMod=colorMod;
+    return this;
+  }
+
+  /**
+   * Forces the buffers to be rebuilt on the next call to {@link UGeo#draw()}.
+   */
+  public UDrawCache reset() {
+    geoVertexMod=-1;
+    shape=null;
+    return this;
+  }
+
+  /**
+   * Draws the buffers, using the {@link #COLORFACE}, {@link #NORMALVERTEX}
+   * and {@link #DRAWRETAINED} options.
+   */
+  public UDrawCache draw(int opt) {
+    if(!checkGraphicsSet()) return this;
+
+    boolean retained=isEnabled(opt,DRAWRETAINED) && g.isGL();
+    opt=opt&(COLORFACE|NORMALVERTEX);
+
+    if(retained) {
+      if(shape==null || shapeG!=g || shapeOpt!=opt) buildShape(opt);
+      g.shape(shape);
+      return this;
+    }
+
+    boolean colorFace=isEnabled(opt,COLORFACE);
+    boolean normals=isEnabled(opt,NORMALVERTEX) && normal!=null;
+
+    g.beginShape(TRIANGLES);
+    for(int f=0; f<fn; f++) {
+      if(colorFace) g.fill(color[f]);
+      for(int id=f*9; id<f*9+9; id+=3) {
+        if(normals) g.normal(normal[id],normal[id+1],normal[id+2]);
+        if(isGraphics3D) g.vertex(xyz[id],xyz[id+1],xyz[id+2]);
+        else g.vertex(xyz[id],xyz[id+1]);
+      }
+    }
+    g.endShape();
+    return this;
+  }
+
+  private void buildShape(int opt) {
+    boolean colorFace=isEnabled(opt,COLORFACE);
+    boolean normals=isEnabled(opt,NORMALVERTEX) && normal!=null;
+
+    shape=g.createShape();
+    shape.beginShape(TRIANGLES);
+    for(int f=0; f<fn; f++) {
+      if(colorFace) shape.fill(color[f]);
+      for(int id=f*9; id<f*9+9; id+=3) {
+        if(normals) shape.normal(normal[id],normal[id+1],normal[id+2]);
+        shape.vertex(xyz[id],xyz[id+1],xyz[id+2]);
+      }
+    }
+    shape.endShape();
+
+    // use current style when drawing, unless face colors are set
+    if(!colorFace) shape.disableStyle();
+    shapeG=g;
+    shapeOpt=opt;
+  }
+
+  public String str() {
+    return "[UDrawCache f="+fn+(shape!=null ? " retained" : "")+"]";
+  }
+}
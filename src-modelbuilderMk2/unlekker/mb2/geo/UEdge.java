@@ -4,17 +4,20 @@
 package unlekker.mb2.geo;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import unlekker.mb2.util.UMB;
 
 
 /**
- * WORK IN PROGRESS - NOT FUNCTIONAL
+ * Edge between two vertices of a {@link UGeo} mesh, with the faces that share it.
+ * See {@link UEdgeList}, or {@link UHalfEdge} for a compact representation
+ * of mesh topology.
  * @author marius
  *
  */
 public class UEdge extends UMB {
-  public static int globalID=0;
+  public static final AtomicInteger globalID=new AtomicInteger();
 
   public UGeo parent;
   int vID[];
@@ -24,7 +27,7 @@ public class UEdge extends UMB {
   protected ArrayList<UFace> faces;
   
   public UEdge() {
-    ID=globalID++;
+    ID=globalID.getAndIncrement();
     v=new UVertex[2];
     faces=new ArrayList<UFace>();
   }
@@ -40,7 +43,18 @@ public class UEdge extends UMB {
   }
   
   public UEdge add(UFace ff) {
-    if(faces.indexOf(ff)<0) faces.add(ff);
+    for(UFace f:faces) if(f==ff) return this;
+    faces.add(ff);
+    return this;
+  }
+
+  public UEdge remove(UFace ff) {
+    for(int i=0; i<faces.size(); i++) {
+      if(faces.get(i)==ff) {
+        faces.remove(i);
+        break;
+      }
+    }
     return this;
   }
 
@@ -58,15 +72,24 @@ public class UEdge extends UMB {
 //    UVertex.cross(v, v2)
   }
 
+  public UEdge(UGeo model, int id1, int id2) {
+    this();
+    parent=model;
+    set(id1,id2);
+  }
+
   public UEdge set(int id1,int id2) { 
+    invalidate();
     if(vID==null) vID=new int[2];
-    vID[0]=(id1<id2 ? id2 : id1);
+    vID[0]=(id1<id2 ? id1 : id2);
     vID[1]=(id1<id2 ? id2 : id1);
+    if(parent!=null) v=null;
     
     return this;    
   }
 
   public UEdge set(UVertex v1, UVertex v2) {
+    invalidate();
     if(v==null) v=new UVertex[2];
     v[0]=(v1.ID<v2.ID ? v1 : v2);
     v[1]=(v1.ID<v2.ID ? v2 : v1);
@@ -83,6 +106,18 @@ public class UEdge extends UMB {
     return this;
   }
 
+  /**
+   * Changing the vertices of an edge already used by faces invalidates
+   * the edges cached by those faces and the parent's edge list, which 
+   * is rebuilt on next use.
+   */
+  private void invalidate() {
+    if(faces.size()==0) return;
+    for(UFace ff:faces) if(ff.edge!=null) ff.setEdges(null, null);
+    faces.clear();
+    if(parent!=null) parent.edges=null;
+  }
+
   public UVertex[] getV(boolean force) {
     if(force) v=null;
     return getV();
@@ -109,13 +144,9 @@ public class UEdge extends UMB {
   }
 
   public boolean equals(UVertex v1,UVertex v2) {
-    if(v1.ID>v2.ID) {
-      UVertex tmp=v2;
-      v2=v1;
-      v1=tmp;
-    }
-    
-    return (v1.equals(v[0]) && v2.equals(v[1]));
+    getV();
+    return (v1.equals(v[0]) && v2.equals(v[1])) ||
+        (v1.equals(v[1]) && v2.equals(v[0]));
   }
 
 }
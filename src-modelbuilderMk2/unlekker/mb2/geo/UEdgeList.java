@@ -6,121 +6,175 @@ package unlekker.mb2.geo;
 import java.util.ArrayList;
 import java.util.Iterator;
 
+import unlekker.mb2.util.ULongMap;
 import unlekker.mb2.util.UMB;
 
 
 /**
- * WORK IN PROGRESS - NOT FUNCTIONAL
+ * <p>List of the unique edges of a {@link UGeo} mesh, with the faces sharing
+ * each edge. Edges are indexed by the packed IDs of their two vertices
+ * (see {@link ULongMap#key(int, int)}), so that lookups and additions
+ * are constant-time operations.</p>
+ *
+ * <p>The parent UGeo keeps its edge list up to date as faces are added
+ * or removed, see {@link UGeo#getEdgeList()}.</p>
+ *
  * @author marius
  *
  */
 public class UEdgeList extends UMB implements Iterable<UEdge> {
   public UGeo parent;
-  ArrayList<UEdge> edges;  
+  ArrayList<UEdge> edges;
+  private ULongMap index;
 
   public UEdgeList() {
     edges=new ArrayList<UEdge>();
+    index=new ULongMap();
   }
-  
+
   public UEdgeList(UGeo model) {
     this();
-    if(model!=null) parent=model;    
-    edges=new ArrayList<UEdge>();
-    for(UFace ff:model.getF()) {
-      add(ff);
-//      UVertex vv[]=ff.getV();
-//      add(vv[0],vv[1]).add(ff);
-//      add(vv[1],vv[2]).add(ff);
-//      add(vv[2],vv[0]).add(ff);
-    }
-    
+    if(model!=null) parent=model;
+
+    int n=model.sizeF();
+    // closed meshes have 1.5 edges per face
+    edges=new ArrayList<UEdge>(n+n/2);
+    index=new ULongMap(n+n/2);
+    for(UFace ff:model.getF()) add(ff);
   }
 
   public void add(UFace f) {
-    UVertex vv[]=f.getV();
-
     UEdge ed[]=new UEdge[3];
-    
-    for(int i=0; i<3; i++) {
-      UEdge e=add(vv[i],vv[(i+1)%3]);
+
+    if(parent!=null && f.parent==parent && validID(f.vID)) {
+      for(int i=0; i<3; i++) ed[i]=add(f.vID[i],f.vID[(i+1)%3]);
+    }
+    else {
+      UVertex vv[]=f.getV();
+      for(int i=0; i<3; i++) ed[i]=add(vv[i],vv[(i+1)%3]);
+    }
+
+    for(UEdge e:ed) {
+      // adjacency of faces already sharing this edge has changed
+      for(UFace ef:e.faces) ef.connected=null;
       e.add(f);
-      ed[i]=e;
     }
-    
-    f.setEdges(ed);
+    f.setEdges(this, ed);
+  }
+
+  /**
+   * Removes a face from the edges it uses. Edges left without
+   * faces are removed from the list.
+   * @param f
+   */
+  public void remove(UFace f) {
+    if(f.edge==null) return;
+
+    for(UEdge e:f.edge) {
+      if(e==null) continue;
+      e.remove(f);
+      for(UFace ef:e.faces) ef.connected=null;
+
+      if(e.faces.size()==0 && e.vID!=null) {
+        int pos=index.remove(ULongMap.key(e.vID[0],e.vID[1]));
+        if(pos>-1) {
+          // move last edge into the empty slot
+          UEdge last=edges.remove(edges.size()-1);
+          if(last!=e) {
+            edges.set(pos, last);
+            if(last.vID!=null) index.put(ULongMap.key(last.vID[0],last.vID[1]), pos);
+          }
+        }
+      }
+    }
+
+    f.setEdges(null, null);
   }
 
   public UEdge add(UVertex v1,UVertex v2) {
-    UEdge e=get(v1,v2);
-;
+    if(parent!=null) {
+      int id1=parent.getV().indexOf(v1),id2=parent.getV().indexOf(v2);
+      if(id1>-1 && id2>-1) return add(id1,id2);
+    }
+
+    // vertices not found in parent, fall back to comparing positions
+    UEdge e=null;
+    for(UEdge ee:edges) if(ee.equals(v1,v2)) e=ee;
     if(e==null) {
-      if(parent!=null) e=new UEdge(parent,v1,v2);
-      else e=new UEdge(v1,v2);
-      
+      e=new UEdge(v1,v2);
       edges.add(e);
     }
 
-    
     return e;
   }
-  
+
+  /**
+   * Returns the edge between the vertices with the given IDs in the parent
+   * UGeo, creating it if it does not exist.
+   */
+  public UEdge add(int id1,int id2) {
+    long key=ULongMap.key(id1,id2);
+    int pos=index.get(key);
+    if(pos!=ULongMap.NOTFOUND) return edges.get(pos);
+
+    UEdge e=new UEdge(parent,id1,id2);
+    index.put(key, edges.size());
+    edges.add(e);
+    return e;
+  }
+
   public int size() {
     return edges.size();
   }
-  
+
   public Iterator<UEdge> iterator() {
-    // TODO Auto-generated method stub
     return edges.iterator();
   }
-  
+
   public boolean contains(UVertex v1,UVertex v2) {
-    int id1=-1,id2=-1;
-    
-    if(parent!=null) {
-      id1=parent.getVID(v1);
-      id2=parent.getVID(v2);      
-    }
-    
-    if(id1<0 || id2<0) {
-      for(UEdge e:edges) if(e.equals(v1,v2)) return true;
-    }
-    else {
-      for(UEdge e:edges) if(e.equals(id1,id2)) return true;
-    }
-    
-    return false;
+    return indexOf(v1,v2)>-1;
+  }
+
+  public boolean contains(int id1,int id2) {
+    return indexOf(id1,id2)>-1;
   }
 
   public UEdge get(UVertex v1,UVertex v2) {
-    UEdge e=null;
     int id=indexOf(v1, v2);
-    if(id>-1) e=edges.get(id);
-    return e;
+    return id>-1 ? edges.get(id) : null;
+  }
+
+  public UEdge get(int id1,int id2) {
+    int id=indexOf(id1, id2);
+    return id>-1 ? edges.get(id) : null;
+  }
+
+  /**
+   * @return List position of the edge between the vertices with the
+   * given IDs in the parent UGeo, or -1 if not found.
+   */
+  public int indexOf(int id1,int id2) {
+    int pos=index.get(ULongMap.key(id1,id2));
+    return pos==ULongMap.NOTFOUND ? -1 : pos;
   }
 
   public int indexOf(UVertex v1,UVertex v2) {
-    int id1=-1,id2=-1;
-    
     if(parent!=null) {
-      id1=parent.getVID(v1);
-      id2=parent.getVID(v2);      
+      int id1=parent.getV().indexOf(v1),id2=parent.getV().indexOf(v2);
+      if(id1>-1 && id2>-1) return indexOf(id1,id2);
     }
 
     int cnt=0;
-    if(id1<0 || id2<0) {
-      for(UEdge e:edges) {
-        if(e.equals(v1,v2)) return cnt;
-        cnt++;
-      }
+    for(UEdge e:edges) {
+      if(e.equals(v1,v2)) return cnt;
+      cnt++;
     }
-    else {
-      cnt=0;
-      for(UEdge e:edges) {
-        if(e.equals(id1,id2)) return cnt;
-        cnt++;
-      }
-    }
-    
+
     return -1;
   }
+
+  private static boolean validID(int vID[]) {
+    return vID!=null && vID.length==3 &&
+        vID[0]>-1 && vID[1]>-1 && vID[2]>-1;
+  }
 }
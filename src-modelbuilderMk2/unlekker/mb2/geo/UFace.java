@@ -5,6 +5,7 @@ package unlekker.mb2.geo;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import unlekker.mb2.util.UMB;
 
@@ -16,7 +17,8 @@ import unlekker.mb2.util.UMB;
  *
  */
 public class UFace extends UMB  {
-  public static int globalID=0;
+  /** Atomic ID counter, also used by {@link UQuad}. */
+  public static final AtomicInteger globalID=new AtomicInteger();
 
   public UGeo parent;
   public int ID;  
@@ -25,12 +27,24 @@ public class UFace extends UMB  {
   
   public UEdge edge[];
   protected UFace connected[];
+
+  /**
+   * Edge list that <code>edge</code> was taken from. Cached edges are stale
+   * once the parent UGeo no longer uses this list, see {@link #connected()}.
+   */
+  UEdgeList edgeList;
+
+  /**
+   * Position of this face in <code>parent.faces</code>, maintained by 
+   * {@link UGeo} so {@link UGeo#remove(UFace)} need not search the list.
+   */
+  int index=-1;
   
   public int col;
   public UVertex normal,centroid;
   
   public UFace() {
-    ID=globalID++;
+    ID=globalID.getAndIncrement();
     vID=new int[] {-1,-1,-1};
     col=Integer.MAX_VALUE;
   }
@@ -73,7 +87,13 @@ public class UFace extends UMB  {
   }
 
   public UFace setEdges(UEdge ed[]) {
+    return setEdges(null, ed);
+  }
+
+  UFace setEdges(UEdgeList list,UEdge ed[]) {
     edge=ed;
+    edgeList=list;
+    connected=null;
     return this;
   }
 
@@ -85,7 +105,18 @@ public class UFace extends UMB  {
     return n;
   }
 
+  /**
+   * Returns the faces sharing an edge with this face, using the edge list
+   * of the parent UGeo. Cached edges are refreshed if the parent's edge list 
+   * has been rebuilt or discarded since they were set.  
+   * @return
+   */
   public UFace[] connected() {
+    if(parent!=null && (edge==null || edgeList!=parent.edges)) {
+      UEdgeList el=parent.getEdgeList();
+      // not part of the parent's current edge list
+      if(edgeList!=el) setEdges(null, null);
+    }
     if(edge==null) {
       logErr("UFace: Edges not calculated");
       return null;
@@ -99,10 +130,10 @@ public class UFace extends UMB  {
           UFace ff=null;
           if(ef.size()>0) {
             ff=ef.get(0);
-            if(ff.equals(this) && ef.size()>1) {
+            if(ff==this && ef.size()>1) {
               ff=edge[i].faces.get(1);              
             }
-            if(ff.equals(this)) ff=null;
+            if(ff==this) ff=null;
           }
 
           connected[i]=ff;
@@ -213,22 +244,22 @@ public class UFace extends UMB  {
   
   public UFace translate(float mx,float my,float mz) {
     for(UVertex vt:getV()) vt.add(mx,my,mz);
-    return reset();
+    return moved();
   }
   
   public UFace rotX(float deg) {
     for(UVertex vt:getV()) vt.rotX(deg);
-    return reset();
+    return moved();
   }
 
   public UFace rotY(float deg) {
     for(UVertex vt:getV()) vt.rotY(deg);
-    return reset();
+    return moved();
   }
 
   public UFace rotZ(float deg) {
     for(UVertex vt:getV()) vt.rotZ(deg);
-    return reset();
+    return moved();
   }
 
 
@@ -236,10 +267,19 @@ public class UFace extends UMB  {
 
   public UFace scale(float mx,float my,float mz) {
     for(UVertex vt:getV()) vt.mult(mx,my,mz);
-    return reset();
+    return moved();
   }
 
 
+  /**
+   * Called after vertex positions have been changed, resets internal
+   * data and invalidates the vertex index of the parent UGeo. 
+   */
+  private UFace moved() {
+    if(parent!=null) parent.getV().reindex();
+    return reset();
+  }
+
   public UFace resetVertexID(UVertexList vl) {
     getV();
     int index=0;
@@ -269,7 +309,7 @@ public class UFace extends UMB  {
     parent=v.parent;
     
     if(v.normal!=null) {
-      if(normal!=null) normal.set(v.normal.x,v.normal.y,v.normal.x);
+      if(normal!=null) normal.set(v.normal.x,v.normal.y,v.normal.z);
     }
     
    return this;
@@ -277,6 +317,7 @@ public class UFace extends UMB  {
 
   public UFace setColor(int a) {
     col=a;
+    if(parent!=null) parent.faceChanged(true);
     return this;
   }
 
@@ -296,6 +337,7 @@ public class UFace extends UMB  {
     if(parent!=null) {
       vID=new int[] {vID[0],vID[2],vID[1]};
       v=null;
+      parent.faceChanged(false);
     }
     else {
       UVertex v2=v[2];
@@ -352,11 +394,10 @@ public class UFace extends UMB  {
         
     getV();
     
-    normal=UVertex.cross(
-        v[2].copy().sub(v[0]),
-        v[1].copy().sub(v[0]));
-//        UVertex.delta(v[0],v[1]).norm() 
-//        UVertex.delta(v[0],v[2]).norm());
+    // cross(v[2]-v[0], v[1]-v[0]), without temporary vertices
+    float ax=v[2].x-v[0].x,ay=v[2].y-v[0].y,az=v[2].z-v[0].z;
+    float bx=v[1].x-v[0].x,by=v[1].y-v[0].y,bz=v[1].z-v[0].z;
+    normal=new UVertex(ay*bz-by*az, az*bx-bz*ax, ax*by-bx*ay);
     normal.norm();
     return normal;
   }
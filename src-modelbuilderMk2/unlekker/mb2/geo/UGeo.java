@@ -5,7 +5,10 @@ package unlekker.mb2.geo;
 
 import java.util.ArrayList;
 
+import unlekker.mb2.util.ULongMap;
+import unlekker.mb2.util.UParallel;
 import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UMetrics;
 
 import java.util.*;
 
@@ -30,11 +33,51 @@ public class UGeo extends UMB  {
   
   public UEdgeList edges;
 
+  /**
+   * Index of faces keyed by their sorted vertex IDs, used for
+   * constant-time duplicate checks. See {@link #duplicateF(UFace)}.
+   */
+  private ULongMap faceIndex;
+
+  /**
+   * Modification counts of <code>faces</code> (see {@link UFaceList#mod()}) at
+   * which <code>faceIndex</code> and the {@link UFace#index} positions were last
+   * known to be in sync with the list. Removing a face shifts the following 
+   * faces down, so positions are only upper bounds, off by at most 
+   * <code>faceRemoved</code>.
+   */
+  private int faceIndexMod,facePosMod=-1,faceRemoved;
+
+  /**
+   * Accumulated transform when transforms are deferred (see {@link #deferTransforms()}),
+   * otherwise null. <code>deferredBB</code> is the bounding box of the mesh with the
+   * transform applied, or null if not known.
+   */
+  private UMatrix deferred;
+  private UBB deferredBB;
+
+  /**
+   * Cached normals, see {@link #getNormals()}. <code>faceMod</code> is
+   * incremented whenever faces are added, removed or re-indexed.
+   */
+  private UNormals normals;
+  private int faceMod;
+
+  /**
+   * Cached draw buffers, see {@link #getDrawCache()}. <code>colorMod</code> is
+   * incremented whenever face colors are set.
+   */
+  private UDrawCache drawCache;
+  private int colorMod;
+
+  private static final UMetrics.Counter FACEADD=UMetrics.counter("geo.faceAdd");
+  private static final UMetrics.Timer APPEND=UMetrics.timer("geo.append");
+  private static final UMetrics.Timer MERGE=UMetrics.timer("geo.merge");
   
   public UGeo() {
     vl=new UVertexList();
     setOptions(NODUPL);
-    faces=new ArrayList<UFace>();
+    faces=new UFaceList();
     faceGroups=new ArrayList<UGeoGroup>();
   }
 
@@ -52,16 +95,38 @@ public class UGeo extends UMB  {
   }
 
   public UGeo clear() {
+    if(deferred!=null) deferred.identity();
+    deferredBB=null;
     vl.clear();
     faces.clear();
     faceGroups.clear();
+    faceIndex=null;
+    edges=null;
+    faceMod++;
+    return this;
+  }
+
+  /**
+   * Pre-allocates storage for the given number of vertices and faces, avoiding
+   * repeated re-allocation when the final size of a mesh is known in advance.  
+   * @param vNum Expected number of vertices
+   * @param fNum Expected number of faces
+   * @return
+   */
+  public UGeo ensureCapacity(int vNum,int fNum) {
+    vl.ensureCapacity(vNum);
+    faces.ensureCapacity(fNum);
+    if(faceIndex==null && faces.size()==0) {
+      faceIndex=new ULongMap(fNum);
+      faceIndexMod=facesMod();
+    }
     return this;
   }
 
   public UGeo remove(int faceID) {
     if(faceID<sizeF()) {
-      UFace ff=faces.get(faceID);
-      faces.remove(ff);
+      UFace ff=faceRemove(faceID);
+      if(edges!=null) edges.remove(ff);
       for(UGeoGroup gr:faceGroups) {
         gr.remove(ff);
       }
@@ -70,18 +135,22 @@ public class UGeo extends UMB  {
   }
 
   public UGeo remove(UFace ff) {
-    int pos=faces.indexOf(ff);
+    int pos=facePos(ff);
     if(pos>-1) remove(pos);
     return this;
   }
   
   public UGeo removeDupl() {
+    bake();
     for(UFace ff:faces) ff.getV();
     getV().removeDupl(true);
     for(UFace ff:faces) {
       ff.getVID();
       ff.getV(true);
     }
+    faceIndex=null;
+    edges=null;
+    faceMod++;
     
     return this;
   }
@@ -114,8 +183,14 @@ public class UGeo extends UMB  {
    * @return
    */
   public UGeo set(UGeo model) {
+   if(deferred!=null) deferred.identity();
+   deferredBB=null;
    vl=model.getV().copy();
-   faces=new ArrayList<UFace>();
+   faces=new UFaceList();
+   faceIndex=null;
+   facePosMod=-1;
+   edges=null;
+   faceMod++;
    for(UFace ff:model.getF()) {
      UFace newFace=new UFace(this,ff.vID);
      newFace.setColor(ff.col);
@@ -144,7 +219,7 @@ public class UGeo extends UMB  {
     }
     
     faceGroups.add(new UGeoGroup(this,type).begin());
-    log("groupBegin "+groupTypeNames.get(type)+" "+faceGroups.size()+" "+sizeF());
+    if(verbose) log("groupBegin "+groupTypeNames.get(type)+" "+faceGroups.size()+" "+sizeF());
     return this;
   }
 
@@ -190,49 +265,107 @@ public class UGeo extends UMB  {
 
 
 
+  /**
+   * Adds the faces of <code>model</code> as a new face group. If NODUPL is
+   * enabled (the default) vertices are welded, see {@link #add(UGeo, boolean)}.
+   * @param model
+   * @return
+   */
   public UGeo add(UGeo model) {
-    log(model.str());
-    
-    taskTimerStart("UGeo.add(UGeo)");
-    
+    return add(model, isEnabled(NODUPL));
+  }
+  
+  /**
+   * Adds the faces of <code>model</code> as a new face group. Vertex and
+   * face lists are appended in bulk, with the vertex indices of the new faces 
+   * offset to match.  
+   * @param model
+   * @param weld If true, vertices that coincide with existing vertices are
+   * merged (using the spatial hash of the vertex list) and faces that become 
+   * degenerate or duplicate are skipped. If false, vertices are appended 
+   * without any checks.
+   * @return
+   */
+  public UGeo add(UGeo model, boolean weld) {
     groupBegin(TRIANGLES);
-    int cnt=0;
-    ArrayList<UFace> theFaces=model.getF();
-    for(UFace ff:theFaces) {
-      ff.v=null;
-      
-      UVertex vv[]=ff.getV();
-      addFace(vv);
-      getF(sizeF()-1).setColor(ff.col);
-      taskTimerUpdate(map(cnt++,0,theFaces.size()-1, 0,100));
-    }    
+    append(model, weld);
     groupEnd();
+    return this;
+  }
+
+  private UGeo append(UGeo model, boolean weld) {
+    long t=APPEND.start();
+    bake();
+    model.bake();
     
-    taskTimerDone();
+    UVertexList mvl=model.vl;
+    ArrayList<UFace> mf=model.faces;
+    int off=vl.size(),n=mvl.size();
+    ensureCapacity(off+n, faces.size()+mf.size());
     
-/*    if(model.sizeGroup()>0) {
-      int gn=model.sizeGroup();
-      for(int i=0; i<gn; i++) {
-        int id[]=model.getGroupID(i);
-        groupBegin(id[2]);
-        ArrayList<UFace> gr=model.getGroup(i);
-        for(UFace ff:gr) {
-          UVertex vv[]=ff.getV();
-          addFace(vv);
-        }    
-        groupEnd();
-      }
+    int remap[]=null;
+    if(weld) {
+      remap=new int[n];
+      for(int i=0; i<n; i++) remap[i]=vl.addID(mvl.get(i));
     }
-    
-    else {
-      for(UFace ff:model.getF()) {
-        UVertex vv[]=ff.getV();
-        addFace(vv);
-      }    
+    else vl.addAll(mvl);
+
+    int vID[]=new int[3];
+    for(UFace ff:mf) {
+      int mID[]=(validID(ff.vID) ? ff.vID : ff.getVID());
+      for(int i=0; i<3; i++) vID[i]=(weld ? remap[mID[i]] : mID[i]+off);
+      
+      if(weld && (vID[0]==vID[1] || vID[1]==vID[2] || vID[0]==vID[2] ||
+          duplicateF(vID[0], vID[1], vID[2]))) continue;
+      
+      UFace nf=new UFace(this,vID);
+      nf.col=ff.col;
+      faceAdd(nf);
+      if(edges!=null) edges.add(nf);
     }
-*/    
+    
+    colorMod++;
+    APPEND.stop(t);
     return this;
+  }
+  
+  /**
+   * Merges a list of models into a new UGeo instance, using a parallel
+   * tree reduction: models are merged pairwise in parallel, then the
+   * results are merged pairwise etc. The input models are not modified. 
+   * @param models
+   * @param weld See {@link #add(UGeo, boolean)}
+   * @return
+   */
+  public static UGeo merge(List<UGeo> models, final boolean weld) {
+    UGeo level[]=models.toArray(new UGeo[models.size()]);
+    if(level.length==0) return new UGeo();
+    long t=MERGE.start();
     
+    boolean first=true;
+    while(level.length>1 || first) {
+      final UGeo src[]=level,res[]=new UGeo[(src.length+1)/2];
+      final boolean copy=first;
+      UParallel.run(res.length, 1, new UParallel.Task() {
+        public void run(int chunk,int from,int to) {
+          for(int i=from; i<to; i++) {
+            // first level copies input models, later levels reuse results
+            res[i]=(copy ? new UGeo().append(src[i*2], weld) : src[i*2]);
+            if(i*2+1<src.length) res[i].append(src[i*2+1], weld);
+          }
+        }
+      });
+      
+      level=res;
+      first=false;
+    }
+    
+    MERGE.stop(t);
+    return level[0];
+  }
+
+  public static UGeo merge(List<UGeo> models) {
+    return merge(models, true);
   }
   
   //////////////////////////////////////////
@@ -244,6 +377,10 @@ public class UGeo extends UMB  {
   }
 
   public UBB bb(boolean force) {
+    if(isDeferredTransform()) {
+      if(deferredBB==null || force) deferredBB=deferred.bounds(vl.v, deferredBB);
+      return deferredBB;
+    }
     return vl.bb(force);
   }
 
@@ -301,22 +438,104 @@ public class UGeo extends UMB  {
   }
   
   public UGeo translate(float mx,float my,float mz) {
-    vl.translate(mx, my, mz);
-    return this;    
+    return transform(new UMatrix().translate(mx,my,mz));    
   }
   
   public UGeo rotX(float deg) {
-    vl.rotX(deg);
-    return this;
+    return transform(new UMatrix().rotX(deg));
   }
 
   public UGeo rotY(float deg) {
-    vl.rotY(deg);
-    return this;
+    return transform(new UMatrix().rotY(deg));
   }
 
   public UGeo rotZ(float deg) {
-    vl.rotZ(deg);
+    return transform(new UMatrix().rotZ(deg));
+  }
+
+  /**
+   * Applies a transformation matrix to all vertices in this mesh, see 
+   * {@link UVertexList#transform(UMatrix)}. Use this to apply several
+   * transforms in a single pass:
+   * <pre>geo.transform(new UMatrix().translate(-10,0,0).rotX(PI).scale(2));</pre>
+   * @param m
+   * @return
+   */
+  public UGeo transform(UMatrix m) {
+    if(deferred!=null) {
+      // axis-aligned transforms keep the bounding box exact
+      if(m.isAxisAligned()) {
+        UBB current=(isDeferredTransform() ? deferredBB : vl.bb());
+        deferredBB=(current==null ? null : m.transform(current, deferredBB));
+      }
+      else deferredBB=null;
+      
+      deferred.apply(m);
+      return this;
+    }
+    
+    vl.transform(m);
+    
+    // cached face normals and centroids are no longer valid
+    UParallel.run(faces.size(), new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) faces.get(i).reset();
+      }
+    });
+    return this;
+  }
+
+  /**
+   * <p>Enables deferred transforms. Calls to <code>translate()</code>, 
+   * <code>rotX()</code>, <code>scale()</code>, <code>center()</code> etc. are
+   * then accumulated into a single {@link UMatrix}, which is applied to the vertices
+   * in one pass by {@link #bake()}. This avoids touching every vertex once per call
+   * in long chains of transforms.</p>
+   * 
+   * <p>{@link #bb()} returns the bounding box of the transformed mesh without baking,
+   * computed analytically for axis-aligned transforms (translation and scaling) and by a
+   * read-only pass over the vertices otherwise. Methods that read or add vertices or 
+   * faces bake automatically. Code that accesses the <code>vl</code> or <code>faces</code>
+   * fields directly must call <code>bake()</code> first.</p>
+   * @return
+   */
+  public UGeo deferTransforms() {
+    if(deferred==null) deferred=new UMatrix();
+    return this;
+  }
+
+  /**
+   * Bakes any pending transforms and disables deferred transforms. 
+   * @return
+   */
+  public UGeo applyTransforms() {
+    bake();
+    deferred=null;
+    deferredBB=null;
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if transforms are deferred and at least
+   * one is waiting to be applied.
+   */
+  public boolean isDeferredTransform() {
+    return deferred!=null && !deferred.isIdentity();
+  }
+
+  /**
+   * Applies any deferred transforms to the vertices of this mesh. Deferred mode stays
+   * enabled, subsequent transforms are again accumulated.
+   * @return
+   */
+  public UGeo bake() {
+    if(!isDeferredTransform()) return this;
+    
+    UMatrix m=deferred;
+    deferred=null;
+    transform(m);
+    deferred=m.identity();
+    deferredBB=null;
     return this;
   }
 
@@ -328,8 +547,7 @@ public class UGeo extends UMB  {
   public UGeo scale(float m) {return scale(m,m,m);}
 
   public UGeo scale(float mx,float my,float mz) {
-    vl.scale(mx,my,mz);
-    return this;
+    return transform(new UMatrix().scale(mx,my,mz));
   }
 
   /**
@@ -377,16 +595,23 @@ public class UGeo extends UMB  {
     return vl.size();
   }
 
+  /**
+   * Returns the edge list of this mesh, building it on first use. Once built
+   * it is updated as faces are added or removed.
+   * @return
+   */
   public UEdgeList getEdgeList() {
     if(edges==null) edges=new UEdgeList(this);
     return edges;
   }
   
   public ArrayList<UFace> getF() {
+    bake();
     return faces;
   }
 
   public UFace getF(int id) {
+    bake();
     return faces.get(id);
   }
 
@@ -395,10 +620,12 @@ public class UGeo extends UMB  {
    * is the master vertex list for this mesh.
    */
   public UVertexList getV() {
+    bake();
     return vl;
   }
   
   public UVertex getV(int id) {
+    bake();
     return vl.get(id);
   }
 
@@ -409,6 +636,7 @@ public class UGeo extends UMB  {
   }
 
   public UGeo drawTextured(PImage texture) {
+    bake();
     if(checkGraphicsSet()) {
       g.beginShape(TRIANGLES);
       g.texture(texture);
@@ -429,6 +657,7 @@ public class UGeo extends UMB  {
   }
 
   public UGeo drawNormals(float w) {
+    bake();
     for(UFace ff:faces) ff.drawNormal(w);
     return this;
   }
@@ -438,27 +667,104 @@ public class UGeo extends UMB  {
    * @return
    */
   public UGeo reverseNormals() {
-    log("reverseNormals "+getF(0).normal().str());
     for(UFace ff:faces) ff.reverse();
-    log("reverseNormals "+getF(0).normal().str());
+    faceMod++;
+    return this;
+  }
+
+  /**
+   * Returns face and vertex normals for this mesh, calculated in parallel
+   * into primitive arrays (see {@link UNormals}). The result is cached and
+   * only recalculated when vertices or faces have changed, so repeated calls
+   * are cheap.
+   * @return
+   */
+  public UNormals getNormals() {
+    bake();
+    if(normals==null) normals=new UNormals();
+    return normals.update(this, faceMod);
+  }
+
+  /**
+   * Sets the weighting used for vertex normals, {@link #NORMALANGLE} (default)
+   * or {@link #NORMALAREA}.
+   */
+  public UGeo setNormalType(int type) {
+    if(normals==null) normals=new UNormals();
+    normals.setType(type);
+    return this;
+  }
+
+  /**
+   * Forces recalculation of normals on the next call to {@link #getNormals()}. Only
+   * needed if individual vertices have been modified directly.  
+   * @return
+   */
+  public UGeo resetNormals() {
+    if(normals!=null) normals.reset();
+    return this;
+  }
+
+  /**
+   * Copies the vertex normals calculated by {@link #getNormals()} to
+   * {@link UVertex#normal} for all vertices.
+   * @return
+   */
+  public UGeo calcVertexNormals() {
+    UNormals n=getNormals();
+    for(int i=0; i<vl.size(); i++) {
+      UVertex vv=vl.get(i);
+      vv.normal=n.getVertexNormal(i, vv.normal);
+    }
     return this;
   }
   
+  /**
+   * Draws the mesh using the flattened buffers of its {@link UDrawCache}, which
+   * are only rebuilt when the mesh has changed. Supports the {@link #COLORFACE},
+   * {@link #NORMALVERTEX} and {@link #DRAWRETAINED} options.
+   * @param theOptions
+   * @return
+   */
   public UGeo draw(int theOptions) {
-    if(checkGraphicsSet()) {
-      g.beginShape(TRIANGLES);
-      
-      
-      int opt=(isEnabled(theOptions,COLORFACE) ? COLORFACE : 0);
-      for(UFace f:faces) {
-        if(opt==COLORFACE) g.fill(f.col);
-        pvertex(f.getV());
-      }
-      g.endShape();
-    }
+    bake();
+    if(checkGraphicsSet()) getDrawCache(theOptions).draw(theOptions);
     return this;
   }
 
+  /**
+   * Returns the draw cache for this mesh, updated to reflect any changes
+   * since the last call. 
+   * @return
+   */
+  public UDrawCache getDrawCache() {
+    return getDrawCache(options);
+  }
+
+  private UDrawCache getDrawCache(int opt) {
+    bake();
+    if(drawCache==null) drawCache=new UDrawCache();
+    return drawCache.update(this, faceMod, colorMod, isEnabled(opt,NORMALVERTEX));
+  }
+
+  /**
+   * Forces the draw cache and normals to be rebuilt. Only needed if vertices
+   * have been modified directly through their x,y,z fields.  
+   * @return
+   */
+  public UGeo resetDrawCache() {
+    if(drawCache!=null) drawCache.reset();
+    return resetNormals();
+  }
+
+  /**
+   * Called by faces when their color or vertex order has changed.
+   */
+  void faceChanged(boolean colorOnly) {
+    if(colorOnly) colorMod++;
+    else faceMod++;
+  }
+
   ///////////////////////////////////////////////////
   // BEGINSHAPE / ENDSHAPE METHODS
   
@@ -473,6 +779,7 @@ public class UGeo extends UMB  {
    * @param _type Shape type (TRIANGLE_FAN, TRIANGLE_STRIP, TRIANGLES, QUADS, QUAD_STRIP)
    */
   public UGeo beginShape(int _type) {
+    bake();
     
     if(vltmp==null) vltmp=new UVertexList();
     else vltmp.clear();
@@ -486,6 +793,7 @@ public class UGeo extends UMB  {
   }
 
   public UGeo endShape() {
+    bake();
     groupBegin(shapeType);
 
     
@@ -633,20 +941,32 @@ public class UGeo extends UMB  {
 
   }
   
+  /**
+   * Checks if this UGeo contains a face with the same vertex IDs as 
+   * <code>ff</code>, using the same index as {@link #duplicateF(UFace)}.
+   * Faces belonging to a different parent are compared by vertex position.
+   * @param ff
+   * @return
+   */
   public boolean contains(UFace ff) {
-    return faces.indexOf(ff)>-1;
+    bake();
+    if(ff.parent!=this) return faces.indexOf(ff)>-1;
+    return duplicateF(ff);
   }
 
   public int[] addID(UVertexList v1) {
+    bake();
     return vl.addID(v1);
   }
 
   public UGeo add(UVertexList v1) {
+    bake();
     vl.add(v1);    
     return this;
   }
 
   public UGeo add(UVertex v1) {
+    bake();
     vl.add(v1);    
     return this;
   }
@@ -661,41 +981,204 @@ public class UGeo extends UMB  {
   }
 
   public UGeo addFace(UFace f) {
-    faces.add(f);
+    bake();
+    faceAdd(f);
+    if(edges!=null) edges.add(f);
     return this;
   }
 
   public UGeo addFace(int vID[]) {
-    faces.add(new UFace(this,vID));
+    bake();
+    UFace ff=new UFace(this,vID);
+    faceAdd(ff);
+    if(edges!=null) edges.add(ff);
 //    addFace(vl.get(vID[0]),vl.get(vID[1]),vl.get(vID[2]));
     return this;
   }
   
   public UGeo addFace(UVertex v1, UVertex v2, UVertex v3) {
+    bake();
     if(!UFace.check(v1,v2,v3)) {
-      log("Invalid face");
+      if(verbose) log("Invalid face");
       return this;
     }
     
     UFace ff=new UFace(this, v1, v2, v3);
     if(duplicateF(ff)) {
-      log("Duplicate face");
+      if(verbose) log("Duplicate face");
       return this;
     }
     
 //    faces.add(new UFace(this, v1,v2,v3));
-    faces.add(ff);
+    faceAdd(ff);
+    if(edges!=null) edges.add(ff);
     vl.bb=null;
     return this;
   }
 
+  /**
+   * Checks whether this UGeo already contains a face using the same three
+   * vertices as <code>ff</code>, regardless of vertex order. Faces are looked up 
+   * in an index keyed by their sorted vertex IDs, making this a constant-time 
+   * operation for faces belonging to this UGeo. 
+   * @param ff
+   * @return
+   */
   public boolean duplicateF(UFace ff) {
-    int cnt=0;
+    if(ff.parent!=this || !validID(ff.vID)) {
+      for(UFace theFace:faces) if(theFace.equals(ff)) return true;
+      return false;
+    }
+    
+    return duplicateF(ff.vID[0],ff.vID[1],ff.vID[2]);
+  }
+
+  /**
+   * Checks whether this UGeo already contains a face using the vertices
+   * with the given IDs, regardless of vertex order. 
+   * @return
+   */
+  public boolean duplicateF(int id1,int id2,int id3) {
+    long key=ULongMap.key(id1,id2,id3);
+    if(!faceIndex().containsKey(key)) return false;
     
-    for(UFace theFace:faces) if(theFace.equals(ff)) return true;
+    // keys for very large meshes are hashed, confirm the match
+    if(key<0) {
+      int id[]=sort(new int[] {id1,id2,id3}),tmp[]=new int[3];
+      for(UFace theFace:faces) {
+        if(!validID(theFace.vID)) continue;
+        System.arraycopy(theFace.vID, 0, tmp, 0, 3);
+        if(Arrays.equals(id, sort(tmp))) return true;
+      }
+      return false;
+    }
     
-    // TODO Auto-generated method stub
-    return false;
+    return true;
+  }
+  
+  private ULongMap faceIndex() {
+    // rebuild if the face list was modified directly
+    int mod=facesMod();
+    if(faceIndex!=null && faceIndexMod!=mod) faceIndex=null;
+    
+    if(faceIndex==null) {
+      faceIndex=new ULongMap(faces.size());
+      for(UFace ff:faces) {
+        if(validID(ff.vID)) faceIndex.add(ULongMap.key(ff.vID[0],ff.vID[1],ff.vID[2]),1);
+      }
+      faceIndexMod=mod;
+    }
+    
+    return faceIndex;
+  }
+
+  /**
+   * Appends <code>ff</code> to <code>faces</code>, keeping the face index and
+   * face positions up to date if they were in sync before.
+   */
+  private void faceAdd(UFace ff) {
+    faceMod++;
+    FACEADD.add(1);
+    int mod=facesMod();
+    ff.index=faces.size();
+    faces.add(ff);
+    
+    if(facePosMod==mod) facePosMod=facesMod();
+    if(faceIndex==null || faceIndexMod!=mod) return;
+    if(validID(ff.vID)) faceIndex.add(ULongMap.key(ff.vID[0],ff.vID[1],ff.vID[2]),1);
+    faceIndexMod=facesMod();
+  }
+
+  /**
+   * Removes the face at <code>pos</code>, keeping the face index and 
+   * face positions up to date if they were in sync before.
+   */
+  private UFace faceRemove(int pos) {
+    faceMod++;
+    int mod=facesMod();
+    UFace ff=faces.remove(pos);
+    
+    if(facePosMod==mod) {
+      // renumber once the search window in facePos() gets too wide
+      faceRemoved++;
+      facePosMod=(faceRemoved*faceRemoved>faces.size()+256 ? -1 : facesMod());
+    }
+    if(faceIndex==null || faceIndexMod!=mod) return ff;
+    if(validID(ff.vID)) {
+      long key=ULongMap.key(ff.vID[0],ff.vID[1],ff.vID[2]);
+      if(faceIndex.add(key,-1)<1) faceIndex.remove(key);
+    }
+    faceIndexMod=facesMod();
+    return ff;
+  }
+
+  /**
+   * Returns the position of <code>ff</code> in <code>faces</code>, or -1. 
+   * Positions are renumbered in one pass if the list was modified directly
+   * or after about sqrt(n) removals, otherwise <code>ff</code> is found 
+   * within <code>faceRemoved</code> slots below its stored position.
+   */
+  private int facePos(UFace ff) {
+    int mod=facesMod();
+    if(facePosMod!=mod) {
+      for(int i=0; i<faces.size(); i++) faces.get(i).index=i;
+      facePosMod=mod;
+      faceRemoved=0;
+    }
+    
+    int end=ff.index-faceRemoved;
+    for(int pos=Math.min(ff.index, faces.size()-1); pos>=end && pos>-1; pos--) {
+      if(faces.get(pos)==ff) return pos;
+    }
+    
+    // not in this list, or added to another UGeo since
+    return faces.indexOf(ff);
+  }
+
+  private int facesMod() {
+    // faces was replaced with a plain list
+    if(!(faces instanceof UFaceList)) {
+      faces=new UFaceList(faces);
+      faceIndex=null;
+      facePosMod=-1;
+    }
+    return ((UFaceList)faces).mod();
+  }
+
+  /**
+   * Face list that counts every modification, including {@link #set(int, UFace)},
+   * so that the face index and face positions can tell when <code>faces</code> 
+   * has been changed directly.
+   */
+  static class UFaceList extends ArrayList<UFace> {
+    private int setCnt;
+    
+    UFaceList() {
+      super();
+    }
+
+    UFaceList(Collection<UFace> c) {
+      super(c);
+    }
+
+    public UFace set(int index,UFace ff) {
+      setCnt++;
+      return super.set(index, ff);
+    }
+
+    int mod() {
+      return modCount+setCnt;
+    }
+  }
+  
+  private static boolean validID(int vID[]) {
+    return vID!=null && vID.length==3 && 
+        vID[0]>-1 && vID[1]>-1 && vID[2]>-1;
+  }
+
+  private static int[] sort(int id[]) {
+    Arrays.sort(id);
+    return id;
   }
 
   /**
@@ -753,6 +1236,7 @@ public class UGeo extends UMB  {
   }
 
   public int[] getVID(UVertex vv[],int vid[]) {    
+    bake();
     return vl.getVID(vv,vid);
   }
 
@@ -764,6 +1248,7 @@ public class UGeo extends UMB  {
    * @return
    */
   public int getVID(UVertex vv) {    
+    bake();
     return vl.getVID(vv);
   }
 
@@ -775,18 +1260,22 @@ public class UGeo extends UMB  {
    * @return
    */
   public UVertex[] getVByID(int vID[]) {
+    bake();
     return vl.get(vID);
   }
   
   public UVertex[] getVByID(int vID[],UVertex tmp[]) {
+    bake();
     return vl.get(vID,tmp);
   }
 
   public UVertex getVertex(int vID) {    
+    bake();
     return vl.get(vID);
   }
 
   public int addVertex(UVertex v1) {    
+    bake();
     int id=vl.indexOf(v1);
     if(id<0) id=vl.addID(v1);
     return id;
@@ -799,7 +1288,7 @@ public class UGeo extends UMB  {
     long start=t;
     int cnt=0;
 
-    logDivider("quadstrip(ArrayList<UVertexList>\t");
+    if(verbose) logDivider("quadstrip(ArrayList<UVertexList>\t");
 
     ArrayList<int[]> vID=new ArrayList<int[]>();
     taskTimerStart("quadstrip(ArrayList<UVertexList>");
@@ -840,11 +1329,12 @@ public class UGeo extends UMB  {
     
     taskTimerDone();
     
-    s="";
-    for(int i=0; i<vID.size(); i++) s+=(i>0 ? "\t":"") +
-        vID.get(i).length+"|"+vl2.get(i).size();
-    logDivider("done - quadstrip(ArrayList<UVertexList>\t"+n+" "+qID.length+" | "+s);
-    logDivider();
+    if(verbose) {
+      for(int i=0; i<vID.size(); i++) s+=(i>0 ? "\t":"") +
+          vID.get(i).length+"|"+vl2.get(i).size();
+      logDivider("done - quadstrip(ArrayList<UVertexList>\t"+n+" "+qID.length+" | "+s);
+      logDivider();
+    }
 
     return this;
   }
@@ -880,6 +1370,42 @@ public class UGeo extends UMB  {
     return this;
   }
 
+  /**
+   * Adds faces filling the polygon given by <code>outline</code>, excluding the
+   * regions inside <code>holes</code>. Unlike {@link #triangulation(UVertexList)}
+   * the polygon need not be convex, as the outline and holes are used as
+   * constrained edges. See {@link UTriangulate} for details. 
+   * @param outline
+   * @param holes List of holes, or null
+   * @return
+   */
+  public UGeo triangulation(UVertexList outline,ArrayList<UVertexList> holes) {
+    return triangulation(outline,holes,false);
+  }
+
+  public UGeo triangulation(UVertexList outline,ArrayList<UVertexList> holes,boolean reverse) {
+    int oldSize=sizeF();
+    new UTriangulate(this, outline, holes);
+
+    if(reverse) {
+      for(int i=oldSize; i<sizeF(); i++) faces.get(i).reverse();      
+    }
+    
+    return this;
+  }
+
+  /**
+   * Reduces this mesh to at most <code>faceNum</code> faces by quadric error
+   * edge collapse, replacing its contents. See {@link UDecimate} for details
+   * and for building chains of levels of detail. 
+   * @param faceNum Target face count
+   * @return
+   */
+  public UGeo decimate(int faceNum) {
+    new UDecimate(this).reduce(faceNum).update(this);
+    return this;
+  }
+
   public UGeo triangleFan(UVertex c,UVertexList vl) {
     return triangleFan(c, vl,false);
   }
@@ -994,6 +1520,7 @@ public class UGeo extends UMB  {
   public String str() {return str(false);}
 
   public String str(boolean complete) {
+    bake();
     StringBuffer buf=strBufGet();
     
     buf.append(UGEO).append(TAB).append("f="+sizeF());
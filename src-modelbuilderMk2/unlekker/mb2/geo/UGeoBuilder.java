@@ -0,0 +1,190 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.Arrays;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
+import unlekker.mb2.util.URnd;
+
+/**
+ * <p>Generates meshes for a batch of items (parametric variants, tiles etc.)
+ * on all available cores. A {@link Generator} is called once per item and
+ * writes triangles to a {@link UGeoPacked} buffer, which avoids creating
+ * UVertex and UFace instances on the worker threads.</p>
+ *
+ * <p>{@link #build(int, Generator)} returns one mesh per item, while
+ * {@link #buildMerged(int, Generator)} lets each worker fill its own buffer
+ * and then merges all buffers into a single mesh in one pass. In both cases
+ * items appear in index order. {@link #buildUGeo(int, Generator)} and
+ * {@link #buildMergedUGeo(int, Generator)} do the same but return UGeo
+ * instances (see {@link UGeoPacked#toUGeo()}).</p>
+ *
+ * <p>While an item is generated, the <code>rnd()</code> methods in UMB use a
+ * generator seeded with <code>seed+index</code> (see {@link UMB#setThreadRnd(URnd)}),
+ * so results are reproducible regardless of how items are scheduled.</p>
+ *
+ * <pre>
+ * UGeoPacked res=new UGeoBuilder().setSeed(42).buildMerged(1000, new UGeoBuilder.Generator() {
+ *   public void build(int index,UGeoPacked buf) {
+ *     int id=buf.addV(rnd(100),0,0);
+ *     ...
+ *   }
+ * });
+ * </pre>
+ *
+ * @author marius
+ *
+ */
+public class UGeoBuilder extends UMB {
+  public static abstract class Generator {
+    /**
+     * Adds the geometry for item <code>index</code> to <code>buf</code>. Vertex
+     * indices are local to <code>buf</code>, which may already contain other items.
+     */
+    public abstract void build(int index,UGeoPacked buf);
+  }
+
+  private long seed=System.currentTimeMillis();
+
+  public UGeoBuilder setSeed(long seed) {
+    this.seed=seed;
+    return this;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Generates <code>n</code> items in parallel.
+   * @return One mesh per item
+   */
+  public UGeoPacked[] build(int n,final Generator gen) {
+    final UGeoPacked res[]=new UGeoPacked[n];
+
+    UParallel.run(n, 1, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        URnd prev=getRnd();
+        for(int i=from; i<to; i++) {
+          res[i]=new UGeoPacked();
+          generate(gen, i, res[i]);
+        }
+        setThreadRnd(prev==rnd ? null : prev);
+      }
+    });
+
+    return res;
+  }
+
+  /**
+   * Generates <code>n</code> items in parallel, with each worker adding
+   * its items to its own buffer. The buffers are then merged.
+   * @return Mesh containing all items
+   */
+  public UGeoPacked buildMerged(int n,final Generator gen) {
+    int num=UParallel.chunks(n,1);
+    final UGeoPacked buf[]=new UGeoPacked[num];
+
+    UParallel.runChunks(n, num, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        URnd prev=getRnd();
+        buf[chunk]=new UGeoPacked();
+        for(int i=from; i<to; i++) generate(gen, i, buf[chunk]);
+        setThreadRnd(prev==rnd ? null : prev);
+      }
+    });
+
+    return merge(buf);
+  }
+
+  /**
+   * Same as {@link #build(int, Generator)}, with the results converted 
+   * to UGeo in parallel.
+   * @return One mesh per item
+   */
+  public UGeo[] buildUGeo(int n,Generator gen) {
+    final UGeoPacked packed[]=build(n, gen);
+    final UGeo res[]=new UGeo[n];
+
+    UParallel.run(n, 1, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) res[i]=packed[i].toUGeo();
+      }
+    });
+
+    return res;
+  }
+
+  /**
+   * Same as {@link #buildMerged(int, Generator)}, with the result converted 
+   * to UGeo.
+   * @return Mesh containing all items
+   */
+  public UGeo buildMergedUGeo(int n,Generator gen) {
+    return buildMerged(n, gen).toUGeo();
+  }
+
+  private void generate(Generator gen,int index,UGeoPacked buf) {
+    setThreadRnd(new URnd(seed+index));
+    gen.build(index, buf);
+  }
+
+  /**
+   * Concatenates several packed meshes into one, offsetting vertex indices.
+   * Arrays are copied in parallel. If any mesh has U/V coordinates or face
+   * colors, missing values are set to -1 and <code>Integer.MAX_VALUE</code>
+   * respectively (matching UVertex and UFace defaults).
+   * @param geo Meshes to merge, null entries are ignored
+   * @return
+   */
+  public static UGeoPacked merge(final UGeoPacked... geo) {
+    final int vOff[]=new int[geo.length+1],fOff[]=new int[geo.length+1];
+    boolean hasUV=false,hasColor=false;
+
+    for(int i=0; i<geo.length; i++) {
+      vOff[i+1]=vOff[i];
+      fOff[i+1]=fOff[i];
+      if(geo[i]==null) continue;
+      vOff[i+1]+=geo[i].sizeV();
+      fOff[i+1]+=geo[i].sizeF();
+      if(geo[i].uv!=null) hasUV=true;
+      if(geo[i].color!=null) hasColor=true;
+    }
+
+    final UGeoPacked res=new UGeoPacked(vOff[geo.length],fOff[geo.length]);
+    if(hasUV) res.uv=new float[res.xyz.length/3*2];
+    if(hasColor) res.color=new int[res.tri.length/3];
+
+    UParallel.run(geo.length, 1, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) if(geo[i]!=null) {
+          UGeoPacked gg=geo[i];
+          int vn=gg.sizeV(),fn=gg.sizeF(),off=vOff[i];
+
+          System.arraycopy(gg.xyz, 0, res.xyz, off*3, vn*3);
+          for(int j=0,id=fOff[i]*3; j<fn*3; j++) res.tri[id++]=gg.tri[j]+off;
+
+          if(res.uv!=null) {
+            if(gg.uv!=null) System.arraycopy(gg.uv, 0, res.uv, off*2, vn*2);
+            else Arrays.fill(res.uv, off*2, (off+vn)*2, -1);
+          }
+          if(res.color!=null) {
+            if(gg.color!=null) System.arraycopy(gg.color, 0, res.color, fOff[i], fn);
+            else Arrays.fill(res.color, fOff[i], fOff[i]+fn, Integer.MAX_VALUE);
+          }
+        }
+      }
+    });
+
+    res.vn=vOff[geo.length];
+    res.fn=fOff[geo.length];
+    return res;
+  }
+
+  public String str() {
+    return "[UGeoBuilder seed="+seed+"]";
+  }
+}
@@ -35,7 +35,7 @@ public class UGeoGroup extends UMB implements Iterable<UFace> {
     for(int i=atStart; i<atEnd; i++) {
       faces.add(parent.getF(i));
     }
-    log(str());
+    if(verbose) log(str());
 
     return this;    
   }
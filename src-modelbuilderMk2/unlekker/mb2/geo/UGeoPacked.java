@@ -0,0 +1,391 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import unlekker.mb2.util.UMB;
+
+/**
+ * <p>Compact mesh representation storing vertex and face data in primitive arrays
+ * rather than {@link UVertex} and {@link UFace} instances, for batch processing of
+ * large meshes where per-object identity is not needed. A packed mesh uses
+ * 12 bytes per vertex and 12 bytes per triangle, plus optional UV and color data.</p>
+ *
+ * <ul>
+ * <li><code>xyz</code> - Vertex coordinates, 3 floats per vertex</li>
+ * <li><code>tri</code> - Vertex indices, 3 ints per triangle</li>
+ * <li><code>uv</code> - Optional U/V coordinates, 2 floats per vertex</li>
+ * <li><code>color</code> - Optional face colors, 1 int per triangle</li>
+ * </ul>
+ *
+ * <p>Arrays may be larger than the data they contain, use {@link #sizeV()}
+ * and {@link #sizeF()} for the actual number of vertices and triangles.</p>
+ *
+ * @author marius
+ *
+ */
+public class UGeoPacked extends UMB {
+  public float xyz[];
+  public int tri[];
+  public float uv[];
+  public int color[];
+
+  protected int vn,fn;
+  protected UBB bb;
+
+  public UGeoPacked() {
+    this(64,64);
+  }
+
+  /**
+   * Creates an empty mesh with capacity for the given number of vertices and faces.
+   */
+  public UGeoPacked(int vNum,int fNum) {
+    xyz=new float[Math.max(vNum,1)*3];
+    tri=new int[Math.max(fNum,1)*3];
+  }
+
+  public UGeoPacked(UGeo geo) {
+    set(geo);
+  }
+
+  public UGeoPacked(UGeoPacked geo) {
+    set(geo);
+  }
+
+  public UGeoPacked copy() {
+    return new UGeoPacked(this);
+  }
+
+  public int sizeV() {
+    return vn;
+  }
+
+  public int sizeF() {
+    return fn;
+  }
+
+  public UGeoPacked clear() {
+    vn=0;
+    fn=0;
+    bb=null;
+    return this;
+  }
+
+  /**
+   * Copies the vertices and faces of <code>geo</code>. U/V coordinates are copied
+   * if any vertex has U/V set, face colors are copied if any face has a color set.
+   * @param geo
+   * @return
+   */
+  public UGeoPacked set(UGeo geo) {
+    ArrayList<UVertex> v=geo.getV().v;
+    ArrayList<UFace> faces=geo.getF();
+
+    vn=v.size();
+    fn=faces.size();
+    xyz=new float[Math.max(vn,1)*3];
+    tri=new int[Math.max(fn,1)*3];
+    uv=null;
+    color=null;
+    bb=null;
+
+    int id=0;
+    boolean hasUV=false;
+    for(UVertex vv:v) {
+      xyz[id++]=vv.x;
+      xyz[id++]=vv.y;
+      xyz[id++]=vv.z;
+      if(vv.U!=-1 || vv.V!=-1) hasUV=true;
+    }
+
+    if(hasUV) {
+      uv=new float[xyz.length/3*2];
+      id=0;
+      for(UVertex vv:v) {
+        uv[id++]=vv.U;
+        uv[id++]=vv.V;
+      }
+    }
+
+    id=0;
+    boolean hasColor=false;
+    for(UFace ff:faces) {
+      int vID[]=ff.vID;
+      tri[id++]=vID[0];
+      tri[id++]=vID[1];
+      tri[id++]=vID[2];
+      if(ff.col!=Integer.MAX_VALUE) hasColor=true;
+    }
+
+    if(hasColor) {
+      color=new int[tri.length/3];
+      id=0;
+      for(UFace ff:faces) color[id++]=ff.col;
+    }
+
+    return this;
+  }
+
+  public UGeoPacked set(UGeoPacked geo) {
+    vn=geo.vn;
+    fn=geo.fn;
+    xyz=copyOf(geo.xyz, Math.max(vn,1)*3);
+    tri=copyOf(geo.tri, Math.max(fn,1)*3);
+    uv=(geo.uv==null ? null : copyOf(geo.uv, Math.max(vn,1)*2));
+    color=(geo.color==null ? null : copyOf(geo.color, Math.max(fn,1)));
+    bb=null;
+    return this;
+  }
+
+  /**
+   * Converts this mesh to a UGeo instance. Coincident vertices are
+   * merged, and degenerate or duplicate faces are skipped.
+   * @return
+   */
+  public UGeo toUGeo() {
+    return toUGeo(new UGeo());
+  }
+
+  /**
+   * Replaces the contents of <code>geo</code> with this mesh, see {@link #toUGeo()}.
+   * @param geo
+   * @return
+   */
+  public UGeo toUGeo(UGeo geo) {
+    geo.clear();
+    geo.ensureCapacity(vn, fn);
+    UVertexList vl=geo.getV();
+
+    int remap[]=new int[vn];
+    for(int i=0,id=0; i<vn; i++,id+=3) {
+      remap[i]=vl.addID(xyz[id],xyz[id+1],xyz[id+2]);
+      if(uv!=null) {
+        UVertex vv=vl.get(remap[i]);
+        vv.U=uv[i*2];
+        vv.V=uv[i*2+1];
+      }
+    }
+
+    int vID[]=new int[3];
+    for(int i=0,id=0; i<fn; i++) {
+      vID[0]=remap[tri[id++]];
+      vID[1]=remap[tri[id++]];
+      vID[2]=remap[tri[id++]];
+
+      if(vID[0]==vID[1] || vID[1]==vID[2] || vID[0]==vID[2] ||
+          geo.duplicateF(vID[0], vID[1], vID[2])) continue;
+
+      geo.addFace(vID);
+      if(color!=null) geo.getF().get(geo.sizeF()-1).setColor(color[i]);
+    }
+
+    return geo;
+  }
+
+  /**
+   * <p>Writes this mesh back to <code>geo</code> by index, without merging
+   * coincident vertices or skipping faces, so that vertices kept separate on
+   * purpose (U/V seams etc.) stay separate. Faces are replaced and face groups
+   * are cleared.</p>
+   *
+   * <p>If this mesh has at least as many vertices as <code>geo</code>, its first
+   * vertices are assumed to correspond to those of <code>geo</code> (as for
+   * results of {@link USubdivision}, which only appends vertices). The existing
+   * UVertex instances are then kept and updated in place, and any further
+   * vertices are appended. Otherwise all vertices are replaced.</p>
+   * @param geo
+   * @return
+   */
+  public UGeo update(UGeo geo) {
+    UVertexList vl=geo.getV();
+    int old=vl.size();
+    boolean keep=(vn>=old);
+
+    UVertexList tmp=new UVertexList();
+    tmp.ensureCapacity(vn);
+    tmp.enable(NOCOPY);
+    for(int i=0,id=0; i<vn; i++,id+=3) {
+      UVertex vv=(keep && i<old ? vl.get(i) : null);
+      if(vv==null) vv=new UVertex();
+      vv.set(xyz[id],xyz[id+1],xyz[id+2]);
+      if(uv!=null) {
+        vv.U=uv[i*2];
+        vv.V=uv[i*2+1];
+      }
+      tmp.add(vv);
+    }
+
+    geo.clear();
+    geo.ensureCapacity(vn, fn);
+    boolean nocopy=vl.isEnabled(NOCOPY);
+    vl.enable(NOCOPY);
+    vl.addAll(tmp);
+    if(!nocopy) vl.disable(NOCOPY);
+
+    int vID[]=new int[3];
+    for(int i=0,id=0; i<fn; i++) {
+      vID[0]=tri[id++];
+      vID[1]=tri[id++];
+      vID[2]=tri[id++];
+      geo.addFace(vID);
+      if(color!=null) geo.getF().get(geo.sizeF()-1).setColor(color[i]);
+    }
+
+    return geo;
+  }
+
+  /**
+   * Adds a vertex, growing arrays as needed.
+   * @return Index of the new vertex
+   */
+  public int addV(float x,float y,float z) {
+    if((vn+1)*3>xyz.length) {
+      int len=Math.max(vn*2,16);
+      xyz=copyOf(xyz, len*3);
+      if(uv!=null) uv=copyOf(uv, len*2);
+    }
+
+    int id=vn*3;
+    xyz[id++]=x;
+    xyz[id++]=y;
+    xyz[id]=z;
+    bb=null;
+    return vn++;
+  }
+
+  /**
+   * Adds a triangle using the vertices with the given indices, growing arrays as needed.
+   * @return Index of the new triangle
+   */
+  public int addF(int v1,int v2,int v3) {
+    if((fn+1)*3>tri.length) {
+      int len=Math.max(fn*2,16);
+      tri=copyOf(tri, len*3);
+      if(color!=null) color=copyOf(color, len);
+    }
+
+    int id=fn*3;
+    tri[id++]=v1;
+    tri[id++]=v2;
+    tri[id]=v3;
+    return fn++;
+  }
+
+  public UVertex getV(int id) {
+    id*=3;
+    return new UVertex(xyz[id],xyz[id+1],xyz[id+2]);
+  }
+
+  public UGeoPacked translate(UVertex v1) {
+    return translate(v1.x,v1.y,v1.z);
+  }
+
+  public UGeoPacked translateNeg(UVertex v1) {
+    return translate(-v1.x,-v1.y,-v1.z);
+  }
+
+  public UGeoPacked translate(float mx,float my,float mz) {
+    return transform(new UMatrix().translate(mx,my,mz));
+  }
+
+  public UGeoPacked scale(float m) {return scale(m,m,m);}
+
+  public UGeoPacked scale(float mx,float my,float mz) {
+    return transform(new UMatrix().scale(mx,my,mz));
+  }
+
+  public UGeoPacked rotX(float deg) {
+    return transform(new UMatrix().rotX(deg));
+  }
+
+  public UGeoPacked rotY(float deg) {
+    return transform(new UMatrix().rotY(deg));
+  }
+
+  public UGeoPacked rotZ(float deg) {
+    return transform(new UMatrix().rotZ(deg));
+  }
+
+  /**
+   * Applies a transformation matrix to all vertices in parallel,
+   * updating the bounding box in the same pass.
+   * @param m
+   * @return
+   */
+  public UGeoPacked transform(UMatrix m) {
+    bb=m.transform(xyz, vn, bb);
+    return this;
+  }
+
+  public UBB bb() {
+    return bb(false);
+  }
+
+  public UBB bb(boolean force) {
+    if(bb!=null && !force) return bb;
+
+    float minX=Float.POSITIVE_INFINITY,minY=minX,minZ=minX;
+    float maxX=Float.NEGATIVE_INFINITY,maxY=maxX,maxZ=maxX;
+    int n=vn*3;
+    for(int i=0; i<n; i+=3) {
+      float x=xyz[i],y=xyz[i+1],z=xyz[i+2];
+      if(x<minX) minX=x;
+      if(x>maxX) maxX=x;
+      if(y<minY) minY=y;
+      if(y>maxY) maxY=y;
+      if(z<minZ) minZ=z;
+      if(z>maxZ) maxZ=z;
+    }
+
+    if(bb==null) bb=new UBB();
+    bb.min.set(minX,minY,minZ);
+    bb.max.set(maxX,maxY,maxZ);
+    return bb.calc();
+  }
+
+  public UVertex centroid() {
+    return bb().centroid;
+  }
+
+  public UGeoPacked center() {
+    return translateNeg(bb().centroid.copy());
+  }
+
+  public UGeoPacked writeSTL(String filename) {
+    return writeSTL(filename,-1);
+  }
+
+  public UGeoPacked writeSTL(String filename,int colorType) {
+    USTLWriter out=new USTLWriter(filename,colorType);
+    try {
+      out.open(fn);
+      out.write(this);
+      out.close();
+    } catch (Exception e) {
+      e.printStackTrace();
+    } finally {
+      out.abort();
+    }
+    return this;
+  }
+
+  public String str() {
+    return "[UGeoPacked v="+vn+" f="+fn+
+        (uv!=null ? " uv" : "")+(color!=null ? " color" : "")+"]";
+  }
+
+  private static float[] copyOf(float a[],int len) {
+    float res[]=new float[len];
+    System.arraycopy(a, 0, res, 0, Math.min(a.length,len));
+    return res;
+  }
+
+  private static int[] copyOf(int a[],int len) {
+    int res[]=new int[len];
+    System.arraycopy(a, 0, res, 0, Math.min(a.length,len));
+    return res;
+  }
+}
@@ -29,18 +29,31 @@ public class UGeoSelector extends UMB implements Iterable<UFace> {
   public ArrayList<UFace> faces;
   public UEdgeList edges;
   
+  /**
+   * Position of each selected face in <code>faces</code>, keyed by identity,
+   * for constant-time {@link #contains(UFace)} and {@link #remove(UFace)}.
+   */
+  private IdentityHashMap<UFace, Integer> selected;
+
+  /**
+   * Spatial index used by {@link #pick(UVertex, UVertex)}, built on demand.
+   */
+  private UBVH bvh;
+  
   public UGeoSelector(UGeo model) {
     parent=model;
     faces=new ArrayList<UFace>();
+    selected=new IdentityHashMap<UFace, Integer>();
     edges=parent.getEdgeList();
   }
 
   public boolean contains(UFace f) {
-    return !(faces.indexOf(f)<0);
+    return selected.containsKey(f);
   }
 
   public UGeoSelector clear() {
     faces.clear();
+    selected.clear();
     edges=null;
     return this;
   }
@@ -74,7 +87,10 @@ public class UGeoSelector extends UMB implements Iterable<UFace> {
   }
   
   public UGeoSelector add(UFace f) {    
-    if(f!=null && !contains(f)) faces.add(f);
+    if(f!=null && !selected.containsKey(f)) {
+      selected.put(f, faces.size());
+      faces.add(f);
+    }
     return this;
   }
 
@@ -88,8 +104,48 @@ public class UGeoSelector extends UMB implements Iterable<UFace> {
     return this;
   }
   
+  /**
+   * Removes a face from the selection. The last selected face is moved 
+   * into its position, so the order of the selection is not preserved.
+   * @param ff
+   * @return
+   */
   public UGeoSelector remove(UFace ff) {
-    if(contains(ff)) faces.remove(ff);
+    Integer pos=selected.remove(ff);
+    if(pos!=null) {
+      UFace last=faces.remove(faces.size()-1);
+      if(last!=ff) {
+        faces.set(pos, last);
+        selected.put(last, pos);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Finds the face of the parent UGeo nearest to <code>origin</code> that
+   * is hit by a ray in direction <code>dir</code>. Uses a {@link UBVH}
+   * that is built on first use, call {@link #resetPick()} if the parent
+   * geometry has been modified since.
+   * @return Face, or null if no face was hit
+   */
+  public UFace pick(UVertex origin,UVertex dir) {
+    if(bvh==null || bvh.sizeF()!=parent.sizeF()) bvh=new UBVH(parent);
+    UBVH.Hit hit=new UBVH.Hit();
+    if(!bvh.ray(origin, dir, hit)) return null;
+    return bvh.getF(hit.faceID);
+  }
+
+  /**
+   * Adds the face hit by a ray to the selection, see {@link #pick(UVertex, UVertex)}.
+   * @return
+   */
+  public UGeoSelector addPick(UVertex origin,UVertex dir) {
+    return add(pick(origin, dir));
+  }
+
+  public UGeoSelector resetPick() {
+    bvh=null;
     return this;
   }
 
@@ -144,7 +200,7 @@ public class UGeoSelector extends UMB implements Iterable<UFace> {
    * @return
    */
   public UGeoSelector checkSelection() {
-    for(int i=0; i<size(); i++) {
+    for(int i=size()-1; i>-1; i--) {
       UFace fc=faces.get(i);
       if(!parent.contains(fc)) remove(fc);
     }
@@ -0,0 +1,395 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import unlekker.mb2.util.ULongMap;
+import unlekker.mb2.util.UMB;
+
+/**
+ * <p>Half-edge topology of a triangle mesh, stored in flat <code>int</code> arrays
+ * and built in a single linear pass from a {@link UGeo}, a {@link UGeoPacked} or
+ * a raw triangle index array. Intended for adjacency queries on very large meshes,
+ * where creating {@link UEdge} objects for every edge is too costly.</p>
+ *
+ * <p>Half-edges are numbered implicitly, half-edge <code>h</code> belongs to face
+ * <code>h/3</code> and runs from vertex <code>tri[h]</code> to the next vertex of
+ * that face. {@link #twin(int)} gives the opposite half-edge, or -1 if the edge is a
+ * boundary edge or is non-manifold (shared by more than two faces, or by two faces
+ * with inconsistent orientation).</p>
+ *
+ * <p>Queries never allocate, results are written to arrays supplied by the caller
+ * and the number of results is returned. The structure is a snapshot, it must be
+ * rebuilt if the faces of the source mesh change.</p>
+ *
+ * @author marius
+ *
+ */
+public class UHalfEdge extends UMB {
+  private int tri[],twin[];
+  private boolean nonManifold[];
+  private int vn,fn;
+
+  /**
+   * Outgoing half-edges of each vertex, stored as
+   * <code>out[outStart[v]]..out[outStart[v+1]-1]</code>.
+   */
+  private int outStart[],out[];
+
+  private int boundaryStart[],boundary[],boundaryNum;
+  private int nonManifoldNum;
+
+  public UHalfEdge(UGeo geo) {
+    ArrayList<UFace> faces=geo.getF();
+    int t[]=new int[faces.size()*3],id=0;
+    for(UFace ff:faces) {
+      t[id++]=ff.vID[0];
+      t[id++]=ff.vID[1];
+      t[id++]=ff.vID[2];
+    }
+    build(t, faces.size(), geo.sizeV());
+  }
+
+  public UHalfEdge(UGeoPacked geo) {
+    int t[]=new int[geo.sizeF()*3];
+    System.arraycopy(geo.tri, 0, t, 0, t.length);
+    build(t, geo.sizeF(), geo.sizeV());
+  }
+
+  /**
+   * @param tri Vertex indices, 3 per triangle. The array is used directly, not copied.
+   * @param faceNum Number of triangles
+   * @param vertNum Number of vertices
+   */
+  public UHalfEdge(int tri[],int faceNum,int vertNum) {
+    build(tri, faceNum, vertNum);
+  }
+
+  private void build(int t[],int faceNum,int vertNum) {
+    tri=t;
+    fn=faceNum;
+    vn=vertNum;
+
+    int hn=fn*3;
+    twin=new int[hn];
+    nonManifold=new boolean[hn];
+
+    // pair half-edges through a map keyed on their vertex IDs
+    ULongMap map=new ULongMap(hn/2+1);
+    for(int h=0; h<hn; h++) {
+      int a=tri[h],b=tri[next(h)];
+      twin[h]=-1;
+
+      long key=ULongMap.key(a,b);
+      int h0=map.get(key);
+      if(h0==ULongMap.NOTFOUND) {
+        map.put(key, h);
+      }
+      else if(nonManifold[h0]) {
+        nonManifold[h]=true;
+      }
+      else if(twin[h0]==-1 && tri[h0]==b) {
+        twin[h0]=h;
+        twin[h]=h0;
+      }
+      else {
+        // third face on this edge, or two faces with the same orientation
+        int h1=twin[h0];
+        nonManifold[h0]=true;
+        nonManifold[h]=true;
+        twin[h0]=-1;
+        if(h1>-1) {
+          nonManifold[h1]=true;
+          twin[h1]=-1;
+        }
+        nonManifoldNum++;
+      }
+    }
+
+    // counting sort of half-edges by origin vertex
+    outStart=new int[vn+1];
+    for(int h=0; h<hn; h++) outStart[tri[h]+1]++;
+    for(int v=0; v<vn; v++) outStart[v+1]+=outStart[v];
+
+    out=new int[hn];
+    int pos[]=new int[vn];
+    System.arraycopy(outStart, 0, pos, 0, vn);
+    for(int h=0; h<hn; h++) out[pos[tri[h]]++]=h;
+
+    buildBoundary();
+  }
+
+  private void buildBoundary() {
+    int hn=fn*3;
+    int cnt=0;
+    for(int h=0; h<hn; h++) if(isBoundary(h)) cnt++;
+
+    boundary=new int[cnt];
+    boundaryStart=new int[cnt+1];
+    boundaryNum=0;
+    if(cnt==0) return;
+
+    boolean done[]=new boolean[hn];
+    int n=0;
+    for(int h=0; h<hn; h++) {
+      if(done[h] || !isBoundary(h)) continue;
+
+      boundaryStart[boundaryNum++]=n;
+      int hh=h;
+      do {
+        done[hh]=true;
+        boundary[n++]=hh;
+        hh=nextBoundary(hh);
+      } while(hh>-1 && !done[hh]);
+    }
+    boundaryStart[boundaryNum]=n;
+  }
+
+  /**
+   * Finds the boundary half-edge leaving the end vertex of boundary
+   * half-edge <code>h</code>, or -1 if the loop can't be followed.
+   */
+  private int nextBoundary(int h) {
+    int v=dest(h);
+    for(int i=outStart[v]; i<outStart[v+1]; i++) {
+      int hh=out[i];
+      if(isBoundary(hh)) return hh;
+    }
+    return -1;
+  }
+
+  ///////////////////////////////////////
+  // BASIC ACCESS
+
+  public int sizeV() {
+    return vn;
+  }
+
+  public int sizeF() {
+    return fn;
+  }
+
+  /**
+   * @return Number of half-edges, always <code>3*sizeF()</code>.
+   */
+  public int sizeH() {
+    return fn*3;
+  }
+
+  public int face(int h) {
+    return h/3;
+  }
+
+  public int next(int h) {
+    return (h%3==2 ? h-2 : h+1);
+  }
+
+  public int prev(int h) {
+    return (h%3==0 ? h+2 : h-1);
+  }
+
+  public int twin(int h) {
+    return twin[h];
+  }
+
+  /**
+   * @return Vertex ID the half-edge starts at.
+   */
+  public int origin(int h) {
+    return tri[h];
+  }
+
+  /**
+   * @return Vertex ID the half-edge ends at.
+   */
+  public int dest(int h) {
+    return tri[next(h)];
+  }
+
+  public boolean isBoundary(int h) {
+    return twin[h]==-1 && !nonManifold[h];
+  }
+
+  public boolean isNonManifold(int h) {
+    return nonManifold[h];
+  }
+
+  /**
+   * Finds the half-edge running from <code>v1</code> to <code>v2</code>.
+   * @return Half-edge index, or -1 if not found.
+   */
+  public int halfEdge(int v1,int v2) {
+    for(int i=outStart[v1]; i<outStart[v1+1]; i++) {
+      if(dest(out[i])==v2) return out[i];
+    }
+    return -1;
+  }
+
+  ///////////////////////////////////////
+  // VERTEX QUERIES
+
+  /**
+   * @return Number of faces using vertex <code>v</code>.
+   */
+  public int sizeFaces(int v) {
+    return outStart[v+1]-outStart[v];
+  }
+
+  /**
+   * Writes the IDs of the faces using vertex <code>v</code> to <code>res</code>.
+   * @return Number of faces
+   */
+  public int vertexFaces(int v,int res[]) {
+    int n=0;
+    for(int i=outStart[v]; i<outStart[v+1]; i++) res[n++]=out[i]/3;
+    return n;
+  }
+
+  /**
+   * Writes the IDs of the vertices connected to vertex <code>v</code> by an
+   * edge to <code>res</code>. The order is unspecified.
+   * @return Number of vertices
+   */
+  public int oneRing(int v,int res[]) {
+    int n=0;
+    for(int i=outStart[v]; i<outStart[v+1]; i++) {
+      int h=out[i];
+      n=addUnique(res, n, dest(h));
+      // incoming edge, only missing from the outgoing set on boundaries
+      if(twin[prev(h)]<0) n=addUnique(res, n, tri[prev(h)]);
+    }
+    return n;
+  }
+
+  /**
+   * @return Number of vertices connected to vertex <code>v</code>, assuming
+   * <code>v</code> is a manifold vertex.
+   */
+  public int valence(int v) {
+    int n=0;
+    for(int i=outStart[v]; i<outStart[v+1]; i++) {
+      n++;
+      if(twin[prev(out[i])]<0) n++;
+    }
+    return n;
+  }
+
+  public boolean isBoundaryVertex(int v) {
+    for(int i=outStart[v]; i<outStart[v+1]; i++) {
+      int h=out[i];
+      if(isBoundary(h) || isBoundary(prev(h))) return true;
+    }
+    return false;
+  }
+
+  private static int addUnique(int res[],int n,int v) {
+    for(int i=0; i<n; i++) if(res[i]==v) return n;
+    res[n]=v;
+    return n+1;
+  }
+
+  ///////////////////////////////////////
+  // FACE QUERIES
+
+  /**
+   * Writes the IDs of the faces sharing an edge with face <code>f</code> to
+   * <code>res</code>, with -1 for boundary or non-manifold edges. <code>res</code>
+   * must have room for 3 values, <code>res[i]</code> is the face opposite edge
+   * <code>i</code> (running from vertex <code>i</code> to vertex <code>i+1</code>).
+   * @return Number of neighbouring faces found
+   */
+  public int faceNeighbours(int f,int res[]) {
+    int n=0;
+    for(int i=0; i<3; i++) {
+      int tw=twin[f*3+i];
+      res[i]=(tw<0 ? -1 : tw/3);
+      if(tw>-1) n++;
+    }
+    return n;
+  }
+
+  /**
+   * @return ID of the face opposite edge <code>edge</code> (0-2) of face <code>f</code>,
+   * or -1 if none.
+   */
+  public int faceNeighbour(int f,int edge) {
+    int tw=twin[f*3+edge];
+    return tw<0 ? -1 : tw/3;
+  }
+
+  ///////////////////////////////////////
+  // BOUNDARIES AND NON-MANIFOLD EDGES
+
+  /**
+   * @return <code>true</code> if the mesh has no boundary or non-manifold edges.
+   */
+  public boolean isClosed() {
+    return boundary.length==0 && nonManifoldNum==0;
+  }
+
+  public boolean isManifold() {
+    return nonManifoldNum==0;
+  }
+
+  /**
+   * @return Number of edges shared by more than two faces or by
+   * inconsistently oriented faces.
+   */
+  public int sizeNonManifold() {
+    return nonManifoldNum;
+  }
+
+  /**
+   * Writes all non-manifold half-edges to <code>res</code>, which must
+   * have room for <code>sizeH()</code> values in the worst case.
+   * @return Number of half-edges
+   */
+  public int nonManifold(int res[]) {
+    int n=0,hn=fn*3;
+    for(int h=0; h<hn; h++) if(nonManifold[h]) res[n++]=h;
+    return n;
+  }
+
+  /**
+   * @return Number of boundary loops. Loops that can't be closed, typically
+   * because they touch non-manifold edges, are included as open chains.
+   */
+  public int sizeBoundaryLoops() {
+    return boundaryNum;
+  }
+
+  /**
+   * @return Number of vertices in boundary loop <code>loop</code>.
+   */
+  public int sizeBoundaryLoop(int loop) {
+    return boundaryStart[loop+1]-boundaryStart[loop];
+  }
+
+  /**
+   * Writes the vertex IDs of boundary loop <code>loop</code> to <code>res</code>,
+   * in the order given by the boundary half-edges.
+   * @return Number of vertices
+   */
+  public int boundaryLoop(int loop,int res[]) {
+    int n=0;
+    for(int i=boundaryStart[loop]; i<boundaryStart[loop+1]; i++) res[n++]=tri[boundary[i]];
+    return n;
+  }
+
+  /**
+   * Writes the half-edges of boundary loop <code>loop</code> to <code>res</code>.
+   * @return Number of half-edges
+   */
+  public int boundaryLoopH(int loop,int res[]) {
+    int n=0;
+    for(int i=boundaryStart[loop]; i<boundaryStart[loop+1]; i++) res[n++]=boundary[i];
+    return n;
+  }
+
+  public String str() {
+    return "[UHalfEdge v="+vn+" f="+fn+" boundaryLoops="+boundaryNum+
+        " boundaryEdges="+boundary.length+" nonManifold="+nonManifoldNum+"]";
+  }
+}
@@ -62,6 +62,8 @@ public class UHeading extends UMB {
    * Using <code>path</code> as a motion path and <code>prof</code> as the outline of
    * a sweep geometry, this function calculates the heading transforms for all vertices in 
    * <code>path</code> and places correctly aligned copies of <code>prof</code> at each position.
+   * Each copy is aligned independently, see {@link USweep} for rotation-minimizing 
+   * frames and faster sweeps of long paths.
    *  
    * @param path
    * @param prof vertex list defining outline shape to be swept along path, assumed to lie in XY plane and 
@@ -188,7 +190,7 @@ public class UHeading extends UMB {
       else if(vn==null) vv=vp;
       else vv=vn;
       
-      log(i+"/"+input.size()+" "+
+      if(verbose) log(i+"/"+input.size()+" "+
           isClosed+" vp="+(vp!=null)+
           " vn="+(vn!=null)+" "+vv.str());
       
@@ -223,7 +225,7 @@ public class UHeading extends UMB {
       align(vv);
       
     }
-    return vl;
+    return vl.reindex();
   }
 
   public UGeo align(UGeo geo) {
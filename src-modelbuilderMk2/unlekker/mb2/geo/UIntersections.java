@@ -3,8 +3,6 @@ package unlekker.mb2.geo;
 import unlekker.mb2.util.UMB;
 
 public class UIntersections extends UMB {
-  private static UFace planeY;
-  
   public static UVertex[] circleCircle2D(UVertex v1,float r1, UVertex v2,float r2) {
     float dx = v1.x - v2.x;
     float dy = v1.y - v2.y;
@@ -54,74 +52,57 @@ public class UIntersections extends UMB {
   }
   
   
+  /**
+   * Intersects a face with the XZ plane at a given Y position. To slice
+   * whole meshes with many planes, use {@link USlicer} instead.
+   * @param f
+   * @param Y Y position of plane
+   * @return Array of 3 intersection points, one per edge (<code>v[0]-v[1]</code>,
+   * <code>v[1]-v[2]</code>, <code>v[2]-v[0]</code>), with null for edges that
+   * don't cross the plane. Returns null if the face does not cross the plane.
+   */
   public static UVertex[] faceYPlane(UFace f,float Y) {
-
-    if(planeY==null) {
-      float BIG=Float.MAX_VALUE*0.1f;
-      planeY=new UFace().set(
-          new UVertex(BIG,0),
-          new UVertex(BIG,0).rotY(120*DEG_TO_RAD),
-          new UVertex(BIG,0).rotY(240*DEG_TO_RAD));
-      log(planeY.normal().str()+" "+
-          UVertex.delta(planeY.v[1],planeY.v[0]).str()+" "+
-          UVertex.delta(planeY.v[2],planeY.v[0]).str());
-    }
-    float yD=Y-planeY.getV()[0].y;
-    for(UVertex vv:planeY.getV()) vv.add(0,yD,0);
-    
     UVertex[] fv=f.getV();
     if(fv[0].y>Y && fv[1].y>Y && fv[2].y>Y) return null;
     if(fv[0].y<Y && fv[1].y<Y && fv[2].y<Y) return null;
 
-    log("planeY "+str(planeY.getV())+" | "+str(fv));
-    
-    int id=0;
-    UVertex[] vv=new UVertex[] {
-        linePlane(fv[0], fv[1], planeY),
-        linePlane(fv[1], fv[2], planeY),
-        linePlane(fv[2], fv[0], planeY)
-//        lineYPlane(fv[0], fv[1], Y),
-//        lineYPlane(fv[1], fv[2], Y),
-//        lineYPlane(fv[2], fv[0], Y)
+    return new UVertex[] {
+        lineYPlane(fv[0], fv[1], Y),
+        lineYPlane(fv[1], fv[2], Y),
+        lineYPlane(fv[2], fv[0], Y)
     };
-    
-    return vv;
   }
 
+  /**
+   * Intersection between the line segment from <code>a</code> to <code>b</code>
+   * and the plane through the vertices of <code>plane</code>.
+   * @return Intersection point, or null if both end points are on the same
+   * side of the plane or one of them lies on it.
+   */
   public static UVertex linePlane(UVertex a,UVertex b,UFace plane) {
-    UVertex D1,D2,v[],n,origin;
-    
-    v=plane.getV();
-    n=plane.normal();
-    log(str(v)+" "+n.str());
-    D1=v[0].delta(v[1]);
-    D2=v[0].delta(v[2]);
-    n=D1.cross(D2).norm();
+    UVertex v[]=plane.getV();
+    UVertex o=v[0];
 
-    origin=v[0];
-    
-    // distance plane -> a/b
-    float dist=origin.mag();
-    dist=0;
-    float da = a.dot(n) - dist;
-    float db = b.dot(n) - dist;
+    // plane normal from edge vectors, relative to v[0]
+    float d1x=v[1].x-o.x,d1y=v[1].y-o.y,d1z=v[1].z-o.z;
+    float d2x=v[2].x-o.x,d2y=v[2].y-o.y,d2z=v[2].z-o.z;
+    float nx=d1y*d2z-d1z*d2y;
+    float ny=d1z*d2x-d1x*d2z;
+    float nz=d1x*d2y-d1y*d2x;
+
+    // signed distances of a/b, scaled by the length of n
+    float da=(a.x-o.x)*nx+(a.y-o.y)*ny+(a.z-o.z)*nz;
+    float db=(b.x-o.x)*nx+(b.y-o.y)*ny+(b.z-o.z)*nz;
 
-    log(n.str()+" da "+da+" db "+db);
-  //The distance is < zero if the point is on the backside of the plane. It's zero if the point is on the plane, and positive otherwise. If both points have a negative distance we can remove them. The line will be entirely on the backside of the plane. If both are positive we don't have to do anything (the line is completely visible). But if the signs are different we have to calculate the intersection point of the plane and the line:
     if(da>0 && db>0) return null;
     if(da<0 && db<0) return null;
     if(da==0 || db==0)  return null;
-    
-    UVertex i=new UVertex();
+
     float s = da/(da-db);   // intersection factor (between 0 and 1)
-  
-    i.set(b).sub(a).mult(s).add(a);
-    i.set(a.x + s*(b.x-a.x),
+    return new UVertex(
+        a.x + s*(b.x-a.x),
         a.y + s*(b.y-a.y),
         a.z + s*(b.z-a.z));
-    i.log("Intersection: "+ i.str()+" "+s);
-    return i;
-  
   }
 
   /**
@@ -133,32 +114,20 @@ public class UIntersections extends UMB {
    * @return
    */
   public static UVertex lineYPlane(UVertex a,UVertex b,float Y) {
-    UVertex D1,D2,v[],n,origin;
-    
-    n=new UVertex(0,1,0);
+    float da = a.y - Y;
+    float db = b.y - Y;
 
-    float dist=0;
-    float da = a.dot(n) - dist;
-    float db = b.dot(n) - dist;
-
-  //The distance is < zero if the point is on the backside of the plane. It's zero if the point is on the plane, and positive otherwise. If both points have a negative distance we can remove them. The line will be entirely on the backside of the plane. If both are positive we don't have to do anything (the line is completely visible). But if the signs are different we have to calculate the intersection point of the plane and the line:
+    // no intersection if both points are on the same side of the plane,
+    // or if either point lies on it
     if(da>0 && db>0) return null;
     if(da<0 && db<0) return null;
     if(da==0 || db==0)  return null;
-    
-    UVertex i=new UVertex();
+
     float s = da/(da-db);   // intersection factor (between 0 and 1)
-  
-    i.set(b).sub(a).mult(s).add(a);
-    i.set(a.x + s*(b.x-a.x),
-        a.y + s*(b.y-a.y),
+    return new UVertex(
+        a.x + s*(b.x-a.x),
+        Y,
         a.z + s*(b.z-a.z));
-//    i.set(a.x + s*(b.x-a.x),
-//        a.y + s*(b.y-a.y),
-//        a.z + s*(b.z-a.z));
-    i.log(i.str()+" "+s);
-    return i;
-  
   }
 
 }
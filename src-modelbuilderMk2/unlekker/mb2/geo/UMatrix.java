@@ -0,0 +1,337 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Affine 4x4 transformation matrix (stored as the top 3 rows, in double
+ * precision) for applying a composed sequence of transforms to many vertices
+ * in a single pass. Transforms are appended in the order they are called, so
+ * that</p>
+ *
+ * <pre>new UMatrix().translate(10,0,0).rotX(HALF_PI)</pre>
+ *
+ * <p>translates first, then rotates. Rotations use the same convention as
+ * {@link UVertex#rotAxis(int, float)}, so a single transform gives exactly the
+ * same result as the corresponding UVertex method.</p>
+ *
+ * <p>The <code>transform()</code> methods for vertex lists and arrays run in
+ * parallel (see {@link UParallel}) and compute the bounding box of the result
+ * in the same pass. Lists containing several references to the same UVertex
+ * object must not be transformed in parallel.</p>
+ *
+ * @author marius
+ *
+ */
+public class UMatrix extends UMB {
+  public double m[]=new double[12];
+
+  public UMatrix() {
+    identity();
+  }
+
+  public UMatrix(UMatrix mat) {
+    set(mat);
+  }
+
+  public UMatrix copy() {
+    return new UMatrix(this);
+  }
+
+  public UMatrix set(UMatrix mat) {
+    System.arraycopy(mat.m, 0, m, 0, 12);
+    return this;
+  }
+
+  public UMatrix identity() {
+    for(int i=0; i<12; i++) m[i]=0;
+    m[0]=m[5]=m[10]=1;
+    return this;
+  }
+
+  public UMatrix translate(UVertex v1) {
+    return translate(v1.x,v1.y,v1.z);
+  }
+
+  public UMatrix translate(float mx,float my,float mz) {
+    m[3]+=mx;
+    m[7]+=my;
+    m[11]+=mz;
+    return this;
+  }
+
+  public UMatrix scale(float mult) {
+    return scale(mult,mult,mult);
+  }
+
+  public UMatrix scale(float mx,float my,float mz) {
+    for(int i=0; i<4; i++) {
+      m[i]*=mx;
+      m[4+i]*=my;
+      m[8+i]*=mz;
+    }
+    return this;
+  }
+
+  public UMatrix rotX(float deg) {
+    return rot(1,2,deg);
+  }
+
+  public UMatrix rotY(float deg) {
+    return rot(0,2,deg);
+  }
+
+  public UMatrix rotZ(float deg) {
+    return rot(0,1,deg);
+  }
+
+  /**
+   * Appends a rotation in the plane of coordinate axes <code>a</code>
+   * and <code>b</code>.
+   */
+  private UMatrix rot(int a,int b,float deg) {
+    double sindeg=Math.sin(deg),cosdeg=Math.cos(deg);
+    a*=4;
+    b*=4;
+    for(int i=0; i<4; i++) {
+      double ra=m[a+i],rb=m[b+i];
+      m[a+i]=ra*cosdeg-rb*sindeg;
+      m[b+i]=ra*sindeg+rb*cosdeg;
+    }
+    return this;
+  }
+
+  /**
+   * Appends the transform given by <code>mat</code>, so that it is applied
+   * after the current transforms.
+   * @param mat
+   * @return
+   */
+  public UMatrix apply(UMatrix mat) {
+    double res[]=new double[12],b[]=mat.m;
+    for(int i=0; i<3; i++) {
+      int r=i*4;
+      for(int j=0; j<4; j++) {
+        res[r+j]=b[r]*m[j]+b[r+1]*m[4+j]+b[r+2]*m[8+j];
+      }
+      res[r+3]+=b[r+3];
+    }
+    m=res;
+    return this;
+  }
+
+  public boolean isIdentity() {
+    return m[0]==1 && m[5]==1 && m[10]==1 &&
+        m[3]==0 && m[7]==0 && m[11]==0 && isAxisAligned();
+  }
+
+  /**
+   * @return <code>true</code> if the matrix contains only scaling and
+   * translation, so that axis-aligned boxes stay axis-aligned.
+   */
+  public boolean isAxisAligned() {
+    return m[1]==0 && m[2]==0 && m[4]==0 &&
+        m[6]==0 && m[8]==0 && m[9]==0;
+  }
+
+  public UVertex transform(UVertex v1) {
+    double x=v1.x,y=v1.y,z=v1.z;
+    v1.set(
+        (float)(m[0]*x+m[1]*y+m[2]*z+m[3]),
+        (float)(m[4]*x+m[5]*y+m[6]*z+m[7]),
+        (float)(m[8]*x+m[9]*y+m[10]*z+m[11]));
+    return v1;
+  }
+
+  /**
+   * Transforms all vertices in <code>v</code> in parallel, calculating
+   * their bounding box in the same pass.
+   * @param v Vertices to transform
+   * @param bb Bounding box to store the result in, or null
+   * @return Bounding box of transformed vertices
+   */
+  public UBB transform(ArrayList<UVertex> v,UBB bb) {
+    return transform(v, true, bb);
+  }
+
+  /**
+   * Calculates the bounding box that the vertices in <code>v</code> would
+   * have after being transformed, without modifying them.
+   * @param v Vertices
+   * @param bb Bounding box to store the result in, or null
+   * @return Bounding box of transformed vertices
+   */
+  public UBB bounds(ArrayList<UVertex> v,UBB bb) {
+    return transform(v, false, bb);
+  }
+
+  private UBB transform(final ArrayList<UVertex> v,final boolean write,UBB bb) {
+    final int n=v.size(),num=UParallel.chunks(n);
+    final float b[]=newBounds(num);
+
+    UParallel.runChunks(n, num, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        float minX=b[chunk*6],minY=minX,minZ=minX;
+        float maxX=b[chunk*6+3],maxY=maxX,maxZ=maxX;
+
+        for(int i=from; i<to; i++) {
+          UVertex vv=v.get(i);
+          double x=vv.x,y=vv.y,z=vv.z;
+          float xx=(float)(m[0]*x+m[1]*y+m[2]*z+m[3]);
+          float yy=(float)(m[4]*x+m[5]*y+m[6]*z+m[7]);
+          float zz=(float)(m[8]*x+m[9]*y+m[10]*z+m[11]);
+          if(write) {
+            vv.x=xx;
+            vv.y=yy;
+            vv.z=zz;
+          }
+
+          if(xx<minX) minX=xx;
+          if(xx>maxX) maxX=xx;
+          if(yy<minY) minY=yy;
+          if(yy>maxY) maxY=yy;
+          if(zz<minZ) minZ=zz;
+          if(zz>maxZ) maxZ=zz;
+        }
+
+        setBounds(b, chunk, minX,minY,minZ, maxX,maxY,maxZ);
+      }
+    });
+
+    return mergeBounds(b, bb);
+  }
+
+  /**
+   * Transforms the corners of bounding box <code>in</code>, storing the
+   * box enclosing them in <code>res</code>. The result is exact if
+   * {@link #isAxisAligned()} is true, otherwise it is a conservative bound.
+   * @param in
+   * @param res Bounding box to store the result in, or null
+   * @return
+   */
+  public UBB transform(UBB in,UBB res) {
+    float b[]=newBounds(1);
+    for(int i=0; i<8; i++) {
+      double x=((i&1)==0 ? in.min.x : in.max.x);
+      double y=((i&2)==0 ? in.min.y : in.max.y);
+      double z=((i&4)==0 ? in.min.z : in.max.z);
+      float xx=(float)(m[0]*x+m[1]*y+m[2]*z+m[3]);
+      float yy=(float)(m[4]*x+m[5]*y+m[6]*z+m[7]);
+      float zz=(float)(m[8]*x+m[9]*y+m[10]*z+m[11]);
+      setBounds(b, 0, min(b[0],xx),min(b[1],yy),min(b[2],zz),
+          max(b[3],xx),max(b[4],yy),max(b[5],zz));
+    }
+    return mergeBounds(b, res);
+  }
+
+  /**
+   * Transforms packed vertex coordinates (3 floats per vertex) in parallel,
+   * calculating their bounding box in the same pass.
+   * @param xyz Vertex coordinates
+   * @param vn Number of vertices
+   * @param bb Bounding box to store the result in, or null
+   * @return Bounding box of transformed vertices
+   */
+  public UBB transform(final float xyz[],int vn,UBB bb) {
+    int num=UParallel.chunks(vn);
+    final float b[]=newBounds(num);
+
+    UParallel.runChunks(vn, num, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        float minX=b[chunk*6],minY=minX,minZ=minX;
+        float maxX=b[chunk*6+3],maxY=maxX,maxZ=maxX;
+
+        for(int i=from*3; i<to*3; i+=3) {
+          double x=xyz[i],y=xyz[i+1],z=xyz[i+2];
+          float xx=(float)(m[0]*x+m[1]*y+m[2]*z+m[3]);
+          float yy=(float)(m[4]*x+m[5]*y+m[6]*z+m[7]);
+          float zz=(float)(m[8]*x+m[9]*y+m[10]*z+m[11]);
+          xyz[i]=xx;
+          xyz[i+1]=yy;
+          xyz[i+2]=zz;
+
+          if(xx<minX) minX=xx;
+          if(xx>maxX) maxX=xx;
+          if(yy<minY) minY=yy;
+          if(yy>maxY) maxY=yy;
+          if(zz<minZ) minZ=zz;
+          if(zz>maxZ) maxZ=zz;
+        }
+
+        setBounds(b, chunk, minX,minY,minZ, maxX,maxY,maxZ);
+      }
+    });
+
+    return mergeBounds(b, bb);
+  }
+
+  /**
+   * Transforms a stack of vertex lists, as used by {@link UGeo#quadstrip(ArrayList)}.
+   * Short lists are processed in parallel per list, long lists are each transformed
+   * in parallel. The bounding box of each list is updated.
+   * @param stack
+   */
+  public void transformAll(final ArrayList<UVertexList> stack) {
+    int total=0;
+    for(UVertexList vl:stack) total+=vl.size();
+
+    if(stack.size()<UParallel.getThreads()*2) {
+      for(UVertexList vl:stack) vl.transform(this);
+      return;
+    }
+
+    final UMatrix mat=this;
+    int grain=Math.max(1, UParallel.MINCHUNK*stack.size()/Math.max(1,total));
+    UParallel.run(stack.size(), grain, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) stack.get(i).transform(mat);
+      }
+    });
+  }
+
+  private static float[] newBounds(int chunks) {
+    float b[]=new float[chunks*6];
+    for(int i=0; i<chunks; i++) {
+      b[i*6]=b[i*6+1]=b[i*6+2]=Float.POSITIVE_INFINITY;
+      b[i*6+3]=b[i*6+4]=b[i*6+5]=Float.NEGATIVE_INFINITY;
+    }
+    return b;
+  }
+
+  private static void setBounds(float b[],int chunk,
+      float minX,float minY,float minZ,float maxX,float maxY,float maxZ) {
+    int id=chunk*6;
+    b[id++]=minX;
+    b[id++]=minY;
+    b[id++]=minZ;
+    b[id++]=maxX;
+    b[id++]=maxY;
+    b[id]=maxZ;
+  }
+
+  private static UBB mergeBounds(float b[],UBB bb) {
+    if(bb==null) bb=new UBB();
+    bb.min.set(Float.POSITIVE_INFINITY,Float.POSITIVE_INFINITY,Float.POSITIVE_INFINITY);
+    bb.max.set(Float.NEGATIVE_INFINITY,Float.NEGATIVE_INFINITY,Float.NEGATIVE_INFINITY);
+
+    for(int i=0; i<b.length; i+=6) {
+      bb.min.set(min(bb.min.x,b[i]), min(bb.min.y,b[i+1]), min(bb.min.z,b[i+2]));
+      bb.max.set(max(bb.max.x,b[i+3]), max(bb.max.y,b[i+4]), max(bb.max.z,b[i+5]));
+    }
+    return bb.calc();
+  }
+
+  public String str() {
+    StringBuilder buf=new StringBuilder("[UMatrix");
+    for(int i=0; i<3; i++) {
+      buf.append(i==0 ? " " : ", ");
+      for(int j=0; j<4; j++) buf.append(j>0 ? " " : "").append(nf((float)m[i*4+j]));
+    }
+    return buf.append("]").toString();
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UMetrics;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Face and vertex normals of a mesh, calculated in parallel into primitive
+ * <code>float</code> arrays (3 floats per face / vertex). Face normals use the
+ * same orientation as {@link UFace#normal()}. Vertex normals are the weighted
+ * average of the normals of the faces sharing a vertex, weighted either by
+ * the angle of each face at that vertex ({@link #NORMALANGLE}, the default)
+ * or by face area ({@link #NORMALAREA}).</p>
+ *
+ * <p>Normals for a {@link UGeo} are usually obtained through
+ * {@link UGeo#getNormals()}, which keeps a cached instance and only
+ * recalculates it when vertices or faces have changed.</p>
+ *
+ * @author marius
+ *
+ */
+public class UNormals extends UMB {
+  /**
+   * Face normals, 3 floats per face.
+   */
+  public float face[];
+
+  /**
+   * Vertex normals, 3 floats per vertex.
+   */
+  public float vertex[];
+
+  /**
+   * Face areas.
+   */
+  public float area[];
+
+  public int type=NORMALANGLE;
+
+  private int vn,fn;
+  private float xyz[];
+  private int tri[];
+
+  /**
+   * Faces using each vertex, stored as corner indices (<code>face*3+i</code>) in
+   * <code>corner[cornerStart[v]]..corner[cornerStart[v+1]-1]</code>.
+   */
+  private int cornerStart[],corner[];
+
+  // state of the UGeo the normals were calculated from
+  private UVertexList geoVL;
+  private int geoVertexMod=-1,geoFaceMod=-1;
+
+  private static final UMetrics.Timer CALC=UMetrics.timer("geo.normals");
+
+  public UNormals() {
+  }
+
+  public UNormals(UGeoPacked geo) {
+    this(geo,NORMALANGLE);
+  }
+
+  public UNormals(UGeoPacked geo,int type) {
+    this.type=type;
+    calc(geo.xyz, geo.tri, geo.sizeV(), geo.sizeF());
+  }
+
+  public int sizeV() {
+    return vn;
+  }
+
+  public int sizeF() {
+    return fn;
+  }
+
+  /**
+   * Sets the weighting used for vertex normals, {@link #NORMALANGLE} or
+   * {@link #NORMALAREA}.
+   */
+  public UNormals setType(int type) {
+    if(type!=this.type) geoVertexMod=-1;
+    this.type=type;
+    return this;
+  }
+
+  /**
+   * Recalculates normals for <code>geo</code> if its vertices or faces have
+   * changed since the last call.
+   * @param geo
+   * @param faceMod Face modification counter of <code>geo</code>
+   * @return
+   */
+  UNormals update(UGeo geo,int faceMod) {
+    UVertexList vl=geo.vl;
+    ArrayList<UFace> faces=geo.faces;
+    boolean facesChanged=(faceMod!=geoFaceMod || faces.size()!=fn);
+    if(!facesChanged && vl==geoVL &&
+        vl.getModCount()==geoVertexMod && vl.size()==vn) return this;
+
+    final ArrayList<UVertex> v=vl.v;
+    final int n=v.size();
+    if(xyz==null || xyz.length<n*3) xyz=new float[n*3];
+    final float pos[]=xyz;
+    UParallel.run(n, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) {
+          UVertex vv=v.get(i);
+          pos[i*3]=vv.x;
+          pos[i*3+1]=vv.y;
+          pos[i*3+2]=vv.z;
+        }
+      }
+    });
+
+    if(facesChanged || tri==null) {
+      int t[]=new int[faces.size()*3],id=0;
+      for(UFace ff:faces) {
+        t[id++]=ff.vID[0];
+        t[id++]=ff.vID[1];
+        t[id++]=ff.vID[2];
+      }
+      tri=t;
+      cornerStart=null;
+    }
+
+    calc(xyz, tri, n, faces.size());
+    geoVL=vl;
+    geoVertexMod=vl.getModCount();
+    geoFaceMod=faceMod;
+    return this;
+  }
+
+  /**
+   * Forces recalculation on the next call to {@link UGeo#getNormals()}.
+   */
+  public UNormals reset() {
+    geoVertexMod=-1;
+    geoFaceMod=-1;
+    return this;
+  }
+
+  /**
+   * Calculates face and vertex normals from packed vertex coordinates and
+   * triangle indices. The arrays are used directly, not copied.
+   */
+  public UNormals calc(final float xyz[],final int tri[],int vn,int fn) {
+    long t=CALC.start();
+    if(tri!=this.tri || fn!=this.fn || vn!=this.vn) cornerStart=null;
+    this.xyz=xyz;
+    this.tri=tri;
+    this.vn=vn;
+    this.fn=fn;
+
+    if(face==null || face.length<fn*3) {
+      face=new float[fn*3];
+      area=new float[fn];
+    }
+    if(vertex==null || vertex.length<vn*3) vertex=new float[vn*3];
+
+    final boolean angle=(type==NORMALANGLE);
+    final float cornerW[]=(angle ? new float[fn*3] : null);
+    final float fnorm[]=face,farea[]=area;
+
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int f=from; f<to; f++) {
+          int a=tri[f*3]*3,b=tri[f*3+1]*3,c=tri[f*3+2]*3;
+
+          float e1x=xyz[c]-xyz[a],e1y=xyz[c+1]-xyz[a+1],e1z=xyz[c+2]-xyz[a+2];
+          float e2x=xyz[b]-xyz[a],e2y=xyz[b+1]-xyz[a+1],e2z=xyz[b+2]-xyz[a+2];
+          float nx=e1y*e2z-e2y*e1z,ny=e1z*e2x-e2z*e1x,nz=e1x*e2y-e2x*e1y;
+          float l=(float)Math.sqrt(nx*nx+ny*ny+nz*nz);
+          farea[f]=l*0.5f;
+          if(l>0) {
+            nx/=l;
+            ny/=l;
+            nz/=l;
+          }
+          fnorm[f*3]=nx;
+          fnorm[f*3+1]=ny;
+          fnorm[f*3+2]=nz;
+
+          if(angle) {
+            cornerW[f*3]=angle(xyz, a,b,c);
+            cornerW[f*3+1]=angle(xyz, b,c,a);
+            cornerW[f*3+2]=angle(xyz, c,a,b);
+          }
+        }
+      }
+    });
+
+    if(cornerStart==null) buildCorners();
+
+    final float vnorm[]=vertex;
+    final int cs[]=cornerStart,cr[]=corner;
+    UParallel.run(vn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int v=from; v<to; v++) {
+          float x=0,y=0,z=0;
+          for(int i=cs[v]; i<cs[v+1]; i++) {
+            int h=cr[i],f=h/3;
+            float w=(angle ? cornerW[h] : farea[f]);
+            x+=fnorm[f*3]*w;
+            y+=fnorm[f*3+1]*w;
+            z+=fnorm[f*3+2]*w;
+          }
+
+          float l=(float)Math.sqrt(x*x+y*y+z*z);
+          if(l>0) {
+            x/=l;
+            y/=l;
+            z/=l;
+          }
+          vnorm[v*3]=x;
+          vnorm[v*3+1]=y;
+          vnorm[v*3+2]=z;
+        }
+      }
+    });
+
+    CALC.stop(t);
+    return this;
+  }
+
+  /**
+   * @return Angle at vertex <code>a</code> between the edges to <code>b</code>
+   * and <code>c</code> (all given as offsets into <code>xyz</code>).
+   */
+  private static float angle(float xyz[],int a,int b,int c) {
+    float ux=xyz[b]-xyz[a],uy=xyz[b+1]-xyz[a+1],uz=xyz[b+2]-xyz[a+2];
+    float vx=xyz[c]-xyz[a],vy=xyz[c+1]-xyz[a+1],vz=xyz[c+2]-xyz[a+2];
+    float l=(float)Math.sqrt((ux*ux+uy*uy+uz*uz)*(vx*vx+vy*vy+vz*vz));
+    if(l==0) return 0;
+    float d=(ux*vx+uy*vy+uz*vz)/l;
+    return (float)Math.acos(d<-1 ? -1 : (d>1 ? 1 : d));
+  }
+
+  /**
+   * Counting sort of face corners by vertex.
+   */
+  private void buildCorners() {
+    int hn=fn*3;
+    cornerStart=new int[vn+1];
+    for(int h=0; h<hn; h++) cornerStart[tri[h]+1]++;
+    for(int v=0; v<vn; v++) cornerStart[v+1]+=cornerStart[v];
+
+    corner=new int[hn];
+    int pos[]=new int[vn];
+    System.arraycopy(cornerStart, 0, pos, 0, vn);
+    for(int h=0; h<hn; h++) corner[pos[tri[h]]++]=h;
+  }
+
+  /**
+   * Copies the normal of face <code>id</code> to <code>res</code>.
+   * @param res Vertex to store result in, or null
+   * @return
+   */
+  public UVertex getFaceNormal(int id,UVertex res) {
+    if(res==null) res=new UVertex();
+    return res.set(face[id*3],face[id*3+1],face[id*3+2]);
+  }
+
+  /**
+   * Copies the normal of vertex <code>id</code> to <code>res</code>.
+   * @param res Vertex to store result in, or null
+   * @return
+   */
+  public UVertex getVertexNormal(int id,UVertex res) {
+    if(res==null) res=new UVertex();
+    return res.set(vertex[id*3],vertex[id*3+1],vertex[id*3+2]);
+  }
+
+  public String str() {
+    return "[UNormals v="+vn+" f="+fn+" type="+(type==NORMALANGLE ? "angle" : "area")+"]";
+  }
+}
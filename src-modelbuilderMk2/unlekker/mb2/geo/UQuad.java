@@ -17,7 +17,7 @@ import unlekker.mb2.util.UMB;
 public class UQuad extends UFace  {
   
   public UQuad() {
-    ID=globalID++;
+    ID=globalID.getAndIncrement();
     vID=new int[] {-1,-1,-1,-1};
     col=Integer.MAX_VALUE;
   }
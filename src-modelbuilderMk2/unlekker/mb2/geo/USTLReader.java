@@ -0,0 +1,346 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UMetrics;
+
+/**
+ * <p>Fast STL reader used by {@link UGeoIO#readSTL(String)}. Binary files are
+ * memory-mapped and decoded directly from the mapped buffer, always as
+ * little-endian data (as required by the STL format) regardless of the
+ * native byte order of the platform.</p>
+ *
+ * <p>ASCII files are parsed by a byte-level tokenizer working on a large
+ * read buffer, without creating Strings for lines or numbers. Only "vertex"
+ * tokens and the three numbers following them are used, everything else
+ * ("facet normal", "outer loop" etc.) is skipped regardless of line breaks
+ * or whitespace.</p>
+ *
+ * <p>Vertices are welded as they are read, using the spatial index of the
+ * {@link UVertexList} of the output mesh. Faces are added by vertex ID, skipping
+ * degenerate and duplicate faces, into a UGeo that is pre-sized for the number
+ * of triangles reported in the file.</p>
+ *
+ * @author marius
+ *
+ */
+public class USTLReader extends UMB {
+  private static final int HEADERSIZE=84,RECORDSIZE=50;
+
+  /**
+   * Maximum number of records mapped into memory at a time (~50 MB).
+   */
+  private static final int MAPRECORDS=1<<20;
+
+  private static final UMetrics.Timer READ=UMetrics.timer("stl.read");
+  private static final UMetrics.Counter BYTESREAD=UMetrics.counter("stl.bytesRead");
+
+  /**
+   * Checks whether a file contains binary STL data. Files beginning with
+   * "solid" are treated as ASCII unless the file size exactly matches the
+   * triangle count given in the binary header, since some exporters write
+   * "solid" into the header of binary files.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static boolean isBinary(File file) throws IOException {
+    FileInputStream in=new FileInputStream(file);
+    try {
+      ByteBuffer head=readHeader(in.getChannel());
+      if(head==null) return false;
+
+      String asciiTest="";
+      for(int i=0; i<5; i++) asciiTest+=(char)head.get(i);
+      if(!asciiTest.startsWith("solid")) return true;
+
+      long num=head.getInt(80) & 0xffffffffL;
+      return file.length()==HEADERSIZE+num*RECORDSIZE;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads a binary STL file into a new UGeo instance.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static UGeo readBinary(File file) throws IOException {
+    long t=READ.start();
+    FileInputStream in=new FileInputStream(file);
+    FileChannel ch=in.getChannel();
+
+    try {
+      ByteBuffer head=readHeader(ch);
+      if(head==null) throw new IOException("USTLReader: Invalid STL file "+file.getName());
+
+      long num=head.getInt(80) & 0xffffffffL;
+      long avail=(ch.size()-HEADERSIZE)/RECORDSIZE;
+      if(num>avail) {
+        logErr("USTLReader: "+file.getName()+" reports "+num+
+            " triangles, but only contains "+avail+".");
+        num=avail;
+      }
+
+      UMB.log("Polygons to read: "+num);
+
+      UGeo geo=new UGeo();
+      // closed meshes have roughly half as many vertices as faces
+      geo.ensureCapacity((int)(num/2), (int)num);
+      UVertexList vl=geo.getV();
+
+      int vID[]=new int[3],skipped=0;
+      long pos=HEADERSIZE,done=0;
+
+      taskTimerStart("USTLReader.readBinary");
+      while(done<num) {
+        int cnt=(int)Math.min(num-done, MAPRECORDS);
+        MappedByteBuffer buf=ch.map(FileChannel.MapMode.READ_ONLY, pos, (long)cnt*RECORDSIZE);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        for(int i=0; i<cnt; i++) {
+          // skip 12 byte face normal, then read 3 vertices
+          int off=i*RECORDSIZE+12;
+          for(int j=0; j<3; j++) {
+            vID[j]=vl.addID(buf.getFloat(off), buf.getFloat(off+4), buf.getFloat(off+8));
+            off+=12;
+          }
+
+          if(vID[0]==vID[1] || vID[1]==vID[2] || vID[0]==vID[2] ||
+              geo.duplicateF(vID[0], vID[1], vID[2])) skipped++;
+          else geo.addFace(vID);
+        }
+
+        pos+=(long)cnt*RECORDSIZE;
+        done+=cnt;
+        taskTimerUpdate(map(done,0,num,0,100));
+      }
+      taskTimerDone();
+
+      if(skipped>0) UMB.log("USTLReader: "+skipped+" degenerate or duplicate faces skipped.");
+
+      READ.stop(t);
+      BYTESREAD.add(file.length());
+      return geo;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads an ASCII STL file into a new UGeo instance.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static UGeo readASCII(File file) throws IOException {
+    long t=READ.start();
+    FileInputStream in=new FileInputStream(file);
+
+    try {
+      UGeo geo=new UGeo();
+      // ASCII STL uses ~250 bytes per facet
+      int num=(int)Math.min(file.length()/250, Integer.MAX_VALUE/2);
+      geo.ensureCapacity(num/2, num);
+      UVertexList vl=geo.getV();
+
+      Tokenizer tok=new Tokenizer(in);
+      int vID[]=new int[3],vn=0,skipped=0;
+      long size=file.length();
+
+      taskTimerStart("USTLReader.readASCII");
+      while(tok.next()) {
+        if(!tok.is(VERTEX)) continue;
+
+        float x=tok.nextFloat(),y=tok.nextFloat(),z=tok.nextFloat();
+        vID[vn++]=vl.addID(x,y,z);
+
+        if(vn==3) {
+          vn=0;
+          if(vID[0]==vID[1] || vID[1]==vID[2] || vID[0]==vID[2] ||
+              geo.duplicateF(vID[0], vID[1], vID[2])) skipped++;
+          else geo.addFace(vID);
+
+          if(geo.sizeF()%10000==0) taskTimerUpdate(map(tok.read,0,size,0,100));
+        }
+      }
+      taskTimerDone();
+
+      if(skipped>0) UMB.log("USTLReader: "+skipped+" degenerate or duplicate faces skipped.");
+
+      READ.stop(t);
+      BYTESREAD.add(file.length());
+      return geo;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static final byte VERTEX[]={'v','e','r','t','e','x'};
+
+  /**
+   * Whitespace tokenizer working directly on bytes. Tokens are never
+   * converted to Strings, numbers are parsed from the buffer in place.
+   */
+  private static class Tokenizer {
+    private static final int BUFSIZE=1<<20;
+    private static final double POW10[]=new double[23];
+
+    static {
+      POW10[0]=1;
+      for(int i=1; i<POW10.length; i++) POW10[i]=POW10[i-1]*10;
+    }
+
+    InputStream in;
+    byte buf[]=new byte[BUFSIZE];
+    int pos,lim,start,len;
+    long read;
+    boolean eof;
+
+    Tokenizer(InputStream in) {
+      this.in=in;
+    }
+
+    /**
+     * Advances to the next token, which is then found at
+     * <code>buf[start]..buf[start+len-1]</code>.
+     * @return <code>false</code> at end of file.
+     */
+    boolean next() throws IOException {
+      // skip whitespace
+      while(true) {
+        if(pos==lim) {
+          pos=lim=0;
+          if(!fill()) return false;
+        }
+        if(buf[pos]>' ') break;
+        pos++;
+      }
+
+      start=pos;
+      while(true) {
+        if(pos==lim) {
+          // token crosses buffer boundary: move it to the front and refill
+          compact();
+          if(!fill()) break;
+        }
+        if(buf[pos]<=' ') break;
+        pos++;
+      }
+      len=pos-start;
+      return true;
+    }
+
+    boolean is(byte word[]) {
+      if(len!=word.length) return false;
+      for(int i=0; i<len; i++) {
+        // case-insensitive for ASCII letters
+        if((buf[start+i]|0x20)!=word[i]) return false;
+      }
+      return true;
+    }
+
+    float nextFloat() throws IOException {
+      if(!next()) throw new IOException("USTLReader: Unexpected end of file.");
+
+      int i=start,end=start+len;
+      boolean neg=false;
+      if(buf[i]=='-' || buf[i]=='+') neg=buf[i++]=='-';
+
+      long mant=0;
+      int exp=0,digits=0;
+      boolean any=false;
+
+      for(; i<end && buf[i]>='0' && buf[i]<='9'; i++) {
+        any=true;
+        if(digits<18) {
+          mant=mant*10+(buf[i]-'0');
+          if(mant>0) digits++;
+        }
+        else exp++;
+      }
+      if(i<end && buf[i]=='.') {
+        for(i++; i<end && buf[i]>='0' && buf[i]<='9'; i++) {
+          any=true;
+          if(digits<18) {
+            mant=mant*10+(buf[i]-'0');
+            if(mant>0) digits++;
+            exp--;
+          }
+        }
+      }
+      if(any && i<end && (buf[i]=='e' || buf[i]=='E')) {
+        i++;
+        boolean eneg=false;
+        if(i<end && (buf[i]=='-' || buf[i]=='+')) eneg=buf[i++]=='-';
+        int e=0;
+        for(; i<end && buf[i]>='0' && buf[i]<='9'; i++) {
+          if(e<10000) e=e*10+(buf[i]-'0');
+        }
+        exp+=eneg ? -e : e;
+      }
+
+      // anything unusual (NaN, Infinity etc.) is left to Float.parseFloat()
+      if(!any || i!=end) return Float.parseFloat(new String(buf, start, len, "US-ASCII"));
+
+      double val=mant;
+      if(exp<0) {
+        if(exp>=-22) val/=POW10[-exp];
+        else val=val/POW10[22]*Math.pow(10, exp+22);
+      }
+      else if(exp>0) {
+        if(exp<=22) val*=POW10[exp];
+        else val*=Math.pow(10, exp);
+      }
+      return (float)(neg ? -val : val);
+    }
+
+    private void compact() {
+      int n=lim-start;
+      if(n==buf.length) {
+        byte tmp[]=new byte[buf.length*2];
+        System.arraycopy(buf, start, tmp, 0, n);
+        buf=tmp;
+      }
+      else System.arraycopy(buf, start, buf, 0, n);
+      pos=n;
+      lim=n;
+      start=0;
+    }
+
+    private boolean fill() throws IOException {
+      if(eof) return false;
+
+      int n=in.read(buf, lim, buf.length-lim);
+      if(n<0) {
+        eof=true;
+        return false;
+      }
+      lim+=n;
+      read+=n;
+      return true;
+    }
+  }
+
+  private static ByteBuffer readHeader(FileChannel ch) throws IOException {
+    ByteBuffer head=ByteBuffer.allocate(HEADERSIZE);
+    head.order(ByteOrder.LITTLE_ENDIAN);
+    while(head.hasRemaining()) {
+      if(ch.read(head)<0) return null;
+    }
+    return head;
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import unlekker.mb2.util.UFile;
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UMetrics;
+
+/**
+ * <p>Binary STL writer used by {@link UGeoIO#writeSTL(String, UGeo)}. Triangle
+ * records are batched into a large direct little-endian buffer and written
+ * through a <code>FileChannel</code>.</p>
+ *
+ * <p>All state is held by the writer instance, so separate writers can be
+ * used from several threads at once. A single instance is not thread-safe.
+ * Models are written straight from their face lists, so writing several models
+ * into one file does not require them to be merged first.</p>
+ *
+ * <pre>
+ * USTLWriter out=new USTLWriter(filename).open(UGeo.sizeF(models));
+ * for(UGeo geo:models) out.write(geo);
+ * out.close();
+ * </pre>
+ *
+ * <p>If writing fails, call {@link #abort()} from a <code>finally</code> block to
+ * release the file and delete the incomplete output, see
+ * {@link UGeoIO#writeSTL(String, UGeo, int)}.</p>
+ *
+ * @author marius
+ *
+ */
+public class USTLWriter extends UMB {
+  private static final int HEADERSIZE=84,RECORDSIZE=50;
+
+  /**
+   * Number of records buffered before each write (~1 MB).
+   */
+  private static final int BUFRECORDS=20000;
+
+  private String filename,path;
+  private boolean done;
+  private int colorType=-1;
+  private int faceNum,written;
+  private long timer;
+
+  private static final UMetrics.Timer WRITE=UMetrics.timer("stl.write");
+  private static final UMetrics.Counter BYTESWRITTEN=UMetrics.counter("stl.bytesWritten");
+
+  private FileOutputStream out;
+  private FileChannel ch;
+  private ByteBuffer buf;
+
+  public USTLWriter(String filename) {
+    this(filename,-1);
+  }
+
+  /**
+   * @param filename Output filename, ".stl" is appended if missing.
+   * @param colorType Color format ({@link UGeoIO#STLCOLORDEFAULT} or
+   * {@link UGeoIO#STCOLORMATERIALISE}), or -1 for no color.
+   */
+  public USTLWriter(String filename,int colorType) {
+    if(!filename.toLowerCase().endsWith("stl")) filename+=".stl";
+    this.filename=filename;
+    this.colorType=colorType;
+  }
+
+  /**
+   * Opens the output file and writes the STL header.
+   * @param faceNum Number of triangles to be written. If the actual
+   * number differs the header is corrected by {@link #close()}.
+   * @return
+   * @throws IOException
+   */
+  public USTLWriter open(int faceNum) throws IOException {
+    this.faceNum=faceNum;
+    written=0;
+    done=false;
+    timer=WRITE.start();
+
+    path=UFile.getAbsolutePath(filename);
+    new File(UFile.getPath(path)).mkdirs();
+    out=new FileOutputStream(path);
+    ch=out.getChannel();
+
+    buf=ByteBuffer.allocateDirect(BUFRECORDS*RECORDSIZE);
+    buf.order(ByteOrder.LITTLE_ENDIAN);
+
+    for(int i=0; i<80; i++) buf.put((byte)0);
+    buf.putInt(faceNum);
+
+    UMB.logDivider("Writing STL '"+filename+"' "+faceNum);
+    return this;
+  }
+
+  /**
+   * Writes all faces of <code>model</code>, using the face normals cached
+   * by {@link UGeo#getNormals()}.
+   */
+  public USTLWriter write(UGeo model) throws IOException {
+    float n[]=model.getNormals().face;
+    ArrayList<UFace> faces=model.getF();
+
+    for(int i=0; i<faces.size(); i++) {
+      UFace f=faces.get(i);
+      UVertex v[]=f.getV();
+      record(n[i*3],n[i*3+1],n[i*3+2],
+          v[0].x,v[0].y,v[0].z,
+          v[1].x,v[1].y,v[1].z,
+          v[2].x,v[2].y,v[2].z, f.col);
+    }
+    return this;
+  }
+
+  /**
+   * Writes the triangles of a packed mesh, using its face colors if present.
+   */
+  public USTLWriter write(UGeoPacked model) throws IOException {
+    float xyz[]=model.xyz;
+    int tri[]=model.tri,n=model.sizeF();
+
+    for(int i=0,id=0; i<n; i++) {
+      int a=tri[id++]*3,b=tri[id++]*3,c=tri[id++]*3;
+      write(
+          xyz[a],xyz[a+1],xyz[a+2],
+          xyz[b],xyz[b+1],xyz[b+2],
+          xyz[c],xyz[c+1],xyz[c+2],
+          model.color!=null ? model.color[i] : 0);
+    }
+    return this;
+  }
+
+  public USTLWriter write(ArrayList<UFace> ff) throws IOException {
+    for(UFace f:ff) write(f);
+    return this;
+  }
+
+  public USTLWriter write(UFace f) throws IOException {
+    UVertex v[]=f.getV();
+    write(v[0],v[1],v[2],f.col);
+    return this;
+  }
+
+  /**
+   * Writes a single triangle record. The face normal is calculated
+   * from the vertices, using the same orientation as {@link UFace#normal()}.
+   */
+  public USTLWriter write(UVertex v0,UVertex v1,UVertex v2,int col) throws IOException {
+    return write(v0.x,v0.y,v0.z, v1.x,v1.y,v1.z, v2.x,v2.y,v2.z, col);
+  }
+
+  /**
+   * Writes a single triangle record from raw coordinates.
+   */
+  public USTLWriter write(
+      float x0,float y0,float z0,
+      float x1,float y1,float z1,
+      float x2,float y2,float z2,int col) throws IOException {
+
+    float ax=x2-x0,ay=y2-y0,az=z2-z0;
+    float bx=x1-x0,by=y1-y0,bz=z1-z0;
+    float nx=ay*bz-by*az,ny=az*bx-bz*ax,nz=ax*by-bx*ay;
+    float l=(float)Math.sqrt(nx*nx+ny*ny+nz*nz);
+    if(l>0) {
+      nx/=l;
+      ny/=l;
+      nz/=l;
+    }
+
+    return record(nx,ny,nz, x0,y0,z0, x1,y1,z1, x2,y2,z2, col);
+  }
+
+  private USTLWriter record(float nx,float ny,float nz,
+      float x0,float y0,float z0,
+      float x1,float y1,float z1,
+      float x2,float y2,float z2,int col) throws IOException {
+
+    if(buf.remaining()<RECORDSIZE) flush();
+
+    buf.putFloat(nx).putFloat(ny).putFloat(nz);
+    buf.putFloat(x0).putFloat(y0).putFloat(z0);
+    buf.putFloat(x1).putFloat(y1).putFloat(z1);
+    buf.putFloat(x2).putFloat(y2).putFloat(z2);
+    buf.putShort(colorType>-1 ? (short)formatRGB(col,colorType) : 0);
+
+    written++;
+    return this;
+  }
+
+  /**
+   * Flushes remaining data and closes the file.
+   * @return Number of triangles written.
+   * @throws IOException
+   */
+  public int close() throws IOException {
+    try {
+      flush();
+
+      if(written!=faceNum) {
+        ByteBuffer num=ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        num.putInt(0,written);
+        ch.write(num, 80);
+      }
+    } finally {
+      out.close();
+      ch=null;
+      buf=null;
+      WRITE.stop(timer);
+    }
+
+    done=true;
+    UMB.log("Closing '"+filename+"'. "+written+" triangles written.\n");
+    return written;
+  }
+
+  /**
+   * Closes the file and deletes it, unless {@link #close()} has completed
+   * successfully. Safe to call more than once, or if {@link #open(int)} failed.
+   */
+  public void abort() {
+    if(done || path==null) return;
+
+    try {
+      if(out!=null) out.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    out=null;
+    ch=null;
+    buf=null;
+
+    if(new File(path).delete()) logErr("USTLWriter: Incomplete file deleted '"+filename+"'");
+    path=null;
+  }
+
+  private void flush() throws IOException {
+    buf.flip();
+    BYTESWRITTEN.add(buf.remaining());
+    while(buf.hasRemaining()) ch.write(buf);
+    buf.clear();
+  }
+
+  public static int formatRGB(int rgb,int type) {
+    if(type==UGeoIO.STLCOLORDEFAULT) {
+      int col15bits = (rgb >> 3 & 0x1f);
+      col15bits |= (rgb >> 11 & 0x1f) << 5;
+      col15bits |= (rgb >> 19 & 0x1f) << 10;
+      col15bits |= 0x8000;
+      return col15bits;
+    }
+
+    int col15bits = (rgb >> 19 & 0x1f);
+    col15bits |= (rgb >> 11 & 0x1f) << 5;
+    col15bits |= (rgb >> 3 & 0x1f) << 10;
+    return col15bits;
+  }
+}
@@ -0,0 +1,370 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import unlekker.mb2.util.ULongMap;
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Slices a mesh with a series of parallel planes perpendicular to the
+ * X, Y or Z axis, producing the intersection contours of each plane as
+ * {@link UVertexList} instances. Intended for fabrication output (laser cut
+ * slices, 3D printing layers etc.)</p>
+ *
+ * <p>Faces are bucketed by the range of planes they span in a single pass,
+ * after which layers are processed in parallel (see {@link UParallel}).
+ * Segments are stitched into contours through the mesh edges they cross,
+ * so no coordinate matching is needed. This requires shared vertices
+ * between faces, as is the default for UGeo. Closed contours are closed
+ * with {@link UVertexList#close()}, contours crossing holes in the mesh
+ * are returned as open lists.</p>
+ *
+ * <pre>
+ * USlicer slicer=new USlicer(geo);
+ * ArrayList&lt;ArrayList&lt;UVertexList&gt;&gt; layers=slicer.slice(Z, 0, 3, 50);
+ * </pre>
+ *
+ * <p>Vertices lying exactly on a plane are treated as being above it. Crossing
+ * points of edges ending on (or within float precision of) a plane are merged
+ * into that vertex, so contours contain no duplicate points.</p>
+ *
+ * @author marius
+ *
+ */
+public class USlicer extends UMB {
+  private float xyz[];
+  private int tri[];
+  private int fn;
+
+  /**
+   * Vertices closer than this to a plane are treated as lying on it,
+   * scaled to the size of the mesh.
+   */
+  private float eps;
+
+  public USlicer(UGeo geo) {
+    ArrayList<UVertex> v=geo.getV().v;
+    ArrayList<UFace> faces=geo.getF();
+
+    xyz=new float[v.size()*3];
+    int id=0;
+    for(UVertex vv:v) {
+      xyz[id++]=vv.x;
+      xyz[id++]=vv.y;
+      xyz[id++]=vv.z;
+    }
+
+    fn=faces.size();
+    tri=new int[fn*3];
+    id=0;
+    for(UFace ff:faces) {
+      tri[id++]=ff.vID[0];
+      tri[id++]=ff.vID[1];
+      tri[id++]=ff.vID[2];
+    }
+    calcEps();
+  }
+
+  /**
+   * Slices packed geometry. The arrays of <code>geo</code> are used directly,
+   * so it should not be modified while slicing.
+   */
+  public USlicer(UGeoPacked geo) {
+    xyz=geo.xyz;
+    tri=geo.tri;
+    fn=geo.sizeF();
+    calcEps();
+  }
+
+  private void calcEps() {
+    float mx=0;
+    for(int i=0; i<fn*3; i++) {
+      int id=tri[i]*3;
+      for(int j=0; j<3; j++) mx=max(mx, Math.abs(xyz[id+j]));
+    }
+    eps=mx*1e-6f;
+  }
+
+  public int sizeF() {
+    return fn;
+  }
+
+  /**
+   * Calculates contours for a single plane.
+   * @param axis Axis perpendicular to the plane ({@link #X}, {@link #Y} or {@link #Z})
+   * @param pos Position of the plane along <code>axis</code>
+   * @return List of contours
+   */
+  public ArrayList<UVertexList> slice(int axis,float pos) {
+    return slice(axis, new float[] {pos}).get(0);
+  }
+
+  /**
+   * Calculates contours for <code>n</code> planes, spaced <code>step</code>
+   * units apart starting at <code>start</code>.
+   */
+  public ArrayList<ArrayList<UVertexList>> slice(int axis,float start,float step,int n) {
+    float pos[]=new float[n];
+    for(int i=0; i<n; i++) pos[i]=start+step*i;
+    return slice(axis, pos);
+  }
+
+  /**
+   * Calculates contours for a series of planes.
+   * @param axis Axis perpendicular to the planes ({@link #X}, {@link #Y} or {@link #Z})
+   * @param pos Plane positions along <code>axis</code>, in any order
+   * @return List of contours for each plane, in the same order as <code>pos</code>
+   */
+  public ArrayList<ArrayList<UVertexList>> slice(final int axis,float pos[]) {
+    final int n=pos.length;
+
+    // sort planes, keeping track of their original order
+    final float sorted[]=new float[n];
+    final int order[]=sortPlanes(pos, sorted);
+
+    // find the range of planes spanned by each face
+    final int range[]=new int[fn*2];
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) {
+          float a=xyz[tri[i*3]*3+axis];
+          float b=xyz[tri[i*3+1]*3+axis];
+          float c=xyz[tri[i*3+2]*3+axis];
+          float mn=min(a,min(b,c)),mx=max(a,max(b,c));
+
+          // planes with mn<=pos<=mx, skipping faces that can't be crossed
+          int i0=lowerBound(sorted, mn),i1=upperBound(sorted, mx);
+          if(mn==mx || i0>=i1) i0=i1=0;
+          range[i*2]=i0;
+          range[i*2+1]=i1;
+        }
+      }
+    });
+
+    // bucket faces per plane (counting sort on plane index)
+    final int start[]=new int[n+1];
+    for(int i=0; i<fn; i++) {
+      for(int j=range[i*2]; j<range[i*2+1]; j++) start[j+1]++;
+    }
+    for(int j=0; j<n; j++) start[j+1]+=start[j];
+
+    final int faces[]=new int[start[n]];
+    int fill[]=Arrays.copyOf(start, n);
+    for(int i=0; i<fn; i++) {
+      for(int j=range[i*2]; j<range[i*2+1]; j++) faces[fill[j]++]=i;
+    }
+
+    final ArrayList<ArrayList<UVertexList>> res=new ArrayList<ArrayList<UVertexList>>(n);
+    for(int j=0; j<n; j++) res.add(null);
+
+    // layers are processed in parallel, one chunk can hold several layers
+    UParallel.run(n, 1, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int j=from; j<to; j++) {
+          res.set(order[j], sliceLayer(axis, sorted[j], faces, start[j], start[j+1]));
+        }
+      }
+    });
+
+    return res;
+  }
+
+  private static int[] sortPlanes(float pos[],float sorted[]) {
+    int n=pos.length;
+    long tmp[]=new long[n];
+    for(int i=0; i<n; i++) {
+      // order-preserving int representation of float, with index in lower bits
+      int bits=Float.floatToIntBits(pos[i]);
+      bits^=(bits>>31)&0x7fffffff;
+      tmp[i]=((long)bits<<32)|i;
+    }
+    Arrays.sort(tmp);
+
+    int order[]=new int[n];
+    for(int i=0; i<n; i++) {
+      order[i]=(int)tmp[i];
+      sorted[i]=pos[order[i]];
+    }
+    return order;
+  }
+
+  /**
+   * @return Index of first value in <code>a</code> that is <code>&gt;=v</code>
+   */
+  private static int lowerBound(float a[],float v) {
+    int lo=0,hi=a.length;
+    while(lo<hi) {
+      int mid=(lo+hi)>>>1;
+      if(a[mid]<v) lo=mid+1;
+      else hi=mid;
+    }
+    return lo;
+  }
+
+  /**
+   * @return Index of first value in <code>a</code> that is <code>&gt;v</code>
+   */
+  private static int upperBound(float a[],float v) {
+    int lo=0,hi=a.length;
+    while(lo<hi) {
+      int mid=(lo+hi)>>>1;
+      if(a[mid]<=v) lo=mid+1;
+      else hi=mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Intersects faces <code>faces[from..to)</code> with the plane at
+   * <code>pos</code> and stitches the resulting segments.
+   */
+  private ArrayList<UVertexList> sliceLayer(int axis,float pos,int faces[],int from,int to) {
+    int segNum=0,cnt=to-from;
+    int seg[]=new int[cnt*2];
+
+    // crossing points, one per crossed mesh edge. Edges ending on the plane
+    // (within eps) share a slot keyed on that vertex, so faces touching the
+    // plane at a vertex don't produce duplicate points.
+    ULongMap slotMap=new ULongMap(cnt+1);
+    float pt[]=new float[cnt*6];
+    int slotSeg[]=new int[cnt*4];
+    int slotNum=0;
+
+    int e[]=new int[2],slots[]=new int[2];
+    for(int i=from; i<to; i++) {
+      int f=faces[i]*3;
+      int above=0;
+      for(int j=0; j<3; j++) {
+        if(xyz[tri[f+j]*3+axis]>=pos) above|=1<<j;
+      }
+      if(above==0 || above==7) continue;
+
+      // find the two crossed edges, ordered so that segments follow the
+      // face orientation: first the edge going up, then the one going down
+      for(int j=0; j<3; j++) {
+        boolean a=(above&(1<<j))!=0,b=(above&(1<<((j+1)%3)))!=0;
+        if(a!=b) e[b ? 0 : 1]=j;
+      }
+
+      for(int k=0; k<2; k++) {
+        int va=tri[f+e[k]],vb=tri[f+(e[k]+1)%3];
+        boolean aTop=xyz[va*3+axis]>=pos;
+        int top=(aTop ? va : vb),bottom=(aTop ? vb : va),snap=-1;
+        if(xyz[top*3+axis]-pos<=eps) snap=top;
+        else if(pos-xyz[bottom*3+axis]<=eps) snap=bottom;
+
+        long key=(snap>-1 ? ULongMap.key(snap, snap) : ULongMap.key(va, vb));
+        int slot=slotMap.get(key);
+        if(slot==ULongMap.NOTFOUND) {
+          slot=slotNum++;
+          slotMap.put(key, slot);
+          slotSeg[slot*2]=slotSeg[slot*2+1]=-1;
+          if(snap>-1) {
+            System.arraycopy(xyz, snap*3, pt, slot*3, 3);
+            pt[slot*3+axis]=pos;
+          }
+          else crossing(va<vb ? va : vb, va<vb ? vb : va, axis, pos, pt, slot);
+        }
+        slots[k]=slot;
+      }
+
+      // both crossed edges end in the same vertex on the plane
+      if(slots[0]==slots[1]) continue;
+
+      for(int k=0; k<2; k++) {
+        int slot=slots[k];
+        if(slotSeg[slot*2]<0) slotSeg[slot*2]=segNum;
+        else if(slotSeg[slot*2+1]<0) slotSeg[slot*2+1]=segNum;
+        seg[segNum*2+k]=slot;
+      }
+      segNum++;
+    }
+
+    return stitch(seg, segNum, slotSeg, slotNum, pt);
+  }
+
+  /**
+   * Calculates the point where the edge between vertices <code>va</code>
+   * and <code>vb</code> crosses the plane.
+   */
+  private void crossing(int va,int vb,int axis,float pos,float pt[],int slot) {
+    float a=xyz[va*3+axis],b=xyz[vb*3+axis];
+    float t=(pos-a)/(b-a);
+    for(int j=0; j<3; j++) {
+      float ca=xyz[va*3+j];
+      pt[slot*3+j]=ca+(xyz[vb*3+j]-ca)*t;
+    }
+    pt[slot*3+axis]=pos;
+  }
+
+  /**
+   * Joins segments sharing crossing points into contours. Open chains are
+   * traced from one of their ends, so they are found before closed loops.
+   */
+  private ArrayList<UVertexList> stitch(int seg[],int segNum,
+      int slotSeg[],int slotNum,float pt[]) {
+    ArrayList<UVertexList> res=new ArrayList<UVertexList>();
+    boolean done[]=new boolean[segNum];
+
+    for(int pass=0; pass<2; pass++) {
+      for(int s=0; s<segNum; s++) {
+        if(done[s]) continue;
+
+        // first pass only starts at segments with a free end
+        int slot=-1;
+        if(pass==0) {
+          if(slotSeg[seg[s*2]*2+1]<0) slot=seg[s*2];
+          else if(slotSeg[seg[s*2+1]*2+1]<0) slot=seg[s*2+1];
+          else continue;
+        }
+        else slot=seg[s*2];
+
+        UVertexList vl=new UVertexList();
+        int first=slot,cur=s;
+        addPoint(vl, pt, slot);
+
+        while(cur>-1 && !done[cur]) {
+          done[cur]=true;
+          slot=(seg[cur*2]==slot ? seg[cur*2+1] : seg[cur*2]);
+          if(slot==first) break;
+          addPoint(vl, pt, slot);
+
+          int next=slotSeg[slot*2];
+          cur=(next==cur ? slotSeg[slot*2+1] : next);
+        }
+
+        // end point repeating the start, before closing
+        if(slot==first && vl.size()>1 && same(vl.last(), vl.first())) vl.remove(vl.size()-1);
+        if(slot==first && vl.size()>2) vl.close();
+        res.add(vl);
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * Adds a crossing point, skipping it if it coincides with the previous
+   * point. Crossings of different edges can round to the same point when
+   * a vertex lies within float precision of the plane.
+   */
+  private static void addPoint(UVertexList vl,float pt[],int slot) {
+    int id=slot*3;
+    UVertex last=vl.last();
+    if(last!=null && last.x==pt[id] && last.y==pt[id+1] && last.z==pt[id+2]) return;
+    vl.add(pt[id],pt[id+1],pt[id+2]);
+  }
+
+  private static boolean same(UVertex a,UVertex b) {
+    return a.x==b.x && a.y==b.y && a.z==b.z;
+  }
+
+  public String str() {
+    return "[USlicer f="+fn+"]";
+  }
+}
@@ -6,10 +6,75 @@ package unlekker.mb2.geo;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import unlekker.mb2.util.ULongMap;
 import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
 
-
+/**
+ * <p>Mesh subdivision. The static methods subdivide all faces uniformly,
+ * while an instance can be configured to refine only faces exceeding a
+ * maximum area, edge length or normal deviation:</p>
+ *
+ * <pre>
+ * new USubdivision().setMaxEdgeLength(5).setMaxNormalAngle(radians(10)).
+ *   subdivideConditional(geo);
+ * </pre>
+ *
+ * @author marius
+ *
+ */
 public class USubdivision extends UMB  {
+  public float maxArea=-1;
+  public float maxEdgeLength=-1;
+  public float maxNormalAngle=-1;
+  public int maxLevels=8;
+  public boolean smooth=false;
+
+  /**
+   * Sets the maximum surface area of faces for {@link #subdivideConditional(UGeo)}.
+   * Values &lt;=0 disable the test.
+   */
+  public USubdivision setMaxArea(float area) {
+    maxArea=area;
+    return this;
+  }
+
+  /**
+   * Sets the maximum edge length for {@link #subdivideConditional(UGeo)}.
+   * Values &lt;=0 disable the test.
+   */
+  public USubdivision setMaxEdgeLength(float length) {
+    maxEdgeLength=length;
+    return this;
+  }
+
+  /**
+   * Sets the maximum angle (in radians) between the normals of neighbouring
+   * faces for {@link #subdivideConditional(UGeo)}. Since midpoints of flat
+   * faces don't change the angles between them, this is mainly useful
+   * together with {@link #setSmooth(boolean)}. Values &lt;=0 disable the test.
+   */
+  public USubdivision setMaxNormalAngle(float a) {
+    maxNormalAngle=a;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of refinement passes, default is 8.
+   */
+  public USubdivision setMaxLevels(int levels) {
+    maxLevels=levels;
+    return this;
+  }
+
+  /**
+   * If <code>true</code>, midpoints of interior edges are placed using
+   * the Loop subdivision rule, rounding off the refined regions.
+   */
+  public USubdivision setSmooth(boolean smooth) {
+    this.smooth=smooth;
+    return this;
+  }
 
   /**
    * Subdivides a single face according to the specified strategy. 
@@ -42,22 +107,450 @@ public class USubdivision extends UMB  {
     return ff;    
   }
   
+  /**
+   * Subdivides all faces of <code>geo</code> once, replacing its contents.
+   * See {@link #subdivide(UGeo, int, int)}.
+   */
   public static UGeo subdivide(UGeo geo,int type) {
-    ArrayList<UFace> newf=new ArrayList<UFace>();
-    
-    for(UFace ff:geo.getF()) {
-      ArrayList<UFace> l=subdivide(ff, type);
-      for(UFace nf:l) {
-        newf.add(nf);
-//        log(str(nf.vID));
+    return subdivide(geo, type, 1);
+  }
+
+  /**
+   * Subdivides all faces of <code>geo</code> <code>levels</code> times, replacing
+   * its contents. Existing vertices keep their UVertex instances and are not 
+   * merged (see {@link UGeoPacked#update(UGeo)}). Face colors are kept, face 
+   * groups are cleared.
+   * @param geo
+   * @param type {@link #SUBDIVCENTROID}, {@link #SUBDIVMIDEDGES} or {@link #SUBDIVLOOP}
+   * @param levels Number of times to subdivide
+   * @return
+   */
+  public static UGeo subdivide(UGeo geo,int type,int levels) {
+    UGeoPacked res=subdivide(new UGeoPacked(geo), type, levels);
+    return res.update(geo);
+  }
+
+  /**
+   * <p>Subdivides packed geometry <code>levels</code> times, returning a new
+   * {@link UGeoPacked} instance. Supported types are:</p>
+   *
+   * <ul>
+   * <li>{@link #SUBDIVCENTROID} - Splits each face into 3 faces around its centroid.</li>
+   * <li>{@link #SUBDIVMIDEDGES} - Splits each face into 4 faces using its edge midpoints.</li>
+   * <li>{@link #SUBDIVLOOP} - Loop subdivision, splitting faces like SUBDIVMIDEDGES
+   * and smoothing the result. Open boundaries and edges shared by more than
+   * two faces are kept as creases.</li>
+   * </ul>
+   *
+   * <p>Edge midpoints are created once per edge, with edges identified through
+   * a map keyed on their vertex IDs. Vertices, midpoints and faces are then
+   * calculated in parallel (see {@link UParallel}). U/V coordinates are
+   * interpolated linearly, face colors are inherited.</p>
+   * @param geo
+   * @param type
+   * @param levels
+   * @return
+   */
+  public static UGeoPacked subdivide(UGeoPacked geo,int type,int levels) {
+    UGeoPacked res=geo;
+    for(int i=0; i<levels; i++) {
+      res=(type==SUBDIVCENTROID ? levelCentroid(res) : level(res, type==SUBDIVLOOP));
+    }
+    return (res==geo ? geo.copy() : res);
+  }
+
+  private static UGeoPacked levelCentroid(final UGeoPacked in) {
+    final int vn=in.sizeV(),fn=in.sizeF();
+    final UGeoPacked res=newPacked(in, vn+fn, fn*3);
+    System.arraycopy(in.xyz, 0, res.xyz, 0, vn*3);
+    if(in.uv!=null) System.arraycopy(in.uv, 0, res.uv, 0, vn*2);
+
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int f=from; f<to; f++) {
+          int a=in.tri[f*3],b=in.tri[f*3+1],c=in.tri[f*3+2],m=vn+f;
+          for(int j=0; j<3; j++) {
+            res.xyz[m*3+j]=(in.xyz[a*3+j]+in.xyz[b*3+j]+in.xyz[c*3+j])/3f;
+          }
+          if(in.uv!=null) for(int j=0; j<2; j++) {
+            res.uv[m*2+j]=(in.uv[a*2+j]+in.uv[b*2+j]+in.uv[c*2+j])/3f;
+          }
+
+          setF(res, f*3, a,b,m);
+          setF(res, f*3+1, b,c,m);
+          setF(res, f*3+2, c,a,m);
+          if(in.color!=null) {
+            res.color[f*3]=res.color[f*3+1]=res.color[f*3+2]=in.color[f];
+          }
+        }
+      }
+    });
+
+    return res;
+  }
+
+  /**
+   * Splits each face into 4 using edge midpoints, optionally applying
+   * the Loop smoothing rules.
+   */
+  private static UGeoPacked level(final UGeoPacked in,final boolean loop) {
+    final int vn=in.sizeV(),fn=in.sizeF();
+    final int tri[]=in.tri;
+    final float xyz[]=in.xyz;
+
+    final Edges e=new Edges(in);
+    final int edgeOf[]=e.edgeOf,edge[]=e.edge,edgeFaces[]=e.faces;
+    int en=e.en;
+
+    final UGeoPacked res=newPacked(in, vn+en, fn*4);
+
+    // even vertices
+    if(!loop) {
+      System.arraycopy(xyz, 0, res.xyz, 0, vn*3);
+    }
+    else {
+      // neighbour sums, separately for crease edges (boundaries and
+      // non-manifold edges)
+      final float sum[]=new float[vn*3],creaseSum[]=new float[vn*3];
+      final int valence[]=new int[vn],crease[]=new int[vn];
+      for(int i=0; i<en; i++) {
+        int a=edge[i*2],b=edge[i*2+1];
+        boolean isCrease=edgeFaces[i]!=2;
+        for(int j=0; j<3; j++) {
+          sum[a*3+j]+=xyz[b*3+j];
+          sum[b*3+j]+=xyz[a*3+j];
+          if(isCrease) {
+            creaseSum[a*3+j]+=xyz[b*3+j];
+            creaseSum[b*3+j]+=xyz[a*3+j];
+          }
+        }
+        valence[a]++;
+        valence[b]++;
+        if(isCrease) {
+          crease[a]++;
+          crease[b]++;
+        }
       }
+
+      UParallel.run(vn, new UParallel.Task() {
+        public void run(int chunk,int from,int to) {
+          for(int i=from; i<to; i++) {
+            int id=i*3,n=valence[i];
+            if(crease[i]==2) {
+              for(int j=0; j<3; j++) {
+                res.xyz[id+j]=0.75f*xyz[id+j]+0.125f*creaseSum[id+j];
+              }
+            }
+            else if(crease[i]>0 || n<3) {
+              // corners and non-manifold vertices stay fixed
+              System.arraycopy(xyz, id, res.xyz, id, 3);
+            }
+            else {
+              float beta=(n==3 ? 3f/16f : 3f/(8f*n));
+              float w=1-n*beta;
+              for(int j=0; j<3; j++) {
+                res.xyz[id+j]=w*xyz[id+j]+beta*sum[id+j];
+              }
+            }
+          }
+        }
+      });
     }
-    
-//    log(geo.sizeF()+" newf "+newf.size());
-    geo.getF().clear();
-    
-    geo.addFace(newf);
-//    log(geo.str());
-    return geo;
+    if(in.uv!=null) System.arraycopy(in.uv, 0, res.uv, 0, vn*2);
+
+    // odd vertices, one per edge
+    UParallel.run(en, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) e.midpoint(in, i, res, vn+i, loop);
+      }
+    });
+
+    // faces, same layout as subdivide(UFace,SUBDIVMIDEDGES)
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int f=from; f<to; f++) {
+          int id=f*3;
+          int v0=tri[id],v1=tri[id+1],v2=tri[id+2];
+          int m0=vn+edgeOf[id],m1=vn+edgeOf[id+1],m2=vn+edgeOf[id+2];
+
+          id=f*4;
+          setF(res, id, v0,m0,m2);
+          setF(res, id+1, m0,v1,m1);
+          setF(res, id+2, m2,m0,m1);
+          setF(res, id+3, m1,v2,m2);
+          if(in.color!=null) {
+            res.color[id]=res.color[id+1]=res.color[id+2]=res.color[id+3]=in.color[f];
+          }
+        }
+      }
+    });
+
+    return res;
+  }
+
+  /**
+   * Subdivides only faces of <code>geo</code> that exceed the maximum area,
+   * edge length or normal deviation, replacing its contents. Faces are split
+   * into 4 faces using edge midpoints. Neighbouring faces that share one
+   * split edge are split in 2, and faces sharing two split edges are split
+   * in 4, so the result has no cracks (red-green refinement). This is
+   * repeated until all faces pass, or {@link #maxLevels} is reached.
+   * @param geo
+   * @return
+   */
+  public UGeo subdivideConditional(UGeo geo) {
+    UGeoPacked res=subdivideConditional(new UGeoPacked(geo));
+    return res.update(geo);
+  }
+
+  /**
+   * Packed version of {@link #subdivideConditional(UGeo)}, returning a new
+   * {@link UGeoPacked} instance.
+   */
+  public UGeoPacked subdivideConditional(UGeoPacked geo) {
+    UGeoPacked res=geo;
+    for(int i=0; i<maxLevels; i++) {
+      UGeoPacked tmp=refine(res);
+      if(tmp==null) break;
+      res=tmp;
+    }
+    return (res==geo ? geo.copy() : res);
+  }
+
+  /**
+   * Single red-green refinement pass.
+   * @return Refined mesh, or null if no faces needed refinement.
+   */
+  private UGeoPacked refine(final UGeoPacked in) {
+    final int vn=in.sizeV(),fn=in.sizeF();
+    final Edges e=new Edges(in);
+    final boolean split[]=new boolean[e.en];
+    final float xyz[]=in.xyz;
+    final int tri[]=in.tri;
+
+    final float maxLen2=maxEdgeLength*maxEdgeLength;
+    final float normal[]=(maxNormalAngle>0 ? new float[fn*3] : null);
+
+    // mark long edges and all edges of large faces
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int f=from; f<to; f++) {
+          int id=f*3;
+          int a=tri[id]*3,b=tri[id+1]*3,c=tri[id+2]*3;
+          float e1x=xyz[b]-xyz[a],e1y=xyz[b+1]-xyz[a+1],e1z=xyz[b+2]-xyz[a+2];
+          float e2x=xyz[c]-xyz[a],e2y=xyz[c+1]-xyz[a+1],e2z=xyz[c+2]-xyz[a+2];
+          float nx=e1y*e2z-e1z*e2y,ny=e1z*e2x-e1x*e2z,nz=e1x*e2y-e1y*e2x;
+          float l=(float)Math.sqrt(nx*nx+ny*ny+nz*nz);
+
+          if(maxArea>0 && l*0.5f>maxArea) {
+            for(int j=0; j<3; j++) split[e.edgeOf[id+j]]=true;
+          }
+          if(maxEdgeLength>0) {
+            for(int j=0; j<3; j++) {
+              int v1=tri[id+j]*3,v2=tri[id+(j+1)%3]*3;
+              float dx=xyz[v2]-xyz[v1],dy=xyz[v2+1]-xyz[v1+1],dz=xyz[v2+2]-xyz[v1+2];
+              if(dx*dx+dy*dy+dz*dz>maxLen2) split[e.edgeOf[id+j]]=true;
+            }
+          }
+          if(normal!=null && l>0) {
+            normal[id]=nx/l;
+            normal[id+1]=ny/l;
+            normal[id+2]=nz/l;
+          }
+        }
+      }
+    });
+
+    // mark all edges of faces meeting at too sharp an angle
+    if(normal!=null) {
+      final float minDot=(float)Math.cos(maxNormalAngle);
+      UParallel.run(e.en, new UParallel.Task() {
+        public void run(int chunk,int from,int to) {
+          for(int i=from; i<to; i++) {
+            if(e.faces[i]!=2) continue;
+            int f1=e.face[i*2]*3,f2=e.face[i*2+1]*3;
+            float dot=normal[f1]*normal[f2]+normal[f1+1]*normal[f2+1]+normal[f1+2]*normal[f2+2];
+            if(dot<minDot) {
+              for(int j=0; j<3; j++) {
+                split[e.edgeOf[f1+j]]=true;
+                split[e.edgeOf[f2+j]]=true;
+              }
+            }
+          }
+        }
+      });
+    }
+
+    // closure: faces with two split edges get their third edge split too,
+    // repeated until stable. Concurrent writes only ever set true.
+    int num=UParallel.chunks(fn);
+    final boolean changed[]=new boolean[num];
+    boolean again=true;
+    while(again) {
+      Arrays.fill(changed, false);
+      UParallel.runChunks(fn, num, new UParallel.Task() {
+        public void run(int chunk,int from,int to) {
+          for(int f=from*3; f<to*3; f+=3) {
+            int cnt=0;
+            for(int j=0; j<3; j++) if(split[e.edgeOf[f+j]]) cnt++;
+            if(cnt==2) {
+              for(int j=0; j<3; j++) split[e.edgeOf[f+j]]=true;
+              changed[chunk]=true;
+            }
+          }
+        }
+      });
+
+      again=false;
+      for(boolean b:changed) again|=b;
+    }
+
+    // number new vertices and faces
+    final int mid[]=new int[e.en];
+    int newV=vn;
+    for(int i=0; i<e.en; i++) mid[i]=(split[i] ? newV++ : -1);
+    if(newV==vn) return null;
+
+    final int faceStart[]=new int[fn+1];
+    for(int f=0; f<fn; f++) {
+      int cnt=0;
+      for(int j=0; j<3; j++) if(split[e.edgeOf[f*3+j]]) cnt++;
+      faceStart[f+1]=faceStart[f]+(cnt==0 ? 1 : (cnt==1 ? 2 : 4));
+    }
+
+    final UGeoPacked res=newPacked(in, newV, faceStart[fn]);
+    System.arraycopy(xyz, 0, res.xyz, 0, vn*3);
+    if(in.uv!=null) System.arraycopy(in.uv, 0, res.uv, 0, vn*2);
+
+    UParallel.run(e.en, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) if(mid[i]>-1) e.midpoint(in, i, res, mid[i], smooth);
+      }
+    });
+
+    UParallel.run(fn, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int f=from; f<to; f++) {
+          int id=f*3,out=faceStart[f];
+          int v0=tri[id],v1=tri[id+1],v2=tri[id+2];
+          int m0=mid[e.edgeOf[id]],m1=mid[e.edgeOf[id+1]],m2=mid[e.edgeOf[id+2]];
+
+          if(m0>-1 && m1>-1 && m2>-1) {
+            setF(res, out, v0,m0,m2);
+            setF(res, out+1, m0,v1,m1);
+            setF(res, out+2, m2,m0,m1);
+            setF(res, out+3, m1,v2,m2);
+          }
+          else if(m0>-1) {
+            setF(res, out, v0,m0,v2);
+            setF(res, out+1, m0,v1,v2);
+          }
+          else if(m1>-1) {
+            setF(res, out, v1,m1,v0);
+            setF(res, out+1, m1,v2,v0);
+          }
+          else if(m2>-1) {
+            setF(res, out, v2,m2,v1);
+            setF(res, out+1, m2,v0,v1);
+          }
+          else setF(res, out, v0,v1,v2);
+
+          if(in.color!=null) {
+            for(int i=out; i<faceStart[f+1]; i++) res.color[i]=in.color[f];
+          }
+        }
+      }
+    });
+
+    return res;
+  }
+
+  /**
+   * Unique edges of a packed mesh, found through a map keyed on their
+   * vertex IDs. Stores the end points of each edge, the vertices opposite
+   * it in its first two faces and its number of faces, plus the edge ID
+   * of each half-edge (<code>edgeOf[f*3+i]</code> is the edge from vertex
+   * <code>i</code> to vertex <code>i+1</code> of face <code>f</code>).
+   */
+  private static class Edges {
+    int en;
+    int edgeOf[],edge[],opp[],faces[];
+
+    /**
+     * First two faces using each edge.
+     */
+    int face[];
+
+    Edges(UGeoPacked in) {
+      int fn=in.sizeF(),tri[]=in.tri;
+      edgeOf=new int[fn*3];
+      edge=new int[fn*3*2];
+      opp=new int[fn*3*2];
+      faces=new int[fn*3];
+      face=new int[fn*3*2];
+      ULongMap map=new ULongMap(fn*3/2+1);
+
+      for(int h=0; h<fn*3; h++) {
+        int f=h-h%3;
+        int a=tri[h],b=tri[f+(h+1)%3],c=tri[f+(h+2)%3];
+        long key=ULongMap.key(a,b);
+        int id=map.get(key);
+        if(id==ULongMap.NOTFOUND) {
+          id=en++;
+          map.put(key, id);
+          edge[id*2]=a;
+          edge[id*2+1]=b;
+          opp[id*2]=c;
+          face[id*2]=f/3;
+        }
+        else if(faces[id]==1) {
+          opp[id*2+1]=c;
+          face[id*2+1]=f/3;
+        }
+        faces[id]++;
+        edgeOf[h]=id;
+      }
+    }
+
+    /**
+     * Writes the midpoint of edge <code>i</code> to vertex <code>m</code> of
+     * <code>res</code>, using the Loop rule for interior edges if
+     * <code>loop==true</code>.
+     */
+    void midpoint(UGeoPacked in,int i,UGeoPacked res,int m,boolean loop) {
+      float xyz[]=in.xyz;
+      int a=edge[i*2],b=edge[i*2+1];
+      if(loop && faces[i]==2) {
+        int c=opp[i*2],d=opp[i*2+1];
+        for(int j=0; j<3; j++) {
+          res.xyz[m*3+j]=0.375f*(xyz[a*3+j]+xyz[b*3+j])+
+              0.125f*(xyz[c*3+j]+xyz[d*3+j]);
+        }
+      }
+      else for(int j=0; j<3; j++) {
+        res.xyz[m*3+j]=(xyz[a*3+j]+xyz[b*3+j])*0.5f;
+      }
+
+      if(in.uv!=null) {
+        res.uv[m*2]=(in.uv[a*2]+in.uv[b*2])*0.5f;
+        res.uv[m*2+1]=(in.uv[a*2+1]+in.uv[b*2+1])*0.5f;
+      }
+    }
+  }
+
+  private static UGeoPacked newPacked(UGeoPacked in,int vNum,int fNum) {
+    UGeoPacked res=new UGeoPacked(vNum, fNum);
+    res.vn=vNum;
+    res.fn=fNum;
+    if(in.uv!=null) res.uv=new float[Math.max(vNum,1)*2];
+    if(in.color!=null) res.color=new int[Math.max(fNum,1)];
+    return res;
+  }
+
+  private static void setF(UGeoPacked geo,int f,int a,int b,int c) {
+    f*=3;
+    geo.tri[f]=a;
+    geo.tri[f+1]=b;
+    geo.tri[f+2]=c;
   }
 }
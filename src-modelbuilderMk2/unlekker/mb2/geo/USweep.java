@@ -0,0 +1,324 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UParallel;
+
+/**
+ * <p>Sweeps a profile along a 3D path using rotation-minimizing frames, calculated
+ * in a single pass by parallel transport (the "double reflection" method of
+ * Wang et al.) and stored as 3x3 float matrices. Unlike {@link UHeading#sweep(UVertexList, UVertexList)},
+ * which rotates each ring independently, the frames do not twist around the path
+ * and no Rotation or Vector3D instances are created.</p>
+ *
+ * <p>As with UHeading, the profile is assumed to lie in the XY plane facing along
+ * the positive Z axis. The first frame uses the same alignment as UHeading. For
+ * closed paths any remaining twist between the last and first frames is
+ * distributed evenly along the path so that the seam matches.</p>
+ *
+ * <pre>
+ * USweep sweep=new USweep(path);
+ * UGeoPacked tube=sweep.sweep(profile);
+ * </pre>
+ *
+ * <p>Rings are evaluated in parallel, straight into the vertex array of a
+ * {@link UGeoPacked} along with quad strip indices connecting them.</p>
+ *
+ * @author marius
+ *
+ */
+public class USweep extends UMB {
+  /**
+   * Frame matrices, 9 floats per path vertex in row-major order. The columns
+   * are the profile X and Y axes and the path tangent.
+   */
+  public float frame[];
+
+  /**
+   * Path positions, 3 floats per path vertex.
+   */
+  public float pos[];
+
+  private int n;
+  private boolean isClosed;
+
+  public USweep(UVertexList path) {
+    set(path);
+  }
+
+  public int size() {
+    return n;
+  }
+
+  /**
+   * Calculates frames for <code>path</code>. If the path is closed (last vertex
+   * equal to the first) the last vertex is ignored and the sweep wraps around.
+   * @param path
+   * @return
+   */
+  public USweep set(UVertexList path) {
+    n=path.size();
+    isClosed=(n>2 && path.isClosed());
+    if(isClosed) n--;
+
+    pos=new float[n*3];
+    frame=new float[n*9];
+    if(n<2) {
+      if(n==1) {
+        setPos(path);
+        setFrame(0, 1,0,0, 0,1,0, 0,0,1);
+      }
+      return this;
+    }
+
+    setPos(path);
+
+    // tangents as in UHeading.deltaVectors3(), normalized
+    float t[]=new float[n*3];
+    for(int i=0; i<n; i++) {
+      int prev=(i>0 ? i-1 : (isClosed ? n-1 : i));
+      int next=(i<n-1 ? i+1 : (isClosed ? 0 : i));
+      for(int j=0; j<3; j++) t[i*3+j]=pos[next*3+j]-pos[prev*3+j];
+
+      float l=mag(t,i*3);
+      if(l<EPSILON && i>0) {
+        System.arraycopy(t, (i-1)*3, t, i*3, 3);
+        continue;
+      }
+      if(l<EPSILON) {
+        t[i*3+2]=1;
+        continue;
+      }
+      for(int j=0; j<3; j++) t[i*3+j]/=l;
+    }
+
+    // first frame: shortest rotation from <0,0,1> to the first tangent,
+    // matching UHeading
+    float tx=t[0],ty=t[1],tz=t[2];
+    if(tz<-1+EPSILON) setFrame(0, -1,0,0, 0,1,0, 0,0,-1);
+    else {
+      float k=1f/(1+tz);
+      setFrame(0,
+          1-tx*tx*k, -tx*ty*k, tx,
+          -tx*ty*k, 1-ty*ty*k, ty,
+          -tx, -ty, tz);
+    }
+
+    // parallel transport of the profile X axis by double reflection
+    float r[]=new float[] {frame[0],frame[3],frame[6]};
+    for(int i=1; i<n; i++) {
+      transport(i-1, i, t, r);
+      setFrame(i, r[0],r[1],r[2], t[i*3],t[i*3+1],t[i*3+2]);
+    }
+
+    if(isClosed) {
+      // twist between the frame transported across the closing segment and
+      // the first frame, distributed evenly along the path
+      transport(n-1, 0, t, r);
+      float bx=frame[0],by=frame[3],bz=frame[6];
+      float cx=by*r[2]-bz*r[1],cy=bz*r[0]-bx*r[2],cz=bx*r[1]-by*r[0];
+      float twist=(float)Math.atan2(cx*t[0]+cy*t[1]+cz*t[2], bx*r[0]+by*r[1]+bz*r[2]);
+      if(Math.abs(twist)>EPSILON) for(int i=1; i<n; i++) rotate(i, -twist*(float)i/(float)n);
+    }
+
+    return this;
+  }
+
+  /**
+   * Transports the axis <code>r</code> (perpendicular to tangent <code>i</code>)
+   * from path vertex <code>i</code> to <code>j</code>, using the double
+   * reflection method.
+   */
+  private void transport(int i,int j,float t[],float r[]) {
+    int a=i*3,b=j*3;
+    float rx=r[0],ry=r[1],rz=r[2],tx=t[a],ty=t[a+1],tz=t[a+2];
+
+    float vx=pos[b]-pos[a],vy=pos[b+1]-pos[a+1],vz=pos[b+2]-pos[a+2];
+    float c=vx*vx+vy*vy+vz*vz;
+    if(c>EPSILON*EPSILON) {
+      float d=2/c*(vx*rx+vy*ry+vz*rz);
+      rx-=d*vx;
+      ry-=d*vy;
+      rz-=d*vz;
+      d=2/c*(vx*tx+vy*ty+vz*tz);
+      tx-=d*vx;
+      ty-=d*vy;
+      tz-=d*vz;
+    }
+
+    vx=t[b]-tx;
+    vy=t[b+1]-ty;
+    vz=t[b+2]-tz;
+    c=vx*vx+vy*vy+vz*vz;
+    if(c>EPSILON*EPSILON) {
+      float d=2/c*(vx*rx+vy*ry+vz*rz);
+      rx-=d*vx;
+      ry-=d*vy;
+      rz-=d*vz;
+    }
+
+    // re-orthogonalize against the tangent to avoid drift
+    float d=rx*t[b]+ry*t[b+1]+rz*t[b+2];
+    rx-=d*t[b];
+    ry-=d*t[b+1];
+    rz-=d*t[b+2];
+    float l=(float)Math.sqrt(rx*rx+ry*ry+rz*rz);
+    if(l>0) {
+      r[0]=rx/l;
+      r[1]=ry/l;
+      r[2]=rz/l;
+    }
+  }
+
+  /**
+   * Rotates frame <code>i</code> around its tangent.
+   */
+  private void rotate(int i,float a) {
+    int f=i*9;
+    float cos=(float)Math.cos(a),sin=(float)Math.sin(a);
+    setFrame(i,
+        frame[f]*cos+frame[f+1]*sin,
+        frame[f+3]*cos+frame[f+4]*sin,
+        frame[f+6]*cos+frame[f+7]*sin,
+        frame[f+2],frame[f+5],frame[f+8]);
+  }
+
+  private void setPos(UVertexList path) {
+    for(int i=0; i<n; i++) {
+      UVertex vv=path.get(i);
+      pos[i*3]=vv.x;
+      pos[i*3+1]=vv.y;
+      pos[i*3+2]=vv.z;
+    }
+  }
+
+  /**
+   * Sets frame <code>i</code> from its X axis and tangent, with Y = T x X.
+   */
+  private void setFrame(int i,float xx,float xy,float xz,float tx,float ty,float tz) {
+    setFrame(i,
+        xx, ty*xz-tz*xy, tx,
+        xy, tz*xx-tx*xz, ty,
+        xz, tx*xy-ty*xx, tz);
+  }
+
+  private void setFrame(int i,float m00,float m01,float m02,
+      float m10,float m11,float m12,float m20,float m21,float m22) {
+    int f=i*9;
+    frame[f]=m00;
+    frame[f+1]=m01;
+    frame[f+2]=m02;
+    frame[f+3]=m10;
+    frame[f+4]=m11;
+    frame[f+5]=m12;
+    frame[f+6]=m20;
+    frame[f+7]=m21;
+    frame[f+8]=m22;
+  }
+
+  private static float mag(float v[],int id) {
+    return (float)Math.sqrt(v[id]*v[id]+v[id+1]*v[id+1]+v[id+2]*v[id+2]);
+  }
+
+  /**
+   * Sweeps <code>prof</code> along the path.
+   * @param prof Profile in the XY plane. If closed, the last vertex is ignored
+   * and rings wrap around.
+   * @return Packed mesh with <code>size()*profile size</code> vertices, connected
+   * as quad strips with the same face orientation as {@link UGeo#quadstrip(ArrayList)}.
+   */
+  public UGeoPacked sweep(UVertexList prof) {
+    int m=prof.size();
+    boolean profClosed=(m>2 && prof.isClosed());
+    if(profClosed) m--;
+
+    final float p[]=new float[m*3];
+    for(int j=0; j<m; j++) {
+      UVertex vv=prof.get(j);
+      p[j*3]=vv.x;
+      p[j*3+1]=vv.y;
+      p[j*3+2]=vv.z;
+    }
+
+    int steps=(isClosed ? n : n-1),segs=(profClosed ? m : m-1);
+    final UGeoPacked res=new UGeoPacked(n*m, Math.max(steps,0)*Math.max(segs,0)*2);
+    rings(p, m, res.xyz);
+
+    // quad strips, as in UGeo.quadstrip(UVertexList,UVertexList)
+    int tri[]=res.tri,id=0;
+    for(int i=0; i<steps; i++) {
+      int a=i*m,b=((i+1)%n)*m;
+      for(int j=0; j<segs; j++) {
+        int j1=(j+1)%m;
+        tri[id++]=a+j;
+        tri[id++]=a+j1;
+        tri[id++]=b+j;
+        tri[id++]=b+j1;
+        tri[id++]=b+j;
+        tri[id++]=a+j1;
+      }
+    }
+
+    res.vn=n*m;
+    res.fn=id/3;
+    return res;
+  }
+
+  /**
+   * Sweeps <code>prof</code> along the path.
+   * @return One vertex list per path vertex, as returned by
+   * {@link UHeading#sweep(UVertexList, UVertexList)}
+   */
+  public ArrayList<UVertexList> rings(UVertexList prof) {
+    int m=prof.size();
+    float p[]=new float[m*3];
+    for(int j=0; j<m; j++) {
+      UVertex vv=prof.get(j);
+      p[j*3]=vv.x;
+      p[j*3+1]=vv.y;
+      p[j*3+2]=vv.z;
+    }
+
+    float xyz[]=new float[n*m*3];
+    rings(p, m, xyz);
+
+    ArrayList<UVertexList> res=new ArrayList<UVertexList>(n);
+    for(int i=0; i<n; i++) {
+      UVertexList vl=new UVertexList();
+      vl.ensureCapacity(m);
+      for(int j=0, id=i*m*3; j<m; j++, id+=3) vl.add(new UVertex(xyz[id],xyz[id+1],xyz[id+2]));
+      res.add(vl);
+    }
+    return res;
+  }
+
+  /**
+   * Transforms the profile <code>p</code> (<code>m</code> vertices) by each
+   * frame, writing rings to <code>xyz</code>.
+   */
+  private void rings(final float p[],final int m,final float xyz[]) {
+    final float fr[]=frame,ps[]=pos;
+
+    UParallel.run(n, Math.max(1, UParallel.MINCHUNK/Math.max(m,1)), new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) {
+          int f=i*9,id=i*m*3;
+          for(int j=0; j<m*3; j+=3) {
+            float x=p[j],y=p[j+1],z=p[j+2];
+            xyz[id++]=fr[f]*x+fr[f+1]*y+fr[f+2]*z+ps[i*3];
+            xyz[id++]=fr[f+3]*x+fr[f+4]*y+fr[f+5]*z+ps[i*3+1];
+            xyz[id++]=fr[f+6]*x+fr[f+7]*y+fr[f+8]*z+ps[i*3+2];
+          }
+        }
+      }
+    });
+  }
+
+  public String str() {
+    return "[USweep n="+n+(isClosed ? " closed" : "")+"]";
+  }
+}
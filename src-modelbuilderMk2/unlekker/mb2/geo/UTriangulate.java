@@ -1,390 +1,845 @@
-/**
- * 2D triangulator, adapted from code posted by Florian Jenett to the
- * Processing.org Wiki, which was again based on C code by Paul Bourke.
- * 
- *  Triangulation is performed in a 2D plane and is primarily intended for use
- with point sets that represent a 2.5D topology. Typical cases include 
- height maps, terrain data with elevations and geo-coded locations limited 
- to single hemi-sphere of the globe. 
-
- The algorithm determines which of the XY/XZ,YZ planes provides the 
- largest area of point distribution, using that plane for the calculations.
- The resulting mesh will be oriented the same way as the original input (which 
- is left unchanged).
- 
- Point clouds representing actual 3D volumes will give poor results, a better 
- solution would be to use a convex hull or some kind of re-meshing tool. 
-
- * Links:
- * <ul>
- * <li><a href="http://wiki.processing.org/w/Triangulation">http://wiki.processing.org/w/Triangulation</a></li> 
- * <li><a href="http://astronomy.swin.edu.au/~pbourke/modelling/triangulate/">http://astronomy.swin.edu.au/~pbourke/modelling/triangulate/</a></li> 
- * </ul>
+/*
+ * modelbuilderMk2
  */
-
 package unlekker.mb2.geo;
 
-/*
- * Code adapted from http://wiki.processing.org/w/Triangulation, as written
- * by Florian Jenett based on C source by Paul Bourke. 
- * 
- * See below for comments from Florian Jenett's source.
- * 
- * Marius Watz
- * 
- * -----------------------------------------
- * 
- *	ported from p bourke's triangulate.c
- *	http://astronomy.swin.edu.au/~pbourke/modelling/triangulate/
+import java.util.ArrayList;
+
+import unlekker.mb2.util.*;
+
+/**
+ * <p>2D Delaunay triangulator, with optional constrained edges.</p>
  *
- *	fjenett, 20th february 2005, offenbach-germany.
- *	contact: http://www.florianjenett.de/
+ * <p>Triangulation is performed in a 2D plane and is primarily intended for use
+ * with point sets that represent a 2.5D topology. Typical cases include
+ * height maps, terrain data with elevations and geo-coded locations limited
+ * to single hemi-sphere of the globe.</p>
  *
- *      adapted to take a Vector of Point3f objects and return a Vector of Triangles
- *      (and generally be more Java-like and less C-like in usage - 
- *       and probably less efficient but who's benchmarking?)
- *      Tom Carden, tom (at) tom-carden.co.uk 17th January 2006
+ * <p>The algorithm determines which of the XY/XZ,YZ planes provides the
+ * largest area of point distribution, using that plane for the calculations.
+ * The resulting mesh will be oriented the same way as the original input (which
+ * is left unchanged).</p>
  *
- *      adapted to get rid of those ugly Vector and Point3f objects. it now takes an
- *      ArrayList of UVertex objects and return an ArrayList of Triangles objects.
- *      see what Sun thinks about Vector objects here:
- *      http://java.sun.com/developer/technicalArticles/Collections/Using/index.html
- *      antiplastik, 28 june 2010, paris-france
+ * <p>Points are inserted with a radial sweep around a seed triangle, keeping
+ * the triangulation Delaunay by edge flipping as each point is added (the
+ * "S-hull" approach). Mesh data is kept in primitive arrays (3 vertex indices
+ * and 3 opposite half-edges per triangle), so that point sets with millions of
+ * samples can be triangulated in O(n log n) time. Constrained edges are
+ * inserted afterwards by flipping the edges they cross, then restoring the
+ * Delaunay property around them (Sloan's algorithm). Polygons with holes
+ * are triangulated by constraining all outline edges and removing triangles
+ * outside the outline or inside holes.</p>
  *
+ * <p>Point clouds representing actual 3D volumes will give poor results, a better
+ * solution would be to use a convex hull or some kind of re-meshing tool.</p>
+ *
+ * <p>Duplicate points are merged. Triangles are added with the same orientation
+ * as the earlier port of Paul Bourke's algorithm used by this class.</p>
+ *
+ * Links:
+ * <ul>
+ * <li><a href="http://www.s-hull.org/">http://www.s-hull.org/</a></li>
+ * <li>S.W. Sloan, "A fast algorithm for generating constrained Delaunay
+ * triangulations", Computers &amp; Structures 47 (1993)</li>
+ * </ul>
  */
+public class UTriangulate implements UConst {
+  /**
+   * The mesh faces were added to.
+   */
+  public UGeo mesh;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+  /**
+   * Result as indices into the input vertex list, 3 per triangle.
+   */
+  public int triangles[];
 
-import processing.core.PApplet;
-import unlekker.mb2.util.*;
+  private static final UMetrics.Timer BUILD=UMetrics.timer("geo.triangulate");
 
-public class UTriangulate implements UConst {
-  public UGeo mesh;
-  public ArrayList<Edge> edges;
-  public ArrayList<Triangle> tri;
+  // projected coordinates
+  private double px[],py[];
+  private int n;
+
+  // triangle vertices and opposite half-edges, tn half-edges in use
+  private int tri[],half[];
+  private int tn;
+  private boolean con[];
+
+  // sweep hull as a linked list of vertices, hashed by angle to center
+  private int hullPrev[],hullNext[],hullTri[],hullHash[];
+  private int hashSize;
+  private double cx,cy;
+
+  /**
+   * Vertex each input point was merged into, or -1 if it was skipped.
+   */
+  private int rep[];
+
+  // an outgoing half-edge per vertex, used by constraint insertion
+  private int vin[];
+
+  private int stack[]=new int[512],ring[]=new int[64];
 
   public UTriangulate(UGeo geo,UVertexList vl) {
-//    mesh=geo;
-    build(vl);
-    geo.add(mesh);
+    build(geo, vl, null, false);
   }
 
   public UTriangulate(UVertexList vl) {
-    build(vl);
+    build(new UGeo(), vl, null, false);
   }
-  
 
   public UTriangulate(UVertex[] vv) {
-    build(new UVertexList().add(vv));
+    this(new UVertexList().add(vv));
   }
-  
-  private void build(UVertexList vl) {
+
+  private UTriangulate() {
+  }
+
+  /**
+   * Triangulates <code>vl</code> with constrained edges that are guaranteed to
+   * be part of the result.
+   * @param geo Mesh to add faces to
+   * @param vl Points to triangulate
+   * @param edges Constrained edges as pairs of indices into <code>vl</code>.
+   * Edges must not cross each other.
+   * @return
+   */
+  public static UTriangulate constrained(UGeo geo,UVertexList vl,int edges[]) {
+    UTriangulate t=new UTriangulate();
+    t.build(geo, vl, edges, false);
+    return t;
+  }
+
+  /**
+   * Triangulates the polygon given by <code>outline</code>, excluding the
+   * regions inside <code>holes</code>. Polygons need not be convex and may be
+   * given in any order, with or without a closing vertex. Holes may be null.
+   * @param geo Mesh to add faces to
+   * @param outline
+   * @param holes
+   */
+  public UTriangulate(UGeo geo,UVertexList outline,ArrayList<UVertexList> holes) {
+    UVertexList vl=new UVertexList();
+    vl.setOptions(NOCOPY);
+    int cnt=outline.size();
+    if(holes!=null) for(UVertexList h:holes) cnt+=h.size();
+
+    int edges[]=new int[cnt*2],id=0;
+    id=addOutline(vl, outline, edges, id);
+    if(holes!=null) for(UVertexList h:holes) id=addOutline(vl, h, edges, id);
+
+    int tmp[]=new int[id];
+    System.arraycopy(edges, 0, tmp, 0, id);
+    build(geo, vl, tmp, true);
+  }
+
+  public UTriangulate(UVertexList outline,ArrayList<UVertexList> holes) {
+    this(new UGeo(), outline, holes);
+  }
+
+  private static int addOutline(UVertexList vl,UVertexList outline,int edges[],int id) {
+    int n=outline.size();
+    if(n>1 && outline.isClosed()) n--;
+    if(n<2) return id;
+
+    int first=vl.size();
+    for(int i=0; i<n; i++) vl.v.add(outline.get(i));
+    for(int i=0; i<n; i++) {
+      edges[id++]=first+i;
+      edges[id++]=first+(i+1)%n;
+    }
+    return id;
+  }
+
+  private void build(UGeo geo,UVertexList vl,int edges[],boolean polygon) {
+    long timer=BUILD.start();
+    mesh=geo;
+    n=vl.size();
+    triangles=new int[0];
+    if(n<3) return;
+
     UBB bb=vl.bb();
-    
     float dimAxis[]=new float[] {
         bb.dimX()*bb.dimY(),
         bb.dimX()*bb.dimZ(),
         bb.dimY()*bb.dimZ()
     };
-    
+
     int biggest=(dimAxis[0]>dimAxis[1] ? 0 : 1);
     biggest=(dimAxis[biggest]>dimAxis[2] ? biggest : 2);
-    
-    if(biggest==1) vl=vl.copy().rotX(HALF_PI);
-    else if(biggest==2) vl=vl.copy().rotY(HALF_PI);
-    
-    tri=triangulate(vl);
-    
-    if(mesh==null) {
-      mesh=new UGeo();
-      mesh.getV().add(vl);
-    }
-    else {
-      UVertexList meshVL=mesh.getV();
-      for(UVertex vv:vl) if(!meshVL.contains(vv)) mesh.addVertex(vv);
-    }
-    
-    for(Triangle t:tri) {
-      mesh.addFace(t.p1, t.p2, t.p3);
-    }
-    
-    if(biggest==1) mesh.rotX(-HALF_PI);
-    else if(biggest==2) mesh.rotY(-HALF_PI);
-    
-  }
-
-
-  /*
-    From P Bourke's C prototype - 
-
-    qsort(p,nv,sizeof(XYZ),XYZCompare);
-		
-    int XYZCompare(void *v1,void *v2) {
-      XYZ *p1,*p2;
-      p1 = v1;
-      p2 = v2;
-      if (p1->x < p2->x)
-        return(-1);
-      else if (p1->x > p2->x)
-        return(1);
-      else
-        return(0);
-    }
-  */
-  private static class XComparator implements Comparator<UVertex> {
-    
-    public int compare(UVertex p1, UVertex p2) {
-      if (p1.x < p2.x) {
-        return -1;
+
+    // project onto the chosen plane, matching a rotation of HALF_PI
+    // around X or Y so that face orientation is unchanged
+    px=new double[n];
+    py=new double[n];
+    for(int i=0; i<n; i++) {
+      UVertex vv=vl.get(i);
+      if(biggest==0) {px[i]=vv.x; py[i]=vv.y;}
+      else if(biggest==1) {px[i]=vv.x; py[i]=-vv.z;}
+      else {px[i]=-vv.z; py[i]=vv.y;}
+    }
+
+    if(!delaunay()) return;
+
+    if(edges!=null) {
+      con=new boolean[tn];
+      vin=new int[n];
+      for(int e=0; e<tn; e++) vin[tri[e]]=e;
+      for(int i=0; i<edges.length; i+=2) {
+        int u=rep[edges[i]],v=rep[edges[i+1]];
+        if(u>-1 && v>-1 && u!=v) constrain(u,v);
       }
-      else if (p1.x > p2.x) {
-        return 1;
+    }
+
+    boolean keep[]=(polygon ? inside() : null);
+    int cnt=0;
+    for(int t=0; t<tn/3; t++) if(keep==null || keep[t]) cnt++;
+
+    // triangles are counter-clockwise internally, output is clockwise
+    triangles=new int[cnt*3];
+    cnt=0;
+    for(int t=0; t<tn/3; t++) if(keep==null || keep[t]) {
+      triangles[cnt++]=tri[t*3];
+      triangles[cnt++]=tri[t*3+2];
+      triangles[cnt++]=tri[t*3+1];
+    }
+
+    geo.ensureCapacity(geo.sizeV()+n, geo.sizeF()+cnt/3);
+    int id[]=geo.addID(vl),vID[]=new int[3];
+    for(int i=0; i<cnt; i+=3) {
+      vID[0]=id[triangles[i]];
+      vID[1]=id[triangles[i+1]];
+      vID[2]=id[triangles[i+2]];
+      if(vID[0]!=vID[1] && vID[1]!=vID[2] && vID[2]!=vID[0]) geo.addFace(vID);
+    }
+    BUILD.stop(timer);
+  }
+
+  ///////////////////////////////////////////////////
+  // SWEEP-HULL DELAUNAY
+
+  /**
+   * Builds the Delaunay triangulation of all points.
+   * @return <code>false</code> if all points are collinear.
+   */
+  private boolean delaunay() {
+    int maxTri=2*n-5;
+    tri=new int[maxTri*3];
+    half=new int[maxTri*3];
+    tn=0;
+
+    hullPrev=new int[n];
+    hullNext=new int[n];
+    hullTri=new int[n];
+    rep=new int[n];
+    for(int i=0; i<n; i++) rep[i]=-1;
+
+    double minX=Double.POSITIVE_INFINITY,minY=minX;
+    double maxX=Double.NEGATIVE_INFINITY,maxY=maxX;
+    for(int i=0; i<n; i++) {
+      minX=Math.min(minX, px[i]);
+      minY=Math.min(minY, py[i]);
+      maxX=Math.max(maxX, px[i]);
+      maxY=Math.max(maxY, py[i]);
+    }
+    double mx=(minX+maxX)/2,my=(minY+maxY)/2;
+
+    // seed triangle: point closest to center, its nearest neighbour and the
+    // point giving the smallest circumcircle with those two
+    int i0=-1,i1=-1,i2=-1;
+    double min=Double.POSITIVE_INFINITY;
+    for(int i=0; i<n; i++) {
+      double d=dist(mx,my, px[i],py[i]);
+      if(d<min) {i0=i; min=d;}
+    }
+
+    min=Double.POSITIVE_INFINITY;
+    for(int i=0; i<n; i++) {
+      double d=dist(px[i0],py[i0], px[i],py[i]);
+      if(d>0 && d<min) {i1=i; min=d;}
+    }
+    if(i1<0) return false;
+
+    min=Double.POSITIVE_INFINITY;
+    for(int i=0; i<n; i++) {
+      double r=circumRadius(i0,i1,i);
+      if(r<min) {i2=i; min=r;}
+    }
+    if(i2<0) return false;
+
+    if(orient(i0,i1,i2)<0) {
+      int tmp=i1;
+      i1=i2;
+      i2=tmp;
+    }
+    circumCenter(i0,i1,i2);
+
+    // sort points by distance to the seed circumcenter
+    double dists[]=new double[n];
+    int ids[]=new int[n];
+    for(int i=0; i<n; i++) {
+      ids[i]=i;
+      dists[i]=dist(cx,cy, px[i],py[i]);
+    }
+    sort(ids, dists, 0, n-1);
+
+    hashSize=(int)Math.ceil(Math.sqrt(n));
+    hullHash=new int[hashSize];
+    for(int i=0; i<hashSize; i++) hullHash[i]=-1;
+
+    hullNext[i0]=hullPrev[i2]=i1;
+    hullNext[i1]=hullPrev[i0]=i2;
+    hullNext[i2]=hullPrev[i1]=i0;
+    hullTri[i0]=0;
+    hullTri[i1]=1;
+    hullTri[i2]=2;
+    hullHash[hashKey(i0)]=i0;
+    hullHash[hashKey(i1)]=i1;
+    hullHash[hashKey(i2)]=i2;
+    addTriangle(i0,i1,i2, -1,-1,-1);
+    rep[i0]=i0;
+    rep[i1]=i1;
+    rep[i2]=i2;
+
+    int prev=-1;
+    for(int k=0; k<n; k++) {
+      int i=ids[k];
+
+      // merge duplicates
+      if(prev>-1 && px[i]==px[prev] && py[i]==py[prev]) {
+        if(rep[i]<0) rep[i]=rep[prev];
+        continue;
       }
-      else {
-        return 0;
+      prev=i;
+      if(i==i0 || i==i1 || i==i2) continue;
+
+      // find a visible hull edge, starting from the hull vertex closest in angle
+      int start=0,key=hashKey(i);
+      for(int j=0; j<hashSize; j++) {
+        start=hullHash[(key+j)%hashSize];
+        if(start!=-1 && start!=hullNext[start]) break;
       }
+      start=hullPrev[start];
+
+      int e=start;
+      while(orient(e,hullNext[e],i)>=0) {
+        e=hullNext[e];
+        if(e==start) {
+          e=-1;
+          break;
+        }
+      }
+
+      // not outside the hull, should only happen for near-duplicates
+      if(e<0) {
+        rep[i]=nearHull(i, start);
+        continue;
+      }
+      rep[i]=i;
+
+      // first triangle from the point
+      int t=addTriangle(e,i,hullNext[e], -1,-1,hullTri[e]);
+      hullTri[i]=t+1;
+      hullTri[e]=t;
+      legalize(t+2);
+
+      // walk forward through the hull, adding triangles and flipping
+      int nn=hullNext[e];
+      for(;;) {
+        int q=hullNext[nn];
+        if(orient(nn,q,i)>=0) break;
+        t=addTriangle(nn,i,q, hullTri[i],-1,hullTri[nn]);
+        hullTri[i]=t+1;
+        legalize(t+2);
+        hullNext[nn]=nn;
+        nn=q;
+      }
+
+      // walk backward from the other side
+      if(e==start) {
+        for(;;) {
+          int q=hullPrev[e];
+          if(orient(q,e,i)>=0) break;
+          t=addTriangle(q,i,e, -1,hullTri[e],hullTri[q]);
+          hullTri[q]=t;
+          legalize(t+2);
+          hullNext[e]=e;
+          e=q;
+        }
+      }
+
+      hullPrev[i]=e;
+      hullNext[e]=i;
+      hullPrev[nn]=i;
+      hullNext[i]=nn;
+      hullHash[hashKey(i)]=i;
+      hullHash[hashKey(e)]=e;
+    }
+
+    return true;
+  }
+
+  /**
+   * Finds the hull vertex near <code>start</code> that point <code>i</code>
+   * duplicates, or -1 if none does.
+   */
+  private int nearHull(int i,int start) {
+    double eps=1e-12*(Math.abs(px[i])+Math.abs(py[i])+1);
+    int v=start;
+    for(int j=0; j<3; j++) {
+      if(Math.abs(px[v]-px[i])<=eps && Math.abs(py[v]-py[i])<=eps) return v;
+      v=hullNext[v];
     }
+    return -1;
   }
 
-  /*
-    Return TRUE if a point (xp,yp) is inside the circumcircle made up
-    of the points (x1,y1), (x2,y2), (x3,y3)
-    The circumcircle centre is returned in (xc,yc) and the radius r
-    NOTE: A point on the edge is inside the circumcircle
-  */
-  private static boolean circumCircle(UVertex p, Triangle t, UVertex circle) {
-
-    float m1,m2,mx1,mx2,my1,my2;
-    float dx,dy,rsqr,drsqr;
-		
-    /* Check for coincident points */
-    if ( PApplet.abs(t.p1.y-t.p2.y) < PApplet.EPSILON && PApplet.abs(t.p2.y-t.p3.y) < PApplet.EPSILON ) {
-      System.err.println("CircumCircle: Points are coincident.");
-      return false;
-    }
-
-    if ( PApplet.abs(t.p2.y-t.p1.y) < PApplet.EPSILON ) {
-      m2 = - (t.p3.x-t.p2.x) / (t.p3.y-t.p2.y);
-      mx2 = (t.p2.x + t.p3.x) / 2.0f;
-      my2 = (t.p2.y + t.p3.y) / 2.0f;
-      circle.x = (t.p2.x + t.p1.x) / 2.0f;
-      circle.y = m2 * (circle.x - mx2) + my2;
-    }
-    else if ( PApplet.abs(t.p3.y-t.p2.y) < PApplet.EPSILON ) {
-      m1 = - (t.p2.x-t.p1.x) / (t.p2.y-t.p1.y);
-      mx1 = (t.p1.x + t.p2.x) / 2.0f;
-      my1 = (t.p1.y + t.p2.y) / 2.0f;
-      circle.x = (t.p3.x + t.p2.x) / 2.0f;
-      circle.y = m1 * (circle.x - mx1) + my1;	
-    }
-    else {
-      m1 = - (t.p2.x-t.p1.x) / (t.p2.y-t.p1.y);
-      m2 = - (t.p3.x-t.p2.x) / (t.p3.y-t.p2.y);
-      mx1 = (t.p1.x + t.p2.x) / 2.0f;
-      mx2 = (t.p2.x + t.p3.x) / 2.0f;
-      my1 = (t.p1.y + t.p2.y) / 2.0f;
-      my2 = (t.p2.y + t.p3.y) / 2.0f;
-      circle.x = (m1 * mx1 - m2 * mx2 + my2 - my1) / (m1 - m2);
-      circle.y = m1 * (circle.x - mx1) + my1;
-    }
-	
-    dx = t.p2.x - circle.x;
-    dy = t.p2.y - circle.y;
-    rsqr = dx*dx + dy*dy;
-    circle.z = PApplet.sqrt(rsqr);
-		
-    dx = p.x - circle.x;
-    dy = p.y - circle.y;
-    drsqr = dx*dx + dy*dy;
-	
-    return drsqr <= rsqr;
-  }
-
-
-  /*
-    Triangulation subroutine
-    Takes as input vertices (UVertexs) in ArrayList pxyz
-    Returned is a list of triangular faces in the ArrayList triangles 
-    These triangles are arranged in a consistent clockwise order.
-  */
-  protected ArrayList<Triangle> triangulate(UVertexList pxyz ) {
-    // sort vertex array in increasing x values
-    Collections.sort(pxyz.v, new XComparator());
-    		
-    /*
-      Find the maximum and minimum vertex bounds.
-      This is to allow calculation of the bounding triangle
-    */
-    float xmin = ((UVertex)pxyz.get(0)).x;
-    float ymin = ((UVertex)pxyz.get(0)).y;
-    float xmax = xmin;
-    float ymax = ymin;
-    
-    Iterator<UVertex> pIter = pxyz.iterator();
-    while (pIter.hasNext()) {
-      UVertex p = (UVertex)pIter.next();
-      if (p.x < xmin) xmin = p.x;
-      if (p.x > xmax) xmax = p.x;
-      if (p.y < ymin) ymin = p.y;
-      if (p.y > ymax) ymax = p.y;
-    }
-    
-    float dx = xmax - xmin;
-    float dy = ymax - ymin;
-    float dmax = (dx > dy) ? dx : dy;
-    float xmid = (xmax + xmin) / 2.0f;
-    float ymid = (ymax + ymin) / 2.0f;
-	
-    ArrayList<Triangle> triangles = new ArrayList<Triangle>(); // for the Triangles
-    HashSet<Triangle> complete = new HashSet<Triangle>(); // for complete Triangles
-
-    /*
-      Set up the supertriangle
-      This is a triangle which encompasses all the sample points.
-      The supertriangle coordinates are added to the end of the
-      vertex list. The supertriangle is the first triangle in
-      the triangle list.
-    */
-    Triangle superTriangle = new Triangle();
-    superTriangle.p1 = new UVertex( xmid - 2.0f * dmax, ymid - dmax, 0.0f );
-    superTriangle.p2 = new UVertex( xmid, ymid + 2.0f * dmax, 0.0f );
-    superTriangle.p3 = new UVertex( xmid + 2.0f * dmax, ymid - dmax, 0.0f );
-    triangles.add(superTriangle);
-    
-    /*
-      Include each point one at a time into the existing mesh
-    */
-    edges = new ArrayList<Edge>();
-    pIter = pxyz.iterator();
-    while (pIter.hasNext()) {
-    
-      UVertex p = (UVertex)pIter.next();
-      
-      edges.clear();
-      
-      /*
-        Set up the edge buffer.
-        If the point (xp,yp) lies inside the circumcircle then the
-        three edges of that triangle are added to the edge buffer
-        and that triangle is removed.
-      */
-      UVertex circle = new UVertex();
-      
-      for (int j = triangles.size()-1; j >= 0; j--) {
-      
-        Triangle t = (Triangle)triangles.get(j);
-        if (complete.contains(t)) {
+  private int addTriangle(int i0,int i1,int i2,int a,int b,int c) {
+    int t=tn;
+    tri[t]=i0;
+    tri[t+1]=i1;
+    tri[t+2]=i2;
+    link(t, a);
+    link(t+1, b);
+    link(t+2, c);
+    tn+=3;
+    return t;
+  }
+
+  private void link(int a,int b) {
+    half[a]=b;
+    if(b!=-1) half[b]=a;
+  }
+
+  /**
+   * Restores the Delaunay property after a point was added, flipping edge
+   * <code>a</code> (opposite the new point) and its successors as needed.
+   */
+  private void legalize(int a) {
+    int i=0;
+    for(;;) {
+      int b=half[a];
+      if(b!=-1) {
+        int ar=prev(a);
+        if(inCircle(tri[a],tri[next(a)],tri[ar], tri[prev(b)])) {
+          flip(a,b);
+
+          // the new point is now opposite edges a and next(b)
+          if(i==stack.length) stack=expand(stack);
+          stack[i++]=next(b);
           continue;
         }
-          
-        boolean inside = circumCircle( p, t, circle );
-        
-        if (circle.x + circle.z < p.x) {
-          complete.add(t);
+      }
+
+      if(i==0) break;
+      a=stack[--i];
+    }
+  }
+
+  /**
+   * Flips the edge shared by the triangles of half-edges <code>a</code> and
+   * <code>b</code>. Triangles (P,Q,R) and (Q,P,S) become (S,Q,R) and (R,P,S),
+   * keeping <code>a</code> and <code>b</code> in place.
+   */
+  private void flip(int a,int b) {
+    int al=next(a),ar=prev(a),br=next(b),bl=prev(b);
+    int p=tri[a],q=tri[al],r=tri[ar],s=tri[bl];
+    int hbl=half[bl],har=half[ar];
+
+    tri[a]=s;
+    tri[b]=r;
+    link(a, hbl);
+    link(b, har);
+    link(ar, bl);
+
+    // hull edges S->Q and R->P moved
+    if(hbl==-1) hullTri[s]=a;
+    if(har==-1) hullTri[r]=b;
+
+    if(con!=null) {
+      boolean cbl=con[bl],car=con[ar];
+      con[a]=cbl;
+      con[b]=car;
+      con[ar]=con[bl]=false;
+    }
+
+    if(vin!=null) {
+      vin[s]=a;
+      vin[q]=al;
+      vin[r]=ar;
+      vin[p]=br;
+    }
+  }
+
+  private int hashKey(int i) {
+    double dx=px[i]-cx,dy=py[i]-cy;
+    double p=dx/(Math.abs(dx)+Math.abs(dy));
+    double a=(dy>0 ? 3-p : 1+p)/4;
+    return (int)Math.floor(a*hashSize)%hashSize;
+  }
+
+  ///////////////////////////////////////////////////
+  // CONSTRAINED EDGES
+
+  /**
+   * Inserts a constrained edge between vertices <code>u</code> and
+   * <code>v</code>. Vertices lying on the edge split it.
+   */
+  private void constrain(int u,int v) {
+    IntQueue cross=new IntQueue(),added=new IntQueue();
+
+    while(u!=v) {
+      int e=findEdge(u,v);
+      if(e>-1) {
+        setConstrained(e);
+        return;
+      }
+
+      // find the triangle around u that the segment leaves through
+      int cnt=rotate(u),w=-1,h=-1;
+      for(int i=0; i<cnt && w<0 && h<0; i++) {
+        e=ring[i];
+        int a=tri[next(e)],b=tri[prev(e)];
+        double oa=orient(u,v,a),ob=orient(u,v,b);
+        if(oa==0 && ahead(u,v,a)) w=a;
+        else if(ob==0 && ahead(u,v,b)) w=b;
+        else if(oa<0 && ob>0) h=next(e);
+      }
+
+      // collect crossed edges, stopping at v or at a vertex on the segment
+      cross.clear();
+      while(h>-1) {
+        if(con[h]) {
+          UMB.logErr("UTriangulate: Constrained edges cross, skipping edge.");
+          return;
         }
-        if (inside) {
-          edges.add(new Edge(t.p1, t.p2));
-          edges.add(new Edge(t.p2, t.p3));
-          edges.add(new Edge(t.p3, t.p1));
-          triangles.remove(j);
+        cross.add(tri[h], tri[next(h)]);
+
+        int t=half[h];
+        if(t==-1) return;
+        int c=tri[prev(t)];
+        if(c==v) break;
+
+        double oc=orient(u,v,c);
+        if(oc==0) {
+          w=c;
+          break;
         }
-                
+        h=(oc>0 ? next(t) : prev(t));
       }
+      if(h<0 && w<0) return;
 
-      /*
-        Tag multiple edges
-        Note: if all triangles are specified anticlockwise then all
-        interior edges are opposite pointing in direction.
-      */
-      for (int j=0; j<edges.size()-1; j++) {
-        Edge e1 = (Edge)edges.get(j);
-        for (int k=j+1; k<edges.size(); k++) {
-          Edge e2 = (Edge)edges.get(k);
-          if (e1.p1 == e2.p2 && e1.p2 == e2.p1) {
-            e1.p1 = null;
-            e1.p2 = null;
-            e2.p1 = null;
-            e2.p2 = null;
-          }
-          /* Shouldn't need the following, see note above */
-          if (e1.p1 == e2.p1 && e1.p2 == e2.p2) {
-            e1.p1 = null;
-            e1.p2 = null;
-            e2.p1 = null;
-            e2.p2 = null;
-          }
-        }
+      int target=(w>-1 ? w : v);
+      if(cross.size()>0) flipCrossing(u, target, cross, added);
+      e=findEdge(u,target);
+      if(e<0) return;
+      setConstrained(e);
+      u=target;
+    }
+  }
+
+  /**
+   * Flips the edges in <code>cross</code> until none of them crosses the
+   * segment <code>u-v</code>, then restores the Delaunay property for the
+   * new edges.
+   */
+  private void flipCrossing(int u,int v,IntQueue cross,IntQueue added) {
+    added.clear();
+
+    int guard=cross.size()*cross.size()*4+64;
+    while(cross.size()>0 && guard-->0) {
+      int p=cross.pop(),q=cross.pop();
+
+      int a=findEdge(p,q),b=(a<0 ? -1 : half[a]);
+      if(b<0) continue;
+
+      int r=tri[prev(a)],s=tri[prev(b)];
+      double op=orient(r,s,p),oq=orient(r,s,q);
+      if(op*oq>=0) {
+        // quad not convex, try again later
+        cross.add(p, q);
+        continue;
       }
-      
-      /*
-        Form new triangles for the current point
-        Skipping over any tagged edges.
-        All edges are arranged in clockwise order.
-      */
-      for (int j=0; j < edges.size(); j++) {
-        Edge e = (Edge)edges.get(j);
-        if (e.p1 == null || e.p2 == null) {
-          continue;
+
+      flip(a,b);
+      if((r==u && s==v) || (r==v && s==u)) continue;
+
+      double or=orient(u,v,r),os=orient(u,v,s);
+      if(or*os<0) cross.add(r, s);
+      else added.add(r, s);
+    }
+
+    boolean swapped=true;
+    while(swapped) {
+      swapped=false;
+      for(int i=0; i<added.size()/2; i++) {
+        int a=findEdge(added.get(i,0),added.get(i,1));
+        if(a<0 || con[a]) continue;
+        int b=half[a];
+        if(b<0) continue;
+
+        int r=tri[prev(a)],s=tri[prev(b)];
+        if(inCircle(tri[a],tri[next(a)],r, s)) {
+          flip(a,b);
+          added.set(i, r,s);
+          swapped=true;
         }
-        triangles.add(new Triangle(e.p1, e.p2, p));
       }
-      
-    }
-      
-    /*
-      Remove triangles with supertriangle vertices
-    */
-    for (int i = triangles.size()-1; i >= 0; i--) {
-      Triangle t = (Triangle)triangles.get(i);
-      if (t.sharesVertex(superTriangle)) {
-        triangles.remove(i);
+    }
+  }
+
+  private void setConstrained(int e) {
+    con[e]=true;
+    if(half[e]!=-1) con[half[e]]=true;
+  }
+
+  /**
+   * @return <code>true</code> if <code>a</code> is on the same side of
+   * <code>u</code> as <code>v</code>, given that all three are collinear.
+   */
+  private boolean ahead(int u,int v,int a) {
+    return (px[a]-px[u])*(px[v]-px[u])+(py[a]-py[u])*(py[v]-py[u])>0;
+  }
+
+  /**
+   * Collects the outgoing half-edges of vertex <code>u</code> in
+   * <code>ring</code>.
+   * @return Number of half-edges
+   */
+  private int rotate(int u) {
+    int start=vin[u],e=start,cnt=0;
+    boolean closed=false;
+    for(;;) {
+      if(cnt==ring.length) ring=expand(ring);
+      ring[cnt++]=e;
+      int t=half[prev(e)];
+      if(t==-1) break;
+      if(t==start) {
+        closed=true;
+        break;
+      }
+      e=t;
+    }
+
+    // boundary vertex, also rotate the other way
+    if(!closed) {
+      int h=half[start];
+      while(h!=-1) {
+        e=next(h);
+        if(cnt==ring.length) ring=expand(ring);
+        ring[cnt++]=e;
+        h=half[e];
       }
     }
+    return cnt;
+  }
 
-    return triangles;
+  /**
+   * @return A half-edge between vertices <code>u</code> and <code>v</code>
+   * (in either direction), or -1 if there is none.
+   */
+  private int findEdge(int u,int v) {
+    int cnt=rotate(u);
+    for(int i=0; i<cnt; i++) {
+      int e=ring[i];
+      if(tri[next(e)]==v) return e;
+      if(tri[prev(e)]==v) return prev(e);
+    }
+    return -1;
   }
-  
-  public class Triangle {
 
-    public UVertex p1, p2, p3;
-    
-    public Triangle() { 
-      p1=null;
-      p2=null;
-      p3=null; 
+  /**
+   * Classifies triangles by the number of constrained edges crossed to reach
+   * them from outside the hull, keeping those at odd depths.
+   */
+  private boolean[] inside() {
+    int nt=tn/3;
+    int depth[]=new int[nt];
+    for(int t=0; t<nt; t++) depth[t]=-1;
+
+    IntQueue cur=new IntQueue(),next=new IntQueue();
+    for(int e=0; e<tn; e++) if(half[e]==-1) {
+      if(con[e]) next.add(e/3);
+      else cur.add(e/3);
+    }
+
+    for(int d=0; cur.size()>0 || next.size()>0; d++) {
+      while(cur.size()>0) {
+        int t=cur.pop();
+        if(depth[t]!=-1) continue;
+        depth[t]=d;
+        for(int e=t*3; e<t*3+3; e++) {
+          int h=half[e];
+          if(h==-1 || depth[h/3]!=-1) continue;
+          if(con[e]) next.add(h/3);
+          else cur.add(h/3);
+        }
+      }
+
+      IntQueue tmp=cur;
+      cur=next;
+      next=tmp;
     }
-    
-    public Triangle(UVertex p1, UVertex p2, UVertex p3) {
-      this.p1 = p1;
-      this.p2 = p2;
-      this.p3 = p3;
+
+    boolean keep[]=new boolean[nt];
+    for(int t=0; t<nt; t++) keep[t]=(depth[t]%2==1);
+    return keep;
+  }
+
+  ///////////////////////////////////////////////////
+  // GEOMETRY
+
+  private static int next(int e) {
+    return (e%3==2 ? e-2 : e+1);
+  }
+
+  private static int prev(int e) {
+    return (e%3==0 ? e+2 : e-1);
+  }
+
+  private static double dist(double ax,double ay,double bx,double by) {
+    double dx=ax-bx,dy=ay-by;
+    return dx*dx+dy*dy;
+  }
+
+  /**
+   * @return Positive if <code>a,b,c</code> are counter-clockwise, negative
+   * if clockwise, 0 if collinear.
+   */
+  private double orient(int a,int b,int c) {
+    return (px[b]-px[a])*(py[c]-py[a])-(py[b]-py[a])*(px[c]-px[a]);
+  }
+
+  /**
+   * @return <code>true</code> if <code>p</code> lies inside the circumcircle
+   * of counter-clockwise triangle <code>a,b,c</code>.
+   */
+  private boolean inCircle(int a,int b,int c,int p) {
+    double dx=px[a]-px[p],dy=py[a]-py[p];
+    double ex=px[b]-px[p],ey=py[b]-py[p];
+    double fx=px[c]-px[p],fy=py[c]-py[p];
+
+    double ap=dx*dx+dy*dy,bp=ex*ex+ey*ey,cp=fx*fx+fy*fy;
+    return dx*(ey*cp-bp*fy)-dy*(ex*cp-bp*fx)+ap*(ex*fy-ey*fx)>0;
+  }
+
+  private double circumRadius(int a,int b,int c) {
+    double dx=px[b]-px[a],dy=py[b]-py[a];
+    double ex=px[c]-px[a],ey=py[c]-py[a];
+    double bl=dx*dx+dy*dy,cl=ex*ex+ey*ey,d=dx*ey-dy*ex;
+    if(d==0) return Double.POSITIVE_INFINITY;
+
+    d=0.5/d;
+    double x=(ey*bl-dy*cl)*d,y=(dx*cl-ex*bl)*d;
+    return x*x+y*y;
+  }
+
+  private void circumCenter(int a,int b,int c) {
+    double dx=px[b]-px[a],dy=py[b]-py[a];
+    double ex=px[c]-px[a],ey=py[c]-py[a];
+    double bl=dx*dx+dy*dy,cl=ex*ex+ey*ey,d=0.5/(dx*ey-dy*ex);
+    cx=px[a]+(ey*bl-dy*cl)*d;
+    cy=py[a]+(dx*cl-ex*bl)*d;
+  }
+
+  /**
+   * Quicksort of <code>ids</code> by <code>dists[ids[i]]</code>.
+   */
+  private static void sort(int ids[],double dists[],int lo,int hi) {
+    while(hi-lo>16) {
+      int mid=(lo+hi)>>>1;
+      if(dists[ids[mid]]<dists[ids[lo]]) swap(ids, mid, lo);
+      if(dists[ids[hi]]<dists[ids[lo]]) swap(ids, hi, lo);
+      if(dists[ids[hi]]<dists[ids[mid]]) swap(ids, hi, mid);
+      double pivot=dists[ids[mid]];
+
+      int i=lo,j=hi;
+      while(i<=j) {
+        while(dists[ids[i]]<pivot) i++;
+        while(dists[ids[j]]>pivot) j--;
+        if(i<=j) swap(ids, i++, j--);
+      }
+
+      // recurse into the smaller half
+      if(j-lo<hi-i) {
+        sort(ids, dists, lo, j);
+        lo=i;
+      }
+      else {
+        sort(ids, dists, i, hi);
+        hi=j;
+      }
     }
-    
-    public boolean sharesVertex(Triangle other) {
-      return p1 == other.p1 || p1 == other.p2 || p1 == other.p3 ||
-             p2 == other.p1 || p2 == other.p2 || p2 == other.p3 || 
-             p3 == other.p1 || p3 == other.p2 || p3 == other.p3;
+
+    for(int i=lo+1; i<=hi; i++) {
+      int id=ids[i];
+      double d=dists[id];
+      int j=i-1;
+      while(j>=lo && dists[ids[j]]>d) {
+        ids[j+1]=ids[j];
+        j--;
+      }
+      ids[j+1]=id;
     }
-    
   }
-	
-  public class Edge {
-    
-    public UVertex p1, p2;
-    
-    public Edge() {
-      p1=null;
-      p2=null;
+
+  private static void swap(int a[],int i,int j) {
+    int tmp=a[i];
+    a[i]=a[j];
+    a[j]=tmp;
+  }
+
+  private static int[] expand(int a[]) {
+    int tmp[]=new int[a.length*2];
+    System.arraycopy(a, 0, tmp, 0, a.length);
+    return tmp;
+  }
+
+  /**
+   * Growable FIFO queue of ints, also used for lists of vertex pairs.
+   */
+  private static class IntQueue {
+    int data[]=new int[32];
+    int head,tail;
+
+    void clear() {
+      head=tail=0;
     }
-    
-    public Edge(UVertex p1, UVertex p2) {
-      this.p1 = p1;
-      this.p2 = p2;
+
+    int size() {
+      return tail-head;
+    }
+
+    void add(int a) {
+      if(tail==data.length) grow();
+      data[tail++]=a;
+    }
+
+    void add(int a,int b) {
+      add(a);
+      add(b);
+    }
+
+    int pop() {
+      return data[head++];
+    }
+
+    // access by pair index, for pair lists
+    int get(int pair,int i) {
+      return data[head+pair*2+i];
+    }
+
+    void set(int pair,int a,int b) {
+      data[head+pair*2]=a;
+      data[head+pair*2+1]=b;
+    }
+
+    private void grow() {
+      int cnt=tail-head;
+      int tmp[]=(cnt*2>data.length ? new int[data.length*2] : data);
+      System.arraycopy(data, head, tmp, 0, cnt);
+      data=tmp;
+      head=0;
+      tail=cnt;
     }
-    
   }
 }
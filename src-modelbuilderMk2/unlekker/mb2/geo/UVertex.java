@@ -1,13 +1,18 @@
 package unlekker.mb2.geo;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import processing.core.PApplet;
 import processing.core.PVector;
 import unlekker.mb2.util.UMB;
 
 public class UVertex extends UMB  {
-  public static int globalID;
+  /**
+   * ID counter, incremented atomically so that instances created on
+   * different threads never share IDs.
+   */
+  public static final AtomicInteger globalID=new AtomicInteger();
 
   public int ID;  
   public float x,y,z;
@@ -29,7 +34,7 @@ public class UVertex extends UMB  {
   }
 
   public UVertex(float xx,float yy,float zz) {
-    ID=globalID++;
+    ID=globalID.getAndIncrement();
     
     x=xx;
     y=yy;
@@ -111,6 +116,20 @@ public class UVertex extends UMB  {
 //    if(distSimple(v)<EPSILON) return true;
     return true;
   }
+
+  /**
+   * Checks whether XYZ of this vertex equals the input values, using the
+   * same tolerance as {@link #equals(Object)}.
+   */
+  public boolean equals(float xx,float yy,float zz) {
+    float res=xx-x;
+    if(res>0 ? res>EPSILON : -res>EPSILON) return false;
+    res=yy-y;
+    if(res>0 ? res>EPSILON : -res>EPSILON) return false;
+    res=zz-z;
+    if(res>0 ? res>EPSILON : -res>EPSILON) return false;
+    return true;
+  }
   
   //////////////////////////////////////////
   // VECTOR MATH
@@ -0,0 +1,211 @@
+/*
+ * modelbuilderMk2
+ */
+package unlekker.mb2.geo;
+
+import java.util.ArrayList;
+
+import unlekker.mb2.util.UConst;
+
+/**
+ * <p>Spatial hash index of the vertices in a {@link UVertexList}, used to
+ * find duplicate vertices in constant time when <code>NODUPL</code> is
+ * enabled. Vertex positions are quantized into cubic cells that are a small
+ * multiple of <code>EPSILON</code> wide. A lookup checks the cell containing
+ * the query point, plus any neighbouring cells lying within <code>EPSILON</code>
+ * of it, so that results match {@link UVertex#equals(Object)} exactly.</p>
+ *
+ * <p>The index stores list positions, not vertex data. It assumes vertices
+ * are only appended to (or removed from) the end of the list, any other
+ * change requires the index to be rebuilt. {@link UVertexList} takes care of
+ * this internally, see {@link UVertexList#reindex()}.</p>
+ *
+ * @author marius
+ *
+ */
+public class UVertexHash implements UConst {
+  private static final double CELL=EPSILON*16,INVCELL=1.0/CELL;
+  private static final double MARGIN=EPSILON*1.5;
+
+  private int head[],next[],pos[],hash[];
+  private int n,mask;
+
+  public UVertexHash() {
+    this(64);
+  }
+
+  public UVertexHash(int capacity) {
+    int size=16;
+    while(size<capacity*2) size<<=1;
+
+    head=new int[size];
+    mask=size-1;
+    for(int i=0; i<size; i++) head[i]=-1;
+
+    capacity=capacity<16 ? 16 : capacity;
+    next=new int[capacity];
+    pos=new int[capacity];
+    hash=new int[capacity];
+  }
+
+  /**
+   * Builds an index of all non-null vertices in the provided list.
+   * @param v
+   */
+  public UVertexHash(ArrayList<UVertex> v) {
+    this(v.size());
+    int id=0;
+    for(UVertex vv:v) {
+      if(vv!=null) add(id,vv.x,vv.y,vv.z);
+      id++;
+    }
+  }
+
+  /**
+   * @return Number of vertices in the index.
+   */
+  public int size() {
+    return n;
+  }
+
+  /**
+   * @return List position of the last vertex added to the index, or -1 if empty.
+   */
+  public int last() {
+    return n>0 ? pos[n-1] : -1;
+  }
+
+  public UVertexHash clear() {
+    for(int i=0; i<head.length; i++) head[i]=-1;
+    n=0;
+    return this;
+  }
+
+  public UVertexHash add(int listPos,UVertex vv) {
+    return add(listPos, vv.x,vv.y,vv.z);
+  }
+
+  /**
+   * Adds a vertex position to the index. <code>listPos</code> must be
+   * larger than any list position previously added.
+   * @param listPos Position of vertex in the parent list
+   */
+  public UVertexHash add(int listPos,float x,float y,float z) {
+    if(n==next.length) grow();
+    if(n>(head.length>>1)) rehash(head.length<<1);
+
+    int h=cellHash(cell(x),cell(y),cell(z));
+    int b=h & mask;
+    hash[n]=h;
+    pos[n]=listPos;
+    next[n]=head[b];
+    head[b]=n;
+    n++;
+
+    return this;
+  }
+
+  /**
+   * Removes the most recently added vertex, provided it was
+   * stored at list position <code>listPos</code>.
+   * @param listPos
+   * @return <code>true</code> if the vertex was removed.
+   */
+  public boolean removeLast(int listPos) {
+    if(n<1 || pos[n-1]!=listPos) return false;
+
+    n--;
+    // the last entry added is always at the head of its bucket
+    int b=hash[n] & mask;
+    head[b]=next[n];
+    return true;
+  }
+
+  /**
+   * Finds the lowest list position of a vertex that is equal to <code>vv</code>
+   * according to {@link UVertex#equals(Object)}.
+   * @param vv Vertex to look for
+   * @param v Vertex data of the parent list
+   * @return List position, or -1 if not found
+   */
+  public int indexOf(UVertex vv,ArrayList<UVertex> v) {
+    return find(vv, vv.x,vv.y,vv.z, v);
+  }
+
+  /**
+   * Finds the lowest list position of a vertex with XYZ equal to
+   * the input, using the same tolerance as {@link UVertex#equals(Object)}.
+   * @return List position, or -1 if not found
+   */
+  public int indexOf(float x,float y,float z,ArrayList<UVertex> v) {
+    return find(null, x,y,z, v);
+  }
+
+  private int find(UVertex vv,float x,float y,float z,ArrayList<UVertex> v) {
+    long cx=cell(x),cy=cell(y),cz=cell(z);
+
+    // only probe neighbouring cells if the query lies
+    // within EPSILON of a cell boundary
+    int x0=(x-cx*CELL<MARGIN ? -1 : 0), x1=((cx+1)*CELL-x<MARGIN ? 1 : 0);
+    int y0=(y-cy*CELL<MARGIN ? -1 : 0), y1=((cy+1)*CELL-y<MARGIN ? 1 : 0);
+    int z0=(z-cz*CELL<MARGIN ? -1 : 0), z1=((cz+1)*CELL-z<MARGIN ? 1 : 0);
+
+    int best=-1;
+    for(int i=x0; i<=x1; i++) {
+      for(int j=y0; j<=y1; j++) {
+        for(int k=z0; k<=z1; k++) {
+          int h=cellHash(cx+i, cy+j, cz+k);
+          int e=head[h & mask];
+          while(e>-1) {
+            int id=pos[e];
+            if(hash[e]==h && (best<0 || id<best)) {
+              UVertex tmp=v.get(id);
+              if(vv!=null ? vv.equals(tmp) : tmp.equals(x,y,z)) best=id;
+            }
+            e=next[e];
+          }
+        }
+      }
+    }
+
+    return best;
+  }
+
+  private static long cell(float val) {
+    return (long)Math.floor(val*INVCELL);
+  }
+
+  private static int cellHash(long cx,long cy,long cz) {
+    long h=cx*0x9E3779B97F4A7C15L;
+    h=(h^cy)*0xC2B2AE3D27D4EB4FL;
+    h=(h^cz)*0x165667B19E3779F9L;
+    h^=(h>>>29);
+    return (int)(h^(h>>>32));
+  }
+
+  private void grow() {
+    int len=next.length*2;
+    next=copyOf(next,len);
+    pos=copyOf(pos,len);
+    hash=copyOf(hash,len);
+  }
+
+  private void rehash(int size) {
+    head=new int[size];
+    mask=size-1;
+    for(int i=0; i<size; i++) head[i]=-1;
+
+    // re-insert in order so that chains keep the most recent entry first
+    for(int e=0; e<n; e++) {
+      int b=hash[e] & mask;
+      next[e]=head[b];
+      head[b]=e;
+    }
+  }
+
+  private static int[] copyOf(int a[],int len) {
+    int res[]=new int[len];
+    System.arraycopy(a, 0, res, 0, a.length);
+    return res;
+  }
+}
@@ -8,6 +8,8 @@ import java.util.Iterator;
 import processing.core.PVector;
 import processing.opengl.*;
 import unlekker.mb2.util.UMB;
+import unlekker.mb2.util.UMetrics;
+import unlekker.mb2.util.UParallel;
 
 /**
  * 
@@ -18,6 +20,11 @@ import unlekker.mb2.util.UMB;
  * Adding by reference can be activated by calling <code>enable(NOCOPY);</code>, duplicate checking is activated by
  * <code>enable(NODUPL);</code> 
  * 
+ * With NODUPL enabled, lookups use a spatial hash index ({@link UVertexHash}) that is kept
+ * up to date as vertices are added or removed. The index is rebuilt automatically after 
+ * transformations like <code>translate()</code>, but code that modifies vertex positions 
+ * directly should call {@link #reindex()}.
+ * 
  * TODO
  * - NODUPL / NOCOPY is not consistently implemented.
  * 
@@ -28,6 +35,24 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
   public ArrayList<UVertex> v;
   public int options;
   public UBB bb;
+  
+  private UVertexHash hash;
+
+  private static final UMetrics.Counter LOOKUP=UMetrics.counter("vertex.lookup");
+  private static final UMetrics.Counter WELD=UMetrics.counter("vertex.weld");
+
+  /**
+   * Incremented whenever vertices are added, removed or transformed through
+   * this class, so that data derived from vertex positions (such as the
+   * vertex normals of {@link UGeo}) can tell when it is out of date.
+   */
+  private int modCount;
+
+  /**
+   * Cumulative arc length at each vertex, see {@link #arcLength()}.
+   */
+  private float arcLen[];
+  private int arcLenMod=-1;
 
   
   public UVertexList() {
@@ -107,16 +132,58 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
 
   /**
    * Returns a new UVertexList that resamples the vertex data of 
-   * this list to a specified number of vertices. Resampling is 
-   * currently done by simple interpolation, using {@see #point(float)}. 
+   * this list to a specified number of vertices, evenly spaced by
+   * distance along the list (see {@link #point(float)}). 
    * @param n Number of points in the new list.
    * @return
    */
   public UVertexList resample(int n) {
-    UVertexList cvl=new UVertexList();
-    for(int i=0; i<n; i++)
-      cvl.add(point(map(i,0,n-1,0,1)));
-    return cvl;
+    return resample(n, new UVertexList());
+  }
+
+  /**
+   * Resamples this list to <code>n</code> vertices evenly spaced by distance,
+   * writing them to <code>res</code>. If <code>res</code> already holds 
+   * <code>n</code> vertices they are updated in place, otherwise its contents 
+   * are replaced. The points are found in a single pass over the list. 
+   * If <code>res</code> is this list, it is resampled in place.
+   * @param n Number of points
+   * @param res Vertex list to store result in
+   * @return <code>res</code>
+   */
+  public UVertexList resample(int n,UVertexList res) {
+    if(res==this) return set(resample(n, new UVertexList()));
+
+    int num=size();
+    boolean reuse=(res.size()==n);
+    if(!reuse) {
+      res.clear();
+      res.ensureCapacity(n);
+    }
+    if(n<1 || num<1) return res;
+
+    if(num==1) {
+      for(int i=0; i<n; i++) {
+        if(reuse) res.v.get(i).set(v.get(0));
+        else res.append(v.get(0).copy());
+      }
+      if(reuse) res.reindex();
+      return res;
+    }
+
+    float len[]=arcLength(),total=len[num-1];
+    int seg=0;
+    for(int i=0; i<n; i++) {
+      float d=(n>1 ? total*(float)i/(float)(n-1) : 0);
+      while(seg<num-2 && len[seg+1]<d) seg++;
+
+      UVertex vv=(reuse ? res.v.get(i) : new UVertex());
+      interpolate(seg, d, len, vv);
+      if(!reuse) res.append(vv);
+    }
+    
+    if(reuse) res.reindex();
+    return res;
   }
 
   /**
@@ -178,11 +245,11 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
         out.close();
       }
       
-      log(j+"/"+smoothLevel+" | "+out.size()+" "+isClosed);
+      if(verbose) log(j+"/"+smoothLevel+" | "+out.size()+" "+isClosed);
       in=out;
     }
 
-    log("smooth "+inOld.size()+" > "+ out.size());
+    if(verbose) log("smooth "+inOld.size()+" > "+ out.size());
     
     return out;
    }
@@ -225,15 +292,83 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
     return out;
   }
 
+  /**
+   * Returns the point at fraction <code>t</code> of the distance along this list,
+   * so that <code>point(0)</code> is the first vertex and <code>point(1)</code>
+   * the last. Uses a cached table of cumulative arc lengths (see {@link #arcLength()}), 
+   * making each call O(log n).
+   * @param t Fraction in the range [0..1]
+   * @return New UVertex instance
+   */
   public UVertex point(float t) {
-    if(t<EPSILON) return v.get(0);
-    if(t>1-EPSILON) return last();
-    
-    t*=(float)size();
-    int id=(int)Math.floor(t);
-    t=t-(float)id;
+    return point(t, new UVertex());
+  }
+
+  /**
+   * Version of {@link #point(float)} that stores the result in <code>res</code>.
+   * @param t Fraction in the range [0..1]
+   * @param res Vertex to store result in
+   * @return <code>res</code>
+   */
+  public UVertex point(float t,UVertex res) {
+    int n=size();
+    if(n<2) return (n==1 ? res.set(v.get(0)) : res);
     
-    return UVertex.lerp(t, v.get(id), v.get(id+1));
+    float len[]=arcLength();
+    float d=constrain(t,0,1)*len[n-1];
+
+    // last segment starting at or before d
+    int lo=0,hi=n-2;
+    while(lo<hi) {
+      int mid=(lo+hi+1)>>>1;
+      if(len[mid]<=d) lo=mid;
+      else hi=mid-1;
+    }
+
+    return interpolate(lo, d, len, res);
+  }
+  
+  /**
+   * Sets <code>res</code> to the point at distance <code>d</code> along the list,
+   * which lies on segment <code>seg</code>.
+   */
+  private UVertex interpolate(int seg,float d,float len[],UVertex res) {
+    float segLen=len[seg+1]-len[seg];
+    float t=(segLen>0 ? (d-len[seg])/segLen : 0);
+    if(t<0) t=0;
+    else if(t>1) t=1;
+
+    UVertex v1=v.get(seg),v2=v.get(seg+1);
+    return res.set(
+        v1.x+(v2.x-v1.x)*t,
+        v1.y+(v2.y-v1.y)*t,
+        v1.z+(v2.z-v1.z)*t);
+  }
+
+  /**
+   * Returns the cumulative arc length at each vertex, so that element <code>i</code>
+   * is the distance from the first vertex to vertex <code>i</code> along the list. 
+   * The table is cached and recalculated when the list is modified (see
+   * {@link #reindex()}). The returned array must not be modified.
+   * @return
+   */
+  public float[] arcLength() {
+    int n=size();
+    if(arcLen!=null && arcLenMod==modCount && arcLen.length==n) return arcLen;
+
+    float len[]=new float[n];
+    for(int i=1; i<n; i++) len[i]=len[i-1]+v.get(i).dist(v.get(i-1));
+    arcLen=len;
+    arcLenMod=modCount;
+    return len;
+  }
+
+  /**
+   * @return Total length of the polyline formed by this list.
+   */
+  public float length() {
+    int n=size();
+    return (n<2 ? 0 : arcLength()[n-1]);
   }
   
   /**
@@ -459,10 +594,64 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
 
   public UVertexList clear() {
     bb=null;
+    hash=null;
+    modCount++;
     v.clear();
     return this;
   }
   
+  /**
+   * Pre-allocates storage for <code>n</code> vertices. If NODUPL is enabled
+   * and the list is empty, the vertex index is pre-sized as well.
+   * @param n
+   * @return
+   */
+  public UVertexList ensureCapacity(int n) {
+    v.ensureCapacity(n);
+    if(isEnabled(NODUPL) && size()==0) hash=new UVertexHash(n);
+    return this;
+  }
+
+  /**
+   * Discards the spatial index used for duplicate checking when NODUPL is enabled,
+   * forcing it to be rebuilt on the next lookup, and marks data derived from
+   * vertex positions (including the bounding box) as out of date. This is done 
+   * automatically by the transformation methods in this class, but must be called 
+   * if vertex positions are changed directly.
+   * @return
+   */
+  public UVertexList reindex() {
+    hash=null;
+    bb=null;
+    modCount++;
+    return this;
+  }
+
+  /**
+   * @return Modification counter, see {@link #reindex()}.
+   */
+  public int getModCount() {
+    return modCount;
+  }
+
+  /**
+   * Returns the spatial index for this list, building it if necessary.
+   * Returns null if NODUPL is not enabled.  
+   */
+  private UVertexHash hash() {
+    if(!isEnabled(NODUPL)) return null;
+    
+    // rebuild if list has been modified without going through UVertexList
+    if(hash!=null && hash.last()!=lastNonNull()) hash=null;
+    if(hash==null) hash=new UVertexHash(v);
+    return hash;
+  }
+  
+  private int lastNonNull() {
+    for(int i=v.size()-1; i>-1; i--) if(v.get(i)!=null) return i;
+    return -1;
+  }
+  
   public UVertex[] get(int vID[]) {
     return get(vID,null);
   }
@@ -504,9 +693,33 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
 
   public int indexOf(UVertex v2) {
     if(v2==null || size()<1) return -1;
+    LOOKUP.add(1);
+    
+    UVertexHash h=hash();
+    if(h!=null) return h.indexOf(v2, v);
     return v.indexOf(v2);
   }
 
+  /**
+   * Returns the index of the first vertex with XYZ equal to the input,
+   * using the same tolerance as {@link UVertex#equals(Object)}.
+   * @return Index of vertex, or -1 if not found 
+   */
+  public int indexOf(float x,float y,float z) {
+    if(size()<1) return -1;
+    LOOKUP.add(1);
+    
+    UVertexHash h=hash();
+    if(h!=null) return h.indexOf(x,y,z, v);
+
+    int id=0;
+    for(UVertex vv:v) {
+      if(vv!=null && vv.equals(x,y,z)) return id;
+      id++;
+    }
+    return -1;
+  }
+
   /**
    * Returns vertices [n1..n2] from this UVertexList, producing (n2-n1)+1 vertices.
    * Vertices are copied by reference, not value, meaning that the vertices in the 
@@ -542,7 +755,12 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
   }
 
   public UVertexList insert(int index,UVertex v1) {
+    if(index==size()) return add(v1);
+    
     v.add(index,v1);
+    hash=null;
+    bb=null;
+    modCount++;
     return this;
   }
 
@@ -558,16 +776,22 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
       return this;
     }
     
-    if(isEnabled(NODUPL) && v.contains(v1)) {
-      log("Duplicate: "+v1+" "+ v.contains(v1));
+    if(isEnabled(NODUPL) && indexOf(v1)>-1) {
+      if(verbose) log("Duplicate: "+v1);
       return this;
     }
 
-    v.add(isEnabled(NOCOPY) ? v1 : v1.copy());      
-    bb=null;
+    append(isEnabled(NOCOPY) ? v1 : v1.copy());      
 
     return this;
   }
+  
+  private void append(UVertex v1) {
+    v.add(v1);
+    if(hash!=null) hash.add(v.size()-1, v1);
+    bb=null;
+    modCount++;
+  }
 
   
   public UVertexList add(float x, float y) {
@@ -590,8 +814,41 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
     return this;
   }
 
+  /**
+   * Appends all vertices in <code>vl</code> without checking for duplicates,
+   * regardless of NODUPL. Vertices are copied in parallel unless NOCOPY 
+   * is enabled.
+   * @param vl
+   * @return
+   */
+  public UVertexList addAll(UVertexList vl) {
+    final ArrayList<UVertex> src=vl.v;
+    final UVertex tmp[]=src.toArray(new UVertex[src.size()]);
+    
+    if(!isEnabled(NOCOPY)) UParallel.run(tmp.length, new UParallel.Task() {
+      public void run(int chunk,int from,int to) {
+        for(int i=from; i<to; i++) if(tmp[i]!=null) tmp[i]=tmp[i].copy();
+      }
+    });
+    
+    int start=v.size();
+    v.addAll(Arrays.asList(tmp));
+    if(hash!=null) for(int i=0; i<tmp.length; i++) {
+      if(tmp[i]!=null) hash.add(start+i, tmp[i]);
+    }
+    bb=null;
+    modCount++;
+    return this;
+  }
+
   public int addID(float x,float y,float z) {
-    return addID(new UVertex(x,y,z));
+    int id=indexOf(x,y,z);
+    if(id<0) {
+      append(new UVertex(x,y,z));
+      id=size()-1;
+    }
+    else WELD.add(1);
+    return id;
   }
 
   public int addID(UVertex v1) {
@@ -600,10 +857,10 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
     
     int id=indexOf(v1);
     if(id<0) {
-      v1=isEnabled(NOCOPY) ? v1 : v1.copy();
-      v.add(v1);
+      append(isEnabled(NOCOPY) ? v1 : v1.copy());
       id=size()-1;
     }
+    else WELD.add(1);
 
     return id;
   }
@@ -616,19 +873,24 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
 
   
   public UVertexList remove(int id) {
+    if(hash!=null && !hash.removeLast(id)) hash=null;
     v.remove(id);
+    bb=null;
+    modCount++;
     return this;
   }
 
   public UVertexList remove(int id1,int id2) {
     int n=id2-id1;
     while((n--)>0) v.remove(id1);
+    hash=null;
+    bb=null;
+    modCount++;
     return this;
   }
 
   public UVertexList scale(float mx,float my,float mz) {
-    for(UVertex vv:v) vv.mult(mx,my,mz);
-    return this;    
+    return transform(new UMatrix().scale(mx,my,mz));    
   }
 
   public UVertexList scale(float m) {
@@ -640,9 +902,7 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
   }
 
   public UVertexList scaleInPlace(float mx,float my,float mz) {
-    UVertex c=centroid();
-    for(UVertex vv:v) vv.sub(c).mult(mx,my,mz).add(c);
-    return this;    
+    return transform(inPlace(new UMatrix().scale(mx,my,mz)));    
   }
 
   
@@ -659,9 +919,7 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
   }
   
   public UVertexList translate(float mx,float my,float mz) {
-    bb=null;
-    for(UVertex vv:v) vv.add(mx,my,mz);
-    return this;    
+    return transform(new UMatrix().translate(mx,my,mz));    
   }
 
   public UVertexList moveTo(float mx,float my,float mz) {
@@ -684,42 +942,61 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
   }
   
   public UVertexList rotXInPlace(float a) {
-    UVertex c=centroid();    
-    for(UVertex vv:v) vv.sub(c).rotX(a).add(c);
-    return this;    
+    return transform(inPlace(new UMatrix().rotX(a)));    
   }
 
   public UVertexList rotYInPlace(float a) {
-    UVertex c=centroid();    
-    for(UVertex vv:v) vv.sub(c).rotY(a).add(c);
-    return this;    
+    return transform(inPlace(new UMatrix().rotY(a)));    
   }
 
   public UVertexList rotZInPlace(float a) {
-    UVertex c=centroid();    
-    for(UVertex vv:v) vv.sub(c).rotZ(a).add(c);
-    return this;    
+    return transform(inPlace(new UMatrix().rotZ(a)));    
   }
 
   
   public UVertexList rotX(float deg) {
-    bb=null;
-    for(UVertex vv:v) vv.rotAxis(X, deg);
-    return this;
+    return transform(new UMatrix().rotX(deg));
   }
 
   public UVertexList rotY(float deg) {
-    bb=null;
-    for(UVertex vv:v) vv.rotAxis(Y, deg);
-    return this;
+    return transform(new UMatrix().rotY(deg));
   }
 
   public UVertexList rotZ(float deg) {
-    bb=null;
-    for(UVertex vv:v) vv.rotAxis(Z, deg);
+    return transform(new UMatrix().rotZ(deg));
+  }
+
+  /**
+   * Applies a transformation matrix to all vertices, in parallel for large lists. 
+   * The bounding box is recalculated in the same pass. 
+   * @param m
+   * @return
+   */
+  public UVertexList transform(UMatrix m) {
+    hash=null;
+    modCount++;
+    bb=m.transform(v, bb);
     return this;
   }
 
+  /**
+   * Applies a transformation matrix to a stack of vertex lists, processing 
+   * lists in parallel. 
+   * @param stack
+   * @param m
+   */
+  public static void transform(ArrayList<UVertexList> stack,UMatrix m) {
+    m.transformAll(stack);
+  }
+
+  /**
+   * Wraps <code>m</code> so that it is applied relative to the centroid of this list. 
+   */
+  private UMatrix inPlace(UMatrix m) {
+    UVertex c=centroid();
+    return new UMatrix().translate(-c.x,-c.y,-c.z).apply(m).translate(c.x,c.y,c.z);
+  }
+
   public UVertexList close() {
     if(!isClosed()) add(first());
     return this;
@@ -730,7 +1007,7 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
   }
   
   public boolean contains(UVertex vv) {
-    return v.contains(vv);
+    return indexOf(vv)>-1;
   }
   
   /**
@@ -754,23 +1031,29 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
    * @return
    */
   public UVertexList removeDupl(boolean doDelete) {
-    int id=0;
     enable(NODUPL);
-    while(id<v.size()) {
-      int index=indexOf(v.get(id));
-      if(index<id) {
-        
-        if(doDelete) { // REMOVE FROM LIST
-          v.remove(id);
-          id--;
-        }
-        else { // REPLACE WITH REFERENCE TO FIRST INSTANCE
-          v.set(id, v.get(index));
-        }
+    
+    // single pass, indexing only the first instance of each vertex
+    ArrayList<UVertex> res=new ArrayList<UVertex>(v.size());
+    UVertexHash h=new UVertexHash(v.size());
+    
+    for(UVertex vv:v) {
+      int index=(vv==null ? -1 : h.indexOf(vv, res));
+      if(index<0) {
+        if(vv!=null) h.add(res.size(), vv);
+        res.add(vv);
       }
-      id++;
+      else if(!doDelete) { // REPLACE WITH REFERENCE TO FIRST INSTANCE
+        res.add(res.get(index));
+      }
+      // else REMOVE FROM LIST 
     }    
     
+    v=res;
+    hash=(doDelete ? h : null);
+    bb=null;
+    modCount++;
+    
     return this;
   }
   
@@ -872,6 +1155,8 @@ public class UVertexList extends UMB implements Iterable<UVertex> {
 
   public UVertexList reverse() {
     Collections.reverse(v);
+    hash=null;
+    modCount++;
     return this;
     
   }
@@ -48,8 +48,10 @@ public interface UConst extends processing.core.PConstants {
   public static final int VID720PW=1280,VID720PH=720;
   public static final int VIDWQXGAW=2560,VIDWQXGAH=1600;
   
-  public static final int COLORVERTEX=8,COLORFACE=4;
+  public static final int COLORVERTEX=8,COLORFACE=4,NORMALVERTEX=16,DRAWRETAINED=32;
+  public static final int NORMALANGLE=0,NORMALAREA=1;
 
-  public static final int SUBDIVCENTROID=0,SUBDIVMIDEDGES=1;
+  public static final int SUBDIVCENTROID=0,SUBDIVMIDEDGES=1,SUBDIVLOOP=2;
+  public static final int CURVEBEZIER=0,CURVECATMULLROM=1,CURVEBSPLINE=2;
   
 }
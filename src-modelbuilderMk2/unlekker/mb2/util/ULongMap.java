@@ -0,0 +1,180 @@
+package unlekker.mb2.util;
+
+/**
+ * Minimal open-addressing hash map from <code>long</code> keys to <code>int</code> values,
+ * avoiding the boxing overhead of <code>HashMap&lt;Long,Integer&gt;</code>. Used internally
+ * for indexing faces and edges by packed vertex IDs.
+ *
+ * @author marius
+ *
+ */
+public class ULongMap {
+  /**
+   * Value returned by {@link #get(long)} for keys not found in the map.
+   */
+  public static final int NOTFOUND=Integer.MIN_VALUE;
+
+  private long keys[];
+  private int values[];
+  private boolean used[];
+  private int n,mask;
+
+  public ULongMap() {
+    this(16);
+  }
+
+  public ULongMap(int capacity) {
+    int size=16;
+    while(size<capacity*2) size<<=1;
+    init(size);
+  }
+
+  private void init(int size) {
+    keys=new long[size];
+    values=new int[size];
+    used=new boolean[size];
+    mask=size-1;
+    n=0;
+  }
+
+  public int size() {
+    return n;
+  }
+
+  public ULongMap clear() {
+    for(int i=0; i<used.length; i++) used[i]=false;
+    n=0;
+    return this;
+  }
+
+  public boolean containsKey(long key) {
+    return used[slot(key)];
+  }
+
+  /**
+   * @return Value stored for <code>key</code>, or {@link #NOTFOUND}.
+   */
+  public int get(long key) {
+    int i=slot(key);
+    return used[i] ? values[i] : NOTFOUND;
+  }
+
+  /**
+   * Stores <code>value</code> for <code>key</code>.
+   * @return The previous value, or {@link #NOTFOUND}.
+   */
+  public int put(long key,int value) {
+    int i=slot(key);
+    if(used[i]) {
+      int old=values[i];
+      values[i]=value;
+      return old;
+    }
+
+    used[i]=true;
+    keys[i]=key;
+    values[i]=value;
+    if(++n>(used.length>>1)) rehash(used.length<<1);
+    return NOTFOUND;
+  }
+
+  /**
+   * Adds <code>delta</code> to the value stored for <code>key</code>,
+   * inserting it with value <code>delta</code> if not present.
+   * @return The new value
+   */
+  public int add(long key,int delta) {
+    int i=slot(key);
+    if(used[i]) return values[i]+=delta;
+    put(key,delta);
+    return delta;
+  }
+
+  /**
+   * Removes <code>key</code> from the map.
+   * @return The removed value, or {@link #NOTFOUND}.
+   */
+  public int remove(long key) {
+    int i=slot(key);
+    if(!used[i]) return NOTFOUND;
+
+    int old=values[i];
+    used[i]=false;
+    n--;
+
+    // shift following entries in the probe sequence back into place
+    int j=i;
+    while(true) {
+      j=(j+1) & mask;
+      if(!used[j]) break;
+
+      int home=hash(keys[j]) & mask;
+      // move entry j to i if i lies cyclically in [home..j)
+      if(i<=j ? (i>=home || home>j) : (i>=home && home>j)) {
+        keys[i]=keys[j];
+        values[i]=values[j];
+        used[i]=true;
+        used[j]=false;
+        i=j;
+      }
+    }
+
+    return old;
+  }
+
+  private int slot(long key) {
+    int i=hash(key) & mask;
+    while(used[i] && keys[i]!=key) i=(i+1) & mask;
+    return i;
+  }
+
+  private void rehash(int size) {
+    long oldKeys[]=keys;
+    int oldValues[]=values;
+    boolean oldUsed[]=used;
+
+    init(size);
+    for(int i=0; i<oldUsed.length; i++) {
+      if(oldUsed[i]) put(oldKeys[i], oldValues[i]);
+    }
+  }
+
+  private static int hash(long key) {
+    key=(key^(key>>>33))*0xff51afd7ed558ccdL;
+    key=(key^(key>>>33))*0xc4ceb9fe1a85ec53L;
+    return (int)(key^(key>>>33));
+  }
+
+  /**
+   * Packs two non-negative int values into a single long, with the smallest value
+   * in the upper 32 bits. Useful as an order-independent edge key.
+   */
+  public static long key(int a,int b) {
+    return a<b ? ((long)a<<32)|b : ((long)b<<32)|a;
+  }
+
+  /**
+   * Packs three non-negative int values into a single long, sorting them first
+   * so that the key is independent of input order. Values must be smaller
+   * than <code>2^21</code> for the key to be unique, larger values are
+   * folded into the key by hashing.
+   */
+  public static long key(int a,int b,int c) {
+    int tmp;
+    if(a>b) {tmp=a; a=b; b=tmp;}
+    if(b>c) {tmp=b; b=c; c=tmp;}
+    if(a>b) {tmp=a; a=b; b=tmp;}
+
+    if(c<KEY3MAX) return ((long)a<<42)|((long)b<<21)|c;
+
+    long h=a*0x9E3779B97F4A7C15L;
+    h=(h^b)*0xC2B2AE3D27D4EB4FL;
+    h=(h^c)*0x165667B19E3779F9L;
+    return h|Long.MIN_VALUE; // set top bit so hashed keys never collide with packed ones
+  }
+
+  /**
+   * Largest value (exclusive) for which {@link #key(int, int, int)} is guaranteed unique.
+   */
+  public static final int KEY3MAX=1<<21;
+}
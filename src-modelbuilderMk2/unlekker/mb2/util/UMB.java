@@ -50,9 +50,23 @@ public class UMB implements UConst {
   protected static boolean isGraphics3D;
   
   protected static int gErrorCnt=0;
+  protected static boolean verbose=false;
   
-  protected static long timerData[]=new long[300],timerTask[];
-  protected static String taskName;
+  /**
+   * Timer state is kept per thread, so that timers can be used from worker
+   * threads without interfering with each other.
+   */
+  private static ThreadLocal<long[]> timerData=new ThreadLocal<long[]>() {
+    protected long[] initialValue() {
+      return new long[300];
+    }
+  };
+  private static ThreadLocal<long[]> timerTask=new ThreadLocal<long[]>() {
+    protected long[] initialValue() {
+      return new long[2];
+    }
+  };
+  private static ThreadLocal<String> taskName=new ThreadLocal<String>();
   
   public static HashMap<Integer, String> groupTypeNames;
 
@@ -69,36 +83,37 @@ public class UMB implements UConst {
 
   
   public static UMB taskTimerStart(String name) {
-    taskName=name;
-    if(timerTask==null) timerTask=new long[2];
-    
-    timerTask[0]=System.currentTimeMillis();
-    timerTask[1]=timerTask[0];
+    long timer[]=timerTask.get();
+    taskName.set(name);
+    timer[0]=System.currentTimeMillis();
+    timer[1]=timer[0];
     return UMB.UMB;
   }
 
   public static UMB taskTimerUpdate(float perc) {
+    long timer[]=timerTask.get();
     long tNow=System.currentTimeMillis();
-    long tD=tNow-timerTask[1];      
+    long tD=tNow-timer[1];      
     
 //    log("update "+tD+" "+(System.currentTimeMillis()-timerTask[0]));
     if(tD>1000) {    
-      tD=tNow-timerTask[0];
+      tD=tNow-timer[0];
       if(perc<1) perc=perc*100f;
-      log(taskName+": "+(int)perc+"% - "+
+      log(taskName.get()+": "+(int)perc+"% - "+
           nf((float)tD/1000f,1,1)+" sec");
-      timerTask[1]=tNow;
+      timer[1]=tNow;
     }      
     
     return UMB.UMB;    
   }
 
   public static UMB taskTimerDone() {
-    if(taskName!=null) {
-      long tD=System.currentTimeMillis()-timerTask[0];
-      if(tD>1000) log(taskName+": Done - "+
+    String name=taskName.get();
+    if(name!=null) {
+      long tD=System.currentTimeMillis()-timerTask.get()[0];
+      if(tD>1000) log(name+": Done - "+
           nf((float)tD/1000f,1,1)+" sec");
-      taskName=null;
+      taskName.remove();
     }
 
     return UMB.UMB;        
@@ -107,7 +122,7 @@ public class UMB implements UConst {
   public static long timerStart(int id) {
     long t=System.currentTimeMillis();
     id*=3;
-    timerData[id]=t;
+    timerData.get()[id]=t;
     return t;
   }
   
@@ -115,16 +130,17 @@ public class UMB implements UConst {
     long t=System.currentTimeMillis();
     id*=3;
     
-    return t-timerData[id];
+    return t-timerData.get()[id];
   }
   
 
   public static long timerEnd(int id) {
     long t=System.currentTimeMillis();
+    long timer[]=timerData.get();
     id*=3;
-    timerData[id+1]=t;
-    timerData[id+2]=t-timerData[id];
-    return timerData[id+2];
+    timer[id+1]=t;
+    timer[id+2]=t-timer[id];
+    return timer[id+2];
   }
 
   public static String version() {
@@ -677,11 +693,33 @@ public class UMB implements UConst {
    */
   public static URnd rnd=new URnd(System.currentTimeMillis());
   
+  private static ThreadLocal<URnd> threadRnd=new ThreadLocal<URnd>();
+  
   public static void setRnd(URnd rnd) {
     UMB.rnd=rnd;
     UMB.UMB=new UMB();
   }
   
+  /**
+   * Sets a random number generator to be used by the <code>rnd()</code>
+   * methods on the current thread only, since URnd is not thread-safe. 
+   * Pass <code>null</code> to revert to the shared {@link #rnd} instance.
+   * @param rnd
+   */
+  public static void setThreadRnd(URnd rnd) {
+    if(rnd==null) threadRnd.remove();
+    else threadRnd.set(rnd);
+  }
+  
+  /**
+   * @return The random number generator set for the current thread with 
+   * {@link #setThreadRnd(URnd)}, or the shared {@link #rnd} instance.
+   */
+  public static URnd getRnd() {
+    URnd r=threadRnd.get();
+    return (r!=null ? r : rnd);
+  }
+  
   public static float sign(float in) {
     return (in<0 ? -1 : 1);
   }
@@ -692,19 +730,19 @@ public class UMB implements UConst {
    * @return
    */
   public boolean rndProb(float prob) {
-    return rnd.prob(prob>100 ? 100 : prob);
+    return getRnd().prob(prob>100 ? 100 : prob);
   }
 
   public static boolean rndBool() {
-    return rnd.bool();
+    return getRnd().bool();
   }
 
   public static float rnd() {
-    return rnd.random(1);
+    return getRnd().random(1);
   }
 
   public static float rnd(float max) {
-    return rnd.random(max);
+    return getRnd().random(max);
   }
 
   public static float rndSign() {
@@ -712,7 +750,7 @@ public class UMB implements UConst {
   }
 
   public static float rnd(float min, float max) {
-    return rnd.random(min,max);
+    return getRnd().random(min,max);
   }
 
   public static float rndSigned(float v) {
@@ -731,16 +769,16 @@ public class UMB implements UConst {
    * @return
    */
   public static float rndSigned(float min, float max) {
-     float val=rnd.random(min,max);
+     float val=getRnd().random(min,max);
       return rndBool() ? val : -val;
     }
 
   public static int rndInt(int max) {
-    return rnd.integer(max);
+    return getRnd().integer(max);
   }
 
   public static int rndInt(int min, int max) {
-    return rnd.integer(min,max);
+    return getRnd().integer(min,max);
   }
 
   /**
@@ -755,7 +793,7 @@ public class UMB implements UConst {
    * @return
    */
   public static int rndIntSigned(float min, float max) {
-    int val=rnd.integer(min,max);
+    int val=getRnd().integer(min,max);
      return rndBool() ? val : -val;
    }
   
@@ -818,6 +856,19 @@ public class UMB implements UConst {
   //////////////////////////////////////////
   // LOGGING
   
+  /**
+   * Enables per-operation log messages (face groups, duplicate vertices and 
+   * faces, progress inside loops etc.), which are off by default since they
+   * are costly in hot loops. See {@link UMetrics} for low-overhead counters. 
+   */
+  public static void setVerbose(boolean verbose) {
+    UMB.verbose=verbose;
+  }
+  
+  public static boolean isVerbose() {
+    return verbose;
+  }
+
   public static void log(String s) {
     System.out.println(timeStr()+" "+s);
   }
@@ -0,0 +1,237 @@
+package unlekker.mb2.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Named counters and timers for instrumenting geometry operations (faces
+ * added, vertex lookups and welds, I/O bytes, time per operation etc.). All
+ * metrics are thread-safe and are registered once, typically as static fields
+ * of the class using them:</p>
+ *
+ * <pre>
+ * private static final UMetrics.Counter FACES=UMetrics.counter("geo.faces");
+ * private static final UMetrics.Timer READ=UMetrics.timer("stl.read");
+ *
+ * FACES.add(1);
+ * long t=READ.start();
+ * ...
+ * READ.stop(t);
+ * </pre>
+ *
+ * <p>Metrics are disabled by default, in which case updates reduce to a single
+ * check of a static flag. Counts and sums use {@link LongAdder}, so threads
+ * updating the same metric don't contend on a single value. Call {@link #setEnabled(boolean)} to start collecting,
+ * then {@link #snapshot()} or {@link #export()} to read the current values.</p>
+ *
+ * @author marius
+ *
+ */
+public class UMetrics {
+  private static volatile boolean enabled=false;
+
+  private static ConcurrentHashMap<String, Counter> metrics=
+      new ConcurrentHashMap<String, Counter>();
+
+  /**
+   * Counter, accumulating a running total.
+   */
+  public static class Counter {
+    public final String name;
+    protected final LongAdder count=new LongAdder();
+
+    protected Counter(String name) {
+      this.name=name;
+    }
+
+    public void add(long n) {
+      if(enabled) count.add(n);
+    }
+
+    public long get() {
+      return count.sum();
+    }
+
+    protected void reset() {
+      count.reset();
+    }
+
+    protected void snapshot(LinkedHashMap<String, Long> res) {
+      res.put(name, count.sum());
+    }
+  }
+
+  /**
+   * Histogram of recorded values, keeping count, sum, min, max and
+   * power-of-two buckets from which percentiles are estimated.
+   */
+  public static class Histogram extends Counter {
+    protected final LongAdder sum=new LongAdder();
+    protected final AtomicLong min=new AtomicLong(Long.MAX_VALUE);
+    protected final AtomicLong max=new AtomicLong(Long.MIN_VALUE);
+    protected final LongAdder bucket[]=new LongAdder[64];
+
+    protected Histogram(String name) {
+      super(name);
+      for(int i=0; i<64; i++) bucket[i]=new LongAdder();
+    }
+
+    /**
+     * Records a single (non-negative) value.
+     */
+    public void record(long val) {
+      if(!enabled) return;
+      if(val<0) val=0;
+
+      count.increment();
+      sum.add(val);
+      bucket[64-Long.numberOfLeadingZeros(val)-(val>0 ? 1 : 0)].increment();
+
+      long m=min.get();
+      while(val<m && !min.compareAndSet(m, val)) m=min.get();
+      m=max.get();
+      while(val>m && !max.compareAndSet(m, val)) m=max.get();
+    }
+
+    public long sum() {
+      return sum.sum();
+    }
+
+    public double mean() {
+      long n=count.sum();
+      return (n==0 ? 0 : (double)sum.sum()/(double)n);
+    }
+
+    /**
+     * @param perc Percentile in the range [0..1]
+     * @return Upper bound of the bucket containing the given percentile
+     */
+    public long percentile(float perc) {
+      long n=count.sum(),target=(long)Math.ceil(n*perc),cnt=0;
+      if(n==0) return 0;
+
+      for(int i=0; i<64; i++) {
+        cnt+=bucket[i].sum();
+        if(cnt>=target && cnt>0) return Math.min(i>62 ? Long.MAX_VALUE : (1L<<(i+1))-1, max.get());
+      }
+      return max.get();
+    }
+
+    protected void reset() {
+      super.reset();
+      sum.reset();
+      min.set(Long.MAX_VALUE);
+      max.set(Long.MIN_VALUE);
+      for(int i=0; i<64; i++) bucket[i].reset();
+    }
+
+    protected void snapshot(LinkedHashMap<String, Long> res) {
+      long n=count.sum();
+      res.put(name+".count", n);
+      res.put(name+".sum", sum.sum());
+      res.put(name+".min", n>0 ? min.get() : 0);
+      res.put(name+".max", n>0 ? max.get() : 0);
+      res.put(name+".p50", percentile(0.5f));
+      res.put(name+".p99", percentile(0.99f));
+    }
+  }
+
+  /**
+   * Histogram of elapsed times in nanoseconds.
+   */
+  public static class Timer extends Histogram {
+    protected Timer(String name) {
+      super(name);
+    }
+
+    /**
+     * @return Start time to pass to {@link #stop(long)}, or 0 if metrics
+     * are disabled.
+     */
+    public long start() {
+      return (enabled ? System.nanoTime() : 0);
+    }
+
+    /**
+     * Records the time elapsed since <code>start</code>.
+     */
+    public void stop(long start) {
+      if(enabled && start!=0) record(System.nanoTime()-start);
+    }
+  }
+
+  public static void setEnabled(boolean enabled) {
+    UMetrics.enabled=enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the counter with the given name, creating it if needed.
+   */
+  public static Counter counter(String name) {
+    return register(new Counter(name));
+  }
+
+  public static Histogram histogram(String name) {
+    return (Histogram)register(new Histogram(name));
+  }
+
+  public static Timer timer(String name) {
+    return (Timer)register(new Timer(name));
+  }
+
+  private static Counter register(Counter c) {
+    Counter res=metrics.putIfAbsent(c.name, c);
+    if(res==null) return c;
+    if(res.getClass()!=c.getClass()) throw new IllegalArgumentException(
+        "UMetrics: '"+c.name+"' is already registered as "+res.getClass().getSimpleName());
+    return res;
+  }
+
+  /**
+   * Resets all metrics to zero.
+   */
+  public static void reset() {
+    for(Counter c:metrics.values()) c.reset();
+  }
+
+  /**
+   * Returns the current values of all metrics, sorted by name. Histograms
+   * and timers are reported as <code>name.count</code>, <code>name.sum</code>,
+   * <code>name.min</code>, <code>name.max</code>, <code>name.p50</code> and
+   * <code>name.p99</code> (times are in nanoseconds).
+   */
+  public static LinkedHashMap<String, Long> snapshot() {
+    ArrayList<String> names=new ArrayList<String>(metrics.keySet());
+    Collections.sort(names);
+
+    LinkedHashMap<String, Long> res=new LinkedHashMap<String, Long>();
+    for(String s:names) metrics.get(s).snapshot(res);
+    return res;
+  }
+
+  /**
+   * @return Current values as tab-separated lines of name and value.
+   */
+  public static String export() {
+    StringBuffer buf=new StringBuffer();
+    for(Map.Entry<String, Long> e:snapshot().entrySet()) {
+      buf.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+    }
+    return buf.toString();
+  }
+
+  public static void log() {
+    for(Map.Entry<String, Long> e:snapshot().entrySet()) {
+      UMB.log(e.getKey()+" "+e.getValue());
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package unlekker.mb2.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Minimal fork-join helper for data-parallel loops over index ranges. A range
+ * <code>[0..n)</code> is split into a fixed number of chunks, which are processed
+ * in parallel by a shared <code>ForkJoinPool</code>. Since the number of chunks is
+ * known in advance (see {@link #chunks(int)}), tasks can collect per-chunk results
+ * (sums, bounding boxes etc.) into arrays that are then merged by the caller,
+ * avoiding any synchronization.</p>
+ *
+ * <pre>
+ * UParallel.run(n, new UParallel.Task() {
+ *   public void run(int chunk,int from,int to) {
+ *     for(int i=from; i&lt;to; i++) ...
+ *   }
+ * });
+ * </pre>
+ *
+ * <p>Ranges smaller than {@link #MINCHUNK} are processed on the calling thread.</p>
+ *
+ * @author marius
+ *
+ */
+public class UParallel {
+  /**
+   * Minimum number of items per chunk. Ranges smaller than this are
+   * processed as a single chunk on the calling thread.
+   */
+  public static int MINCHUNK=4096;
+
+  private static ForkJoinPool pool;
+  private static volatile int threads=Runtime.getRuntime().availableProcessors();
+
+  public static abstract class Task {
+    /**
+     * Processes items <code>from</code> (inclusive) to <code>to</code> (exclusive).
+     * @param chunk Chunk index, from 0 to <code>chunks(n)-1</code>
+     */
+    public abstract void run(int chunk,int from,int to);
+  }
+
+  /**
+   * Sets the number of worker threads used, replacing the current pool.
+   * Defaults to the number of available processors. Calls already running
+   * on the old pool complete normally, its idle workers then time out.
+   */
+  public static synchronized void setThreads(int n) {
+    threads=Math.max(1,n);
+    // not shut down, since other threads may still be invoking tasks on it
+    pool=null;
+  }
+
+  public static int getThreads() {
+    return threads;
+  }
+
+  public static synchronized ForkJoinPool getPool() {
+    if(pool==null) pool=new ForkJoinPool(threads);
+    return pool;
+  }
+
+  /**
+   * @return Number of chunks that a range of size <code>n</code> will be split into.
+   * Since the thread count can change between calls, pass the result to
+   * {@link #runChunks(int, int, Task)} when sizing per-chunk arrays with it.
+   */
+  public static int chunks(int n) {
+    return chunks(n,MINCHUNK);
+  }
+
+  /**
+   * @return Number of chunks that a range of size <code>n</code> will be split into,
+   * given a minimum of <code>minChunk</code> items per chunk.
+   */
+  public static int chunks(int n,int minChunk) {
+    int t=threads;
+    minChunk=Math.max(1,minChunk);
+    if(t<2 || n<minChunk*2) return 1;
+    // several chunks per thread for load balancing
+    return Math.max(1, Math.min(t*4, n/minChunk));
+  }
+
+  /**
+   * Runs <code>task</code> over the range <code>[0..n)</code>, returning when all
+   * chunks are done.
+   * @return Number of chunks used
+   */
+  public static int run(int n,Task task) {
+    return run(n,MINCHUNK,task);
+  }
+
+  /**
+   * Runs <code>task</code> over the range <code>[0..n)</code>, using chunks of
+   * at least <code>minChunk</code> items.
+   * @return Number of chunks used
+   */
+  public static int run(int n,int minChunk,Task task) {
+    return runChunks(n, chunks(n,minChunk), task);
+  }
+
+  /**
+   * Runs <code>task</code> over the range <code>[0..n)</code>, split into exactly
+   * <code>num</code> chunks (as returned by {@link #chunks(int, int)}). Use this
+   * when per-chunk results are stored in arrays of size <code>num</code>.
+   * @return Number of chunks used
+   */
+  public static int runChunks(final int n,int num,final Task task) {
+    // ranges smaller than num leave the remaining chunks unused
+    final int cnt=Math.max(1, Math.min(num, n));
+    if(cnt<2) {
+      if(n>0) task.run(0, 0, n);
+      return 1;
+    }
+
+    final RecursiveAction actions[]=new RecursiveAction[cnt];
+    for(int i=0; i<cnt; i++) {
+      final int chunk=i;
+      actions[i]=new RecursiveAction() {
+        protected void compute() {
+          task.run(chunk, from(chunk,cnt,n), from(chunk+1,cnt,n));
+        }
+      };
+    }
+
+    // nested calls from inside a task fork directly in the current pool
+    if(ForkJoinTask.inForkJoinPool()) ForkJoinTask.invokeAll(actions);
+    else getPool().invoke(new RecursiveAction() {
+      protected void compute() {
+        invokeAll(actions);
+      }
+    });
+
+    return cnt;
+  }
+
+  private static int from(int chunk,int num,int n) {
+    return (int)((long)n*chunk/num);
+  }
+}
@@ -6,6 +6,7 @@ package unlekker.mb2.util;
 import java.lang.*;
 import java.lang.reflect.*;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 import ec.util.*;
  
 /**
@@ -17,7 +18,7 @@ import ec.util.*;
  */
 
 public class URnd implements Serializable {
-  private static long seedCnt;
+  private static AtomicLong seedCnt=new AtomicLong();
   private MersenneTwisterFast mt;
   public long seed;
 
@@ -31,7 +32,7 @@ public class URnd implements Serializable {
     }
     
     public URnd() {
-      this(seedCnt++);
+      this(seedCnt.getAndIncrement());
     }
 
     public URnd(long seed) {